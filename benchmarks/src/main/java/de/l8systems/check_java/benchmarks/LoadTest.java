@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java.benchmarks;
+
+import de.l8systems.check_java.CheckGroup;
+import de.l8systems.check_java.ConnectionPool;
+import de.l8systems.check_java.Deadline;
+import de.l8systems.check_java.JMXClient;
+import de.l8systems.check_java.Main;
+import de.l8systems.check_java.MultiTargetPoller;
+import de.l8systems.check_java.Options;
+import de.l8systems.check_java.Result;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test of check_java against many fake JVMs in this process.
+ *
+ * Every fake JVM is a SyntheticJvm behind its own JMX connector server, all bound in one RMI registry
+ * on the loopback interface, so hundreds of targets need neither a lab nor a network. Checks are run
+ * against them for a while by one of the paths check_java polls through, and the throughput, the
+ * latency and the failures are reported:
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar de.l8systems.check_java.benchmarks.LoadTest -n 500 -m pool
+ * </pre>
+ *
+ * Options:
+ * <pre>
+ * -n &lt;Number&gt;   fake JVMs, default 100
+ * -m &lt;Mode&gt;     pool:    checks share one connection per target, as in the daemon (default)
+ *               connect: every check connects and disconnects, as a check_java process does
+ *               poller:  all targets are checked in sweeps, as with several -u
+ * -j &lt;Number&gt;   threads running checks in the pool and connect modes, default 32
+ * -d &lt;Seconds&gt;  how long checks are run, default 30
+ * -t &lt;Types&gt;    the check types, default HeapMem,MemPoolOldGen,GCMarkSweepCount,ThreadCount
+ * -l &lt;Seconds&gt;  the time limit of a check, default 10
+ * -L &lt;Millis&gt;   the time every read of a bean takes, default 0
+ * -J &lt;Millis&gt;   the time a read takes at most in addition, default 0
+ * -f &lt;Rate&gt;     the share of reads that fail, default 0
+ * -F &lt;Rate&gt;     the share of connection attempts that are refused, default 0
+ * </pre>
+ */
+public class LoadTest {
+    public enum Mode {
+        POOL("pool"),
+        CONNECT("connect"),
+        POLLER("poller");
+
+        private final String name;
+
+        Mode(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Return the name of the mode as given with -m
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Look up a mode by the name given with -m
+         * @param name the name
+         * @return the mode
+         * @throws IllegalArgumentException if there is no mode of that name
+         */
+        public static Mode forName(String name) {
+            for (Mode m : values()) {
+                if (m.name.equals(name)) {
+                    return m;
+                }
+            }
+            throw new IllegalArgumentException("Unknown mode " + name);
+        }
+    }
+
+    /**
+     * What the checks of one thread experienced
+     */
+    private static class Recorder {
+        private long[] latencies = new long[1024];
+        private int count;
+        private long connectErrors;
+        private long readErrors;
+        private long timeouts;
+
+        void record(long nanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+        }
+
+        void fail(Throwable e) {
+            while (e instanceof ExecutionException && e.getCause() != null) {
+                e = e.getCause();
+            }
+            if (e instanceof TimeoutException) {
+                timeouts++;
+            } else if (e instanceof IOException || e instanceof SecurityException) {
+                connectErrors++;
+            } else {
+                readErrors++;
+            }
+        }
+
+        /**
+         * Classify the failure a check reported in its output, as the poller reports failures
+         */
+        void fail(String output) {
+            if (output.startsWith("UNKNOWN: No answer")) {
+                timeouts++;
+                return;
+            }
+            String prefix = "Could not retrieve data: ";
+            int end = output.indexOf(':', prefix.length());
+            try {
+                Class<?> type = Class.forName(output.substring(prefix.length(), end));
+                if (IOException.class.isAssignableFrom(type) || SecurityException.class.isAssignableFrom(type)) {
+                    connectErrors++;
+                    return;
+                }
+            } catch (ClassNotFoundException | RuntimeException e) {
+                // not an exception check_java reported, count it as a failed read
+            }
+            readErrors++;
+        }
+
+        void add(Recorder other) {
+            for (int i = 0; i < other.count; i++) {
+                record(other.latencies[i]);
+            }
+            connectErrors += other.connectErrors;
+            readErrors += other.readErrors;
+            timeouts += other.timeouts;
+        }
+    }
+
+    private int targets = 100;
+    private Mode mode = Mode.POOL;
+    private int threads = 32;
+    private int seconds = 30;
+    private String types = "HeapMem,MemPoolOldGen,GCMarkSweepCount,ThreadCount";
+    private int timeLimit = 10;
+    private long latencyMillis;
+    private long jitterMillis;
+    private double failureRate;
+    private double connectFailureRate;
+
+    private List<String> urls = new ArrayList<String>();
+    private final AtomicLong next = new AtomicLong();
+    private long sweptChecks;
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest(args);
+        PrintStream report = System.out;
+        List<LoopbackAgent> agents = new ArrayList<LoopbackAgent>();
+        Registry registry = null;
+        try {
+            int port = freePort();
+            registry = LocateRegistry.createRegistry(port);
+            SyntheticJvm.Faults faults = new SyntheticJvm.Faults(test.latencyMillis, test.jitterMillis, test.failureRate, test.connectFailureRate);
+            for (int i = 0; i < test.targets; i++) {
+                SyntheticJvm jvm = new SyntheticJvm(i, faults);
+                LoopbackAgent agent = new LoopbackAgent(jvm.getMBeanServer(), jvm.getEnvironment(), port, "jvm" + i);
+                agents.add(agent);
+                test.urls.add(agent.getUrl());
+            }
+            report.println("Started " + test.targets + " fake JVMs, running " + test.mode.getName() + " checks for " + test.seconds + " seconds");
+
+            // check_java prints progress messages to stdout that would drown the report
+            System.setOut(new PrintStream(NULL));
+            Recorder res = test.run();
+            System.setOut(report);
+            test.print(res, report);
+        } finally {
+            System.setOut(report);
+            for (LoopbackAgent agent : agents) {
+                agent.close();
+            }
+            if (registry != null) {
+                UnicastRemoteObject.unexportObject(registry, true);
+            }
+        }
+        System.exit(0);
+    }
+
+    public LoadTest(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException(args[i] + " needs to be followed by a value");
+            }
+            String val = args[++i];
+            switch (args[i - 1]) {
+                case "-n":  targets = Integer.parseInt(val);
+                            break;
+                case "-m":  mode = Mode.forName(val);
+                            break;
+                case "-j":  threads = Integer.parseInt(val);
+                            break;
+                case "-d":  seconds = Integer.parseInt(val);
+                            break;
+                case "-t":  types = val;
+                            break;
+                case "-l":  timeLimit = Integer.parseInt(val);
+                            break;
+                case "-L":  latencyMillis = Long.parseLong(val);
+                            break;
+                case "-J":  jitterMillis = Long.parseLong(val);
+                            break;
+                case "-f":  failureRate = Double.parseDouble(val);
+                            break;
+                case "-F":  connectFailureRate = Double.parseDouble(val);
+                            break;
+                default:    throw new IllegalArgumentException("Unknown option " + args[i - 1]);
+            }
+        }
+    }
+
+    /**
+     * Run checks until the time is up
+     * @return what the checks experienced
+     */
+    private Recorder run() throws Exception {
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        if (mode == Mode.POLLER) {
+            return sweep(end);
+        }
+
+        final ConnectionPool pool = new ConnectionPool();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        List<Future<Recorder>> futures = new ArrayList<Future<Recorder>>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(workers.submit(new Callable<Recorder>() {
+                @Override
+                public Recorder call() {
+                    Recorder rec = new Recorder();
+                    PrintStream out = new PrintStream(NULL);
+                    while (System.nanoTime() < end) {
+                        String url = urls.get((int) (next.getAndIncrement() % urls.size()));
+                        long start = System.nanoTime();
+                        try {
+                            if (mode == Mode.POOL) {
+                                Main.runCheck(new Options(checkArgs(url)), pool, null, out);
+                            } else {
+                                connectAndCheck(url, out);
+                            }
+                            rec.record(System.nanoTime() - start);
+                        } catch (Exception e) {
+                            rec.fail(e);
+                        }
+                    }
+                    return rec;
+                }
+            }));
+        }
+
+        Recorder res = new Recorder();
+        for (Future<Recorder> future : futures) {
+            res.add(future.get());
+        }
+        workers.shutdown();
+        pool.closeAll();
+        return res;
+    }
+
+    /**
+     * Run a check as a check_java process does: connect, fetch within the time limit, disconnect
+     */
+    private void connectAndCheck(String url, PrintStream out) throws Exception {
+        final CheckGroup checks = new CheckGroup(new Options(checkArgs(url)));
+        Deadline deadline = new Deadline(TimeUnit.SECONDS.toMillis(timeLimit));
+        final JMXClient client = JMXClient.connect(url, deadline, false);
+        try {
+            List<List<Result>> res = deadline.run(new Callable<List<List<Result>>>() {
+                @Override
+                public List<List<Result>> call() throws Exception {
+                    return checks.fetch(client);
+                }
+            });
+            checks.evaluate(url, res, out);
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Check all targets in sweeps of the MultiTargetPoller until the time is up. The latency is that
+     * of a whole sweep.
+     */
+    private Recorder sweep(long end) throws Exception {
+        List<String> args = new ArrayList<String>(Arrays.asList(checkArgs(urls.get(0))));
+        for (int i = 1; i < urls.size(); i++) {
+            args.add("-u");
+            args.add(urls.get(i));
+        }
+        MultiTargetPoller poller = new MultiTargetPoller(new Options(args.toArray(new String[args.size()])));
+
+        Recorder rec = new Recorder();
+        long checks = 0;
+        while (System.nanoTime() < end) {
+            long start = System.nanoTime();
+            for (MultiTargetPoller.TargetResult res : poller.poll()) {
+                if (res.getStatus() == 3) {
+                    rec.fail(res.getOutput());
+                }
+                checks++;
+            }
+            rec.record(System.nanoTime() - start);
+        }
+        sweptChecks = checks;
+        return rec;
+    }
+
+    private String[] checkArgs(String url) {
+        return new String[] {"-u", url, "-t", types, "-w", "1000000", "-c", "2000000", "-l", Integer.toString(timeLimit)};
+    }
+
+    private void print(Recorder res, PrintStream out) {
+        long[] sorted = Arrays.copyOf(res.latencies, res.count);
+        Arrays.sort(sorted);
+        long failed = res.connectErrors + res.readErrors + res.timeouts;
+        long checks = mode == Mode.POLLER ? sweptChecks : res.count + failed;
+
+        out.printf("Checks:        %d (%.1f/s)%n", checks, checks / (double) seconds);
+        out.printf("Latency:       p50 %.1f ms, p99 %.1f ms, max %.1f ms%s%n", millis(percentile(sorted, 0.5)),
+                millis(percentile(sorted, 0.99)), millis(percentile(sorted, 1.0)), mode == Mode.POLLER ? " per sweep" : "");
+        out.printf("Errors:        %d connect, %d read, %d timeout%n", res.connectErrors, res.readErrors, res.timeouts);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.max(0, Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1))];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static final OutputStream NULL = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+}
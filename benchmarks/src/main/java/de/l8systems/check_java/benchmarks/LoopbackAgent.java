@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java.benchmarks;
+
+import javax.management.MBeanServer;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.rmi.NoSuchObjectException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Map;
+
+/**
+ * A JMX agent in the current JVM, reachable through RMI on the loopback interface.
+ *
+ * It serves an MBeanServer through its own RMI registry on a free port, or through one shared with
+ * other agents, exactly like a JVM started with -Dcom.sun.management.jmxremote.port, so check_java
+ * talks to it over the same code paths as to a remote JVM.
+ */
+public class LoopbackAgent implements AutoCloseable {
+    private final Registry registry;
+    private final JMXConnectorServer server;
+    private final String url;
+
+    /**
+     * Serve the platform MBeanServer of this JVM
+     * @throws IOException if the agent cannot be started
+     */
+    public LoopbackAgent() throws IOException {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    /**
+     * Serve an MBeanServer
+     * @param mbs the MBeanServer to serve
+     * @throws IOException if the agent cannot be started
+     */
+    public LoopbackAgent(MBeanServer mbs) throws IOException {
+        int port = freePort();
+        registry = LocateRegistry.createRegistry(port);
+        url = "service:jmx:rmi:///jndi/rmi://localhost:" + port + "/jmxrmi";
+        server = JMXConnectorServerFactory.newJMXConnectorServer(new JMXServiceURL(url), null, mbs);
+        server.start();
+    }
+
+    /**
+     * Serve an MBeanServer under a name in an RMI registry shared with other agents, so many agents
+     * need only one registry port
+     * @param mbs the MBeanServer to serve
+     * @param env the environment of the connector server, e.g. an authenticator
+     * @param registryPort the port of the shared registry
+     * @param name the name the agent is bound under
+     * @throws IOException if the agent cannot be started
+     */
+    public LoopbackAgent(MBeanServer mbs, Map<String, ?> env, int registryPort, String name) throws IOException {
+        registry = null;
+        url = "service:jmx:rmi:///jndi/rmi://localhost:" + registryPort + "/" + name;
+        server = JMXConnectorServerFactory.newJMXConnectorServer(new JMXServiceURL(url), env, mbs);
+        server.start();
+    }
+
+    /**
+     * Return the URL check_java connects to
+     * @return the JMX service URL of this agent
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.stop();
+        if (registry == null) {
+            return;
+        }
+        try {
+            UnicastRemoteObject.unexportObject(registry, true);
+        } catch (NoSuchObjectException e) {
+            // already gone
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java.benchmarks;
+
+import de.l8systems.check_java.AttributeIdentifier;
+import de.l8systems.check_java.CheckGroup;
+import de.l8systems.check_java.JMXClient;
+import de.l8systems.check_java.Options;
+import de.l8systems.check_java.Result;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Benchmarks of the stages a check goes through: connecting, fetching the attributes, evaluating them
+ * against the thresholds and formatting the output.
+ */
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+    private static final String URL_PLACEHOLDER = "-";
+
+    private LoopbackAgent agent;
+    private JMXClient client;
+    private CheckGroup heapCheck;
+    private CheckGroup multiCheck;
+    private List<List<Result>> multiResults;
+    private PrintStream out;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        agent = new LoopbackAgent();
+        client = new JMXClient(agent.getUrl());
+        heapCheck = new CheckGroup(new Options(new String[] {"-t", "HeapMem", "-w", "800", "-c", "900", "-U", "MB"}));
+        multiCheck = new CheckGroup(new Options(new String[] {"-t", "HeapMem,NonHeapMem,MemPoolOldGen,ClassLoading,ThreadCount", "-w", "800,400,600,20000,300", "-c", "900,500,700,30000,400", "-U", "MB"}));
+        multiResults = multiCheck.fetch(client);
+        out = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        agent.close();
+    }
+
+    /**
+     * Open and close a connection
+     */
+    @Benchmark
+    public void connect() throws IOException {
+        new JMXClient(agent.getUrl()).close();
+    }
+
+    /**
+     * Fetch one simply typed attribute
+     */
+    @Benchmark
+    public Object singleAttribute() throws Exception {
+        return client.getAttribute("java.lang:type=Threading", "ThreadCount", null);
+    }
+
+    /**
+     * Fetch the four sub-attributes of HeapMemoryUsage, as the HeapMem check does
+     */
+    @Benchmark
+    public List<Result> compositeAttribute() throws Exception {
+        return AttributeIdentifier.getValues(client, heapCheck.getAttributes());
+    }
+
+    /**
+     * Fetch and evaluate five checks in one run
+     */
+    @Benchmark
+    public int multiCheck() throws Exception {
+        return multiCheck.evaluate(URL_PLACEHOLDER, multiCheck.fetch(client), out);
+    }
+
+    /**
+     * Only evaluate and format the output of five checks, without any JMX traffic
+     */
+    @Benchmark
+    public int formatPerfData() throws Exception {
+        return multiCheck.evaluate(URL_PLACEHOLDER, multiResults, out);
+    }
+}
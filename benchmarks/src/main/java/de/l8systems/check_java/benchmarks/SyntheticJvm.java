@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java.benchmarks;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.remote.JMXAuthenticator;
+import javax.management.remote.JMXConnectorServer;
+import javax.security.auth.Subject;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fake JVM: an MBeanServer of its own with the Memory, MemoryPool, GarbageCollector, Threading,
+ * ClassLoading and Runtime beans check_java reads, as a JVM with the parallel collector has them.
+ *
+ * The values move over time like those of a busy JVM: the heap and the eden space fill up and are
+ * collected in a sawtooth, the old gen slowly grows, and the collection counters rise. Every JVM
+ * starts at another point of these cycles. Each read of a bean can be delayed and can fail, and
+ * connecting can be refused, to see how check_java copes with slow and broken targets.
+ */
+public class SyntheticJvm {
+    private static final long MB = 1024 * 1024;
+
+    private static final String USAGE_TYPE = CompositeData.class.getName();
+    private static final CompositeType MEMORY_USAGE;
+
+    static {
+        try {
+            MEMORY_USAGE = new CompositeType("java.lang.management.MemoryUsage", "Memory usage",
+                    new String[] {"init", "used", "committed", "max"},
+                    new String[] {"init", "used", "committed", "max"},
+                    new OpenType<?>[] {SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG});
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * How the beans of a fake JVM misbehave
+     */
+    public static class Faults {
+        private final long latencyMillis;
+        private final long jitterMillis;
+        private final double failureRate;
+        private final double connectFailureRate;
+
+        /**
+         * @param latencyMillis the time every read of a bean takes
+         * @param jitterMillis the time a read takes at most in addition, evenly distributed
+         * @param failureRate the share of reads that fail, between 0 and 1
+         * @param connectFailureRate the share of connection attempts that are refused, between 0 and 1
+         */
+        public Faults(long latencyMillis, long jitterMillis, double failureRate, double connectFailureRate) {
+            this.latencyMillis = latencyMillis;
+            this.jitterMillis = jitterMillis;
+            this.failureRate = failureRate;
+            this.connectFailureRate = connectFailureRate;
+        }
+    }
+
+    private final MBeanServer mbs = MBeanServerFactory.newMBeanServer();
+    private final Faults faults;
+    private final long start;
+
+    /**
+     * Create a fake JVM
+     * @param seed chooses where in the cycles of its values the JVM starts
+     * @param faults how the beans misbehave
+     */
+    public SyntheticJvm(long seed, Faults faults) throws JMException {
+        this.faults = faults;
+        this.start = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(new Random(seed).nextInt(24 * 60));
+
+        register("java.lang:type=Memory", null, "HeapMemoryUsage", "NonHeapMemoryUsage");
+        for (String pool : new String[] {"PS Eden Space", "PS Survivor Space", "PS Old Gen", "Code Cache"}) {
+            register("java.lang:type=MemoryPool,name=" + pool, pool, "Usage");
+        }
+        for (String gc : new String[] {"PS Scavenge", "PS MarkSweep"}) {
+            register("java.lang:type=GarbageCollector,name=" + gc, gc, "CollectionCount", "CollectionTime");
+        }
+        register("java.lang:type=Threading", null, "ThreadCount", "PeakThreadCount", "DaemonThreadCount", "TotalStartedThreadCount");
+        register("java.lang:type=ClassLoading", null, "LoadedClassCount", "TotalLoadedClassCount", "UnloadedClassCount");
+        register("java.lang:type=Runtime", null, "Uptime");
+    }
+
+    private void register(String objectName, String name, String... attributes) throws JMException {
+        mbs.registerMBean(new Bean(name, attributes), new ObjectName(objectName));
+    }
+
+    /**
+     * Return the MBeanServer holding the beans
+     * @return the MBeanServer
+     */
+    public MBeanServer getMBeanServer() {
+        return mbs;
+    }
+
+    /**
+     * Return the environment of a connector server that refuses connections as configured
+     * @return the environment
+     */
+    public Map<String, ?> getEnvironment() {
+        if (faults.connectFailureRate <= 0) {
+            return null;
+        }
+        return Collections.singletonMap(JMXConnectorServer.AUTHENTICATOR, new JMXAuthenticator() {
+            @Override
+            public Subject authenticate(Object credentials) {
+                if (ThreadLocalRandom.current().nextDouble() < faults.connectFailureRate) {
+                    throw new SecurityException("Connection refused by fault injection");
+                }
+                return new Subject();
+            }
+        });
+    }
+
+    /**
+     * Delay and fail a read of a bean as configured
+     */
+    private void misbehave() {
+        long delay = faults.latencyMillis;
+        if (faults.jitterMillis > 0) {
+            delay += ThreadLocalRandom.current().nextLong(faults.jitterMillis + 1);
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (faults.failureRate > 0 && ThreadLocalRandom.current().nextDouble() < faults.failureRate) {
+            throw new IllegalStateException("Read failed by fault injection");
+        }
+    }
+
+    /**
+     * Return the value of an attribute at the current uptime
+     * @param name the name key of the bean, e.g. the name of the memory pool, or null
+     * @param attribute the attribute
+     */
+    private Object value(String name, String attribute) throws AttributeNotFoundException {
+        long uptime = System.currentTimeMillis() - start;
+        long seconds = uptime / 1000;
+        switch (attribute) {
+            case "HeapMemoryUsage":
+                return usage(256 * MB, edenUsed(seconds) + oldGenUsed(seconds) + 10 * MB, 2048 * MB, 2048 * MB);
+            case "NonHeapMemoryUsage":
+                return usage(8 * MB, 60 * MB + seconds % 600 * 1024, 80 * MB, -1);
+            case "Usage":
+                if (name.contains("Eden")) {
+                    return usage(64 * MB, edenUsed(seconds), 256 * MB, 640 * MB);
+                } else if (name.contains("Survivor")) {
+                    return usage(10 * MB, 5 * MB + seconds % 30 * MB / 2, 42 * MB, 42 * MB);
+                } else if (name.contains("Old Gen")) {
+                    return usage(170 * MB, oldGenUsed(seconds), 1365 * MB, 1365 * MB);
+                }
+                return usage(2 * MB, 20 * MB + seconds % 3600 * 1024, 24 * MB, 240 * MB);
+            case "CollectionCount":
+                return name.contains("Scavenge") ? seconds / 30 : seconds / 3600;
+            case "CollectionTime":
+                return name.contains("Scavenge") ? seconds / 30 * 12 : seconds / 3600 * 450;
+            case "ThreadCount":
+                return 40L + seconds % 17;
+            case "PeakThreadCount":
+                return 57L;
+            case "DaemonThreadCount":
+                return 30L;
+            case "TotalStartedThreadCount":
+                return 100L + seconds / 10;
+            case "LoadedClassCount":
+                return 5000L + seconds / 3600;
+            case "TotalLoadedClassCount":
+                return 5200L + seconds / 3600;
+            case "UnloadedClassCount":
+                return 200L;
+            case "Uptime":
+                return uptime;
+            default:
+                throw new AttributeNotFoundException(attribute);
+        }
+    }
+
+    /**
+     * The eden space fills up within 30 seconds and is emptied by a scavenge
+     */
+    private static long edenUsed(long seconds) {
+        return seconds % 30 * 20 * MB;
+    }
+
+    /**
+     * The old gen grows by what survives scavenges and is cleaned up every hour
+     */
+    private static long oldGenUsed(long seconds) {
+        return 150 * MB + seconds % 3600 * 256 * 1024;
+    }
+
+    private static CompositeData usage(long init, long used, long committed, long max) {
+        try {
+            return new CompositeDataSupport(MEMORY_USAGE, new String[] {"init", "used", "committed", "max"},
+                    new Object[] {init, used, committed, max});
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A bean whose attributes are computed by value()
+     */
+    private class Bean implements DynamicMBean {
+        private final String name;
+        private final MBeanInfo info;
+
+        Bean(String name, String... attributes) {
+            this.name = name;
+            MBeanAttributeInfo[] attrInfo = new MBeanAttributeInfo[attributes.length];
+            for (int i = 0; i < attributes.length; i++) {
+                String type = attributes[i].endsWith("Usage") ? USAGE_TYPE : "long";
+                attrInfo[i] = new MBeanAttributeInfo(attributes[i], type, attributes[i], true, false, false);
+            }
+            this.info = new MBeanInfo(SyntheticJvm.class.getName() + "$Bean", "Synthetic bean", attrInfo, null, null, null);
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            misbehave();
+            return value(name, attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            misbehave();
+            AttributeList list = new AttributeList(attributes.length);
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, value(name, attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // left out, as the MBeanServer does for attributes it cannot read
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Synthetic beans are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("Synthetic beans have no operations");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            return info;
+        }
+    }
+}
@@ -30,6 +30,8 @@ package de.l8systems.check_java;
 
 import javax.management.*;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Class to save the identifying attributes of a JMX attribute
@@ -55,6 +57,11 @@ public class AttributeIdentifier {
      */
     private String unit;
 
+    /**
+     * The role of the object this attribute resides in, if the object is not known by name
+     */
+    private BeanResolver.Role role;
+
     /**
      * Create a new identifier for a complex typed JMX attribute
      * @param obj the name of the object that contains this attribute
@@ -77,6 +84,20 @@ public class AttributeIdentifier {
         this(obj, attribute, null, unit);
     }
 
+    /**
+     * Create a new identifier for a complex typed JMX attribute of an object that is identified by its
+     * role, because its name depends on the target JVM. The name is looked up with a BeanResolver.
+     * @param role the role of the object that contains this attribute
+     * @param attribute the name of the attribute
+     * @param subAttribute the name of the sub-attribute, may be null
+     */
+    public AttributeIdentifier(BeanResolver.Role role, String attribute, String subAttribute, String unit) {
+        this.role = role;
+        this.attribute = attribute;
+        this.subAttribute = subAttribute;
+        this.unit = unit;
+    }
+
     /**
      * Return the name of the object that contains this attribute
      *
@@ -126,6 +147,14 @@ public class AttributeIdentifier {
         this.subAttribute = subAttribute;
     }
 
+    /**
+     * Return the role of the object that contains this attribute
+     * @return the role, or null if the object is known by name
+     */
+    public BeanResolver.Role getRole() {
+        return role;
+    }
+
     /**
      * Return the unit the value of this attribute will have
      * @return the unit
@@ -150,6 +179,93 @@ public class AttributeIdentifier {
      */
     public Result getValue(JMXClient client) throws AttributeNotFoundException, InstanceNotFoundException, IOException, ReflectionException, MalformedObjectNameException, MBeanException {
         Object val = client.getAttribute(getObjectName(), getAttribute(), getSubAttribute());
+        return toResult(val);
+    }
+
+    /**
+     * Retrieve the values of several JMX attributes in as few round trips as possible and return them.
+     *
+     * @param client the JMX server to retrieve them from
+     * @param ids the attributes to retrieve
+     * @return the Result objects, in the same order as the given identifiers
+     */
+    public static List<Result> getValues(JMXClient client, List<AttributeIdentifier> ids) throws AttributeNotFoundException, InstanceNotFoundException, IOException, ReflectionException, MalformedObjectNameException {
+        return toResults(ids, client.getAttributes(ids));
+    }
+
+    /**
+     * Retrieve the values of several JMX attributes, leaving out those the target does not have.
+     *
+     * @param client the JMX server to retrieve them from
+     * @param ids the attributes to retrieve
+     * @return the Result objects, in the same order as the given identifiers, with a null value for
+     *         those the target does not have
+     */
+    public static List<Result> getAvailableValues(JMXClient client, List<AttributeIdentifier> ids) throws IOException, ReflectionException, MalformedObjectNameException {
+        return toResults(ids, client.getAvailableAttributes(ids));
+    }
+
+    /**
+     * Retrieve the values of several JMX attributes with a query plan that was compiled for them before.
+     *
+     * @param client the JMX server to retrieve them from
+     * @param ids the attributes to retrieve, as the plan was compiled for
+     * @param plan the plan
+     * @return the Result objects, in the same order as the given identifiers
+     */
+    public static List<Result> getValues(JMXClient client, List<AttributeIdentifier> ids, QueryPlan plan) throws AttributeNotFoundException, InstanceNotFoundException, IOException, ReflectionException {
+        return toResults(ids, client.execute(plan));
+    }
+
+    /**
+     * Retrieve the values of several JMX attributes through a cache shared between check_java processes.
+     * Values missing from the cache are fetched from the JMX server and stored in the cache.
+     *
+     * @param client the JMX server to retrieve them from if they are not cached
+     * @param ids the attributes to retrieve
+     * @param cache the cache
+     * @param ttlMillis how long fetched values may be served from the cache
+     * @return the Result objects, in the same order as the given identifiers
+     */
+    public static List<Result> getValues(JMXClient client, List<AttributeIdentifier> ids, ResultCache cache, long ttlMillis) throws AttributeNotFoundException, InstanceNotFoundException, IOException, ReflectionException, MalformedObjectNameException {
+        List<Object> vals = cache.lookup(client.getUrl(), ids);
+        if (vals == null) {
+            vals = client.getAttributes(ids);
+            cache.store(client.getUrl(), ids, vals, ttlMillis);
+        }
+        return toResults(ids, vals);
+    }
+
+    /**
+     * Retrieve the values of several JMX attributes from the cache only, without connecting to the
+     * JMX server.
+     *
+     * @param url the URL of the JMX server
+     * @param ids the attributes to retrieve
+     * @param cache the cache
+     * @return the Result objects, in the same order as the given identifiers, or null unless all
+     *         values are cached and fresh
+     */
+    public static List<Result> getCachedValues(String url, List<AttributeIdentifier> ids, ResultCache cache) throws IOException {
+        List<Object> vals = cache.lookup(url, ids);
+        return vals != null ? toResults(ids, vals) : null;
+    }
+
+    private static List<Result> toResults(List<AttributeIdentifier> ids, List<Object> vals) {
+        List<Result> res = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            res.add(ids.get(i).toResult(vals.get(i)));
+        }
+        return res;
+    }
+
+    /**
+     * Convert a value that has already been retrieved from the JMX server into a Result.
+     *
+     * @param val the raw value of the (sub-)attribute
+     * @return a Result object with the value and the value's unit
+     */
+    public Result toResult(Object val) {
         Long intVal;
         if(val instanceof Number) {
             intVal = ((Number) val).longValue();
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularType;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A path into the value of a complex typed attribute, e.g. memoryUsageAfterGc[G1 Old Gen].used into
+ * the LastGcInfo of a garbage collector.
+ *
+ * A path is a sequence of segments. A name, separated by a dot, selects an item of a CompositeData.
+ * A key in brackets selects a row of a TabularData by its index, an element of an array or list by
+ * its position, or an entry of a map; for CompositeData it selects an item whose name contains dots.
+ * Rows of the key/value tables JMX uses for maps are unwrapped to their value, so map[key] reads the
+ * value stored for key. Several keys of a table with a composite index are separated by commas.
+ *
+ * Paths are parsed once and shared by all identifiers that use them.
+ */
+public class AttributePath {
+    private static final Map<String, AttributePath> parsed = new ConcurrentHashMap<>();
+
+    private final List<String> segments;
+    private final List<Boolean> indexed;
+
+    /**
+     * The path up to and including each segment, used to share intermediate values between paths
+     */
+    private final List<String> prefixes;
+
+    private AttributePath(List<String> segments, List<Boolean> indexed, List<String> prefixes) {
+        this.segments = segments;
+        this.indexed = indexed;
+        this.prefixes = prefixes;
+    }
+
+    /**
+     * Return the parsed form of a path
+     * @param path the path, e.g. "used" or "memoryUsageAfterGc[G1 Old Gen].used"
+     * @return the parsed path
+     * @throws IllegalArgumentException if a bracket is not closed
+     */
+    public static AttributePath of(String path) {
+        AttributePath res = parsed.get(path);
+        if (res == null) {
+            res = parse(path);
+            parsed.put(path, res);
+        }
+        return res;
+    }
+
+    private static AttributePath parse(String path) {
+        List<String> segments = new ArrayList<>();
+        List<Boolean> indexed = new ArrayList<>();
+        List<String> prefixes = new ArrayList<>();
+        int i = 0;
+        while (i < path.length()) {
+            char c = path.charAt(i);
+            if (c == '.') {
+                i++;
+            } else if (c == '[') {
+                int end = path.indexOf(']', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed [ in attribute path " + path);
+                }
+                segments.add(path.substring(i + 1, end));
+                indexed.add(true);
+                i = end + 1;
+                prefixes.add(path.substring(0, i));
+            } else {
+                int end = i;
+                while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+                    end++;
+                }
+                segments.add(path.substring(i, end));
+                indexed.add(false);
+                i = end;
+                prefixes.add(path.substring(0, i));
+            }
+        }
+        return new AttributePath(Collections.unmodifiableList(segments), Collections.unmodifiableList(indexed), Collections.unmodifiableList(prefixes));
+    }
+
+    /**
+     * Split an attribute given on the command line into the attribute and the path into its value
+     * @param attribute the attribute and path, e.g. "LastGcInfo.memoryUsageAfterGc[G1 Old Gen].used"
+     * @return the attribute and the path, or null as the path if there is none
+     */
+    public static String[] split(String attribute) {
+        int end = 0;
+        while (end < attribute.length() && attribute.charAt(end) != '.' && attribute.charAt(end) != '[') {
+            end++;
+        }
+        if (end == attribute.length()) {
+            return new String[] {attribute, null};
+        }
+        String path = attribute.charAt(end) == '.' ? attribute.substring(end + 1) : attribute.substring(end);
+        return new String[] {attribute.substring(0, end), path};
+    }
+
+    /**
+     * Return the value this path points to
+     * @param value the value of the attribute
+     * @return the value at the end of the path, or null if the path does not exist in the value
+     */
+    public Object extract(Object value) {
+        return extract(value, null);
+    }
+
+    /**
+     * Return the value this path points to, reusing the intermediate values other paths into the same
+     * attribute value have already looked up.
+     *
+     * @param value the value of the attribute
+     * @param shared the intermediate values by path prefix, shared by all paths into this value; may
+     *               be null
+     * @return the value at the end of the path, or null if the path does not exist in the value
+     */
+    public Object extract(Object value, Map<String, Object> shared) {
+        Object current = value;
+        int start = 0;
+        if (shared != null) {
+            for (int i = segments.size() - 1; i >= 0; i--) {
+                if (shared.containsKey(prefixes.get(i))) {
+                    current = shared.get(prefixes.get(i));
+                    start = i + 1;
+                    break;
+                }
+            }
+        }
+        for (int i = start; i < segments.size() && current != null; i++) {
+            current = step(current, segments.get(i), indexed.get(i));
+            if (shared != null) {
+                shared.put(prefixes.get(i), current);
+            }
+        }
+        return current;
+    }
+
+    private static Object step(Object value, String segment, boolean index) {
+        if (value instanceof CompositeData) {
+            CompositeData data = (CompositeData) value;
+            return data.containsKey(segment) ? data.get(segment) : null;
+        }
+        if (!index) {
+            return null;
+        }
+        if (value instanceof TabularData) {
+            return row((TabularData) value, segment);
+        }
+        if (value instanceof Map) {
+            return ((Map<?, ?>) value).get(segment);
+        }
+        int pos;
+        try {
+            pos = Integer.parseInt(segment.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            return pos >= 0 && pos < list.size() ? list.get(pos) : null;
+        }
+        if (value != null && value.getClass().isArray()) {
+            return pos >= 0 && pos < Array.getLength(value) ? Array.get(value, pos) : null;
+        }
+        return null;
+    }
+
+    /**
+     * Look up a row of a table by its index, given as text. The keys are converted to the types of
+     * the index items.
+     */
+    private static Object row(TabularData table, String segment) {
+        TabularType type = table.getTabularType();
+        List<String> indexNames = type.getIndexNames();
+        String[] keys = indexNames.size() == 1 ? new String[] {segment} : segment.split(",");
+        if (keys.length != indexNames.size()) {
+            return null;
+        }
+        Object[] index = new Object[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            index[i] = convert(keys[i].trim(), type.getRowType().getType(indexNames.get(i)));
+            if (index[i] == null) {
+                return null;
+            }
+        }
+        if (!table.containsKey(index)) {
+            return null;
+        }
+        CompositeData row = table.get(index);
+        if (row.getCompositeType().keySet().size() == 2 && row.containsKey("key") && row.containsKey("value")) {
+            return row.get("value");
+        }
+        return row;
+    }
+
+    private static Object convert(String key, OpenType<?> type) {
+        try {
+            switch (type.getClassName()) {
+                case "java.lang.String":
+                    return key;
+                case "java.lang.Integer":
+                    return Integer.valueOf(key);
+                case "java.lang.Long":
+                    return Long.valueOf(key);
+                case "java.lang.Short":
+                    return Short.valueOf(key);
+                case "java.lang.Byte":
+                    return Byte.valueOf(key);
+                case "java.lang.Boolean":
+                    return Boolean.valueOf(key);
+                case "java.lang.Character":
+                    return key.length() == 1 ? key.charAt(0) : null;
+                default:
+                    return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
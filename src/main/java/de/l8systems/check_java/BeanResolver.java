@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Finds the memory pool and garbage collector MBeans that play a certain role in the target JVM.
+ *
+ * Their names depend on the garbage collector the JVM runs with, e.g. the old generation is called
+ * "PS Old Gen" with the parallel collector, "G1 Old Gen" with G1 and "ZHeap" with ZGC. The names are
+ * discovered by querying all pools and collectors once and are then cached on disk per target, so
+ * repeated checks need no discovery round trips. The cache is only refreshed when it is older than
+ * its time to live or when a cached name no longer exists.
+ */
+public class BeanResolver {
+    /**
+     * The roles an MBean can be looked up by
+     */
+    public enum Role {
+        EDEN("java.lang:type=MemoryPool,*", "Eden", "ZGC Young Generation", "nursery-allocate"),
+        SURVIVOR("java.lang:type=MemoryPool,*", "Survivor", "nursery-survivor"),
+        OLD_GEN("java.lang:type=MemoryPool,*", "Old Gen", "Tenured Gen", "ZGC Old Generation", "ZHeap", "Shenandoah", "tenured"),
+        FULL_GC("java.lang:type=GarbageCollector,*", "MarkSweep", "G1 Old Generation", "ZGC Major Cycles", "ZGC Cycles", "Shenandoah Cycles", "global");
+
+        private final String query;
+        private final String[] patterns;
+
+        Role(String query, String... patterns) {
+            this.query = query;
+            this.patterns = patterns;
+        }
+
+        /**
+         * Find the MBean playing this role. The patterns are tried in order, the first one contained in
+         * the name of an MBean wins.
+         *
+         * @param names the names of all MBeans matching the query of this role
+         * @return the matching MBean, or null if there is none
+         */
+        private ObjectName match(Set<ObjectName> names) {
+            for (String pattern : patterns) {
+                for (ObjectName name : names) {
+                    String beanName = name.getKeyProperty("name");
+                    if (beanName != null && beanName.contains(pattern)) {
+                        return name;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * How long discovered names are trusted before they are discovered again
+     */
+    private static final long TTL_MILLIS = 60 * 60 * 1000L;
+
+    private static final String TIMESTAMP_KEY = "timestamp";
+    private static final String URL_KEY = "url";
+
+    private final String url;
+    private Map<Role, String> names;
+    private long timestamp;
+
+    /**
+     * Whether the names were read from the cache file, rather than discovered by this process
+     */
+    private boolean loaded;
+
+    /**
+     * Create a resolver for one target
+     * @param url the URL of the target JMX server
+     */
+    public BeanResolver(String url) {
+        this.url = url;
+    }
+
+    /**
+     * Replace the identifiers that refer to an MBean by its role with identifiers naming the actual MBean.
+     *
+     * @param client the JMX server to discover the names on if they are not cached
+     * @param ids the identifiers to resolve
+     * @return the resolved identifiers, in the same order
+     * @throws InstanceNotFoundException if the target has no MBean for a requested role
+     */
+    public List<AttributeIdentifier> resolve(JMXClient client, List<AttributeIdentifier> ids) throws InstanceNotFoundException, IOException, MalformedObjectNameException {
+        List<AttributeIdentifier> res = resolveAvailable(client, ids);
+        for (int i = 0; i < res.size(); i++) {
+            if (res.get(i) == null) {
+                throw new InstanceNotFoundException("The target has no MBean for role " + ids.get(i).getRole());
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Replace the identifiers that refer to an MBean by its role with identifiers naming the actual
+     * MBean, or with null if the target has no MBean for the role.
+     *
+     * @param client the JMX server to discover the names on if they are not cached
+     * @param ids the identifiers to resolve
+     * @return the resolved identifiers, in the same order
+     */
+    public List<AttributeIdentifier> resolveAvailable(JMXClient client, List<AttributeIdentifier> ids) throws IOException, MalformedObjectNameException {
+        if (!hasRoles(ids)) {
+            return ids;
+        }
+
+        List<AttributeIdentifier> res = new ArrayList<AttributeIdentifier>(ids.size());
+        for (AttributeIdentifier id : ids) {
+            if (id.getRole() == null) {
+                res.add(id);
+            } else {
+                String name = getName(client, id.getRole());
+                res.add(name != null ? new AttributeIdentifier(name, id.getAttribute(), id.getSubAttribute(), id.getUnit()) : null);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Return whether any of the identifiers refers to an MBean by its role
+     * @param ids the identifiers
+     * @return true if at least one needs to be resolved
+     */
+    public static boolean hasRoles(List<AttributeIdentifier> ids) {
+        for (AttributeIdentifier id : ids) {
+            if (id.getRole() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forget the cached names, e.g. because one of them no longer exists after the target was restarted
+     * with another garbage collector.
+     */
+    public synchronized void invalidate() {
+        names = null;
+        try {
+            File cacheFile = cacheFile();
+            if (!cacheFile.delete() && cacheFile.exists()) {
+                cacheFile.deleteOnExit();
+            }
+        } catch (IOException e) {
+            // there is no cache to forget
+        }
+    }
+
+    /**
+     * Return the name of the MBean playing a role, or null if the target has none
+     */
+    private synchronized String getName(JMXClient client, Role role) throws IOException, MalformedObjectNameException {
+        if (names == null || System.currentTimeMillis() - timestamp > TTL_MILLIS) {
+            if (!load()) {
+                discover(client);
+            }
+        }
+
+        String name = names.get(role);
+        if (name == null && loaded) {
+            // the cached names may stem from a run with another collector; names discovered by this
+            // process are trusted, so a role the target lacks is not looked for on every call
+            discover(client);
+            name = names.get(role);
+        }
+        return name;
+    }
+
+    /**
+     * Query all memory pools and garbage collectors and match them against the roles
+     */
+    private void discover(JMXClient client) throws IOException, MalformedObjectNameException {
+        Map<String, Set<ObjectName>> queried = new HashMap<String, Set<ObjectName>>();
+        names = new EnumMap<Role, String>(Role.class);
+        for (Role role : Role.values()) {
+            Set<ObjectName> candidates = queried.get(role.query);
+            if (candidates == null) {
+                candidates = client.queryNames(role.query);
+                queried.put(role.query, candidates);
+            }
+            ObjectName match = role.match(candidates);
+            if (match != null) {
+                names.put(role, match.getCanonicalName());
+            }
+        }
+        timestamp = System.currentTimeMillis();
+        loaded = false;
+        store();
+    }
+
+    /**
+     * Read the names from the cache file
+     * @return true if the cache file exists, belongs to this target and is still fresh
+     */
+    private boolean load() {
+        Properties props = new Properties();
+        try {
+            File cacheFile = cacheFile();
+            if (!cacheFile.isFile()) {
+                return false;
+            }
+            try (InputStream in = new FileInputStream(cacheFile)) {
+                props.load(in);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+
+        long ts;
+        try {
+            ts = Long.parseLong(props.getProperty(TIMESTAMP_KEY, "0"));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (!url.equals(props.getProperty(URL_KEY)) || System.currentTimeMillis() - ts > TTL_MILLIS) {
+            return false;
+        }
+
+        names = new EnumMap<Role, String>(Role.class);
+        for (Role role : Role.values()) {
+            String name = props.getProperty(role.name());
+            if (name != null) {
+                names.put(role, name);
+            }
+        }
+        timestamp = ts;
+        loaded = true;
+        return true;
+    }
+
+    /**
+     * Write the names to the cache file. A failure to write the cache is not fatal, the names are just
+     * discovered again on the next run.
+     */
+    private void store() {
+        Properties props = new Properties();
+        props.setProperty(URL_KEY, url);
+        props.setProperty(TIMESTAMP_KEY, Long.toString(timestamp));
+        for (Map.Entry<Role, String> entry : names.entrySet()) {
+            props.setProperty(entry.getKey().name(), entry.getValue());
+        }
+
+        try {
+            File cacheFile = cacheFile();
+            File tmp = File.createTempFile("beans", ".tmp", cacheFile.getParentFile());
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                props.store(out, "check_java MBean names");
+            }
+            Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // not cached then
+        }
+    }
+
+    private File cacheFile() throws IOException {
+        return new File(StateDirectory.get(), "beans-" + Integer.toHexString(url.hashCode()) + ".properties");
+    }
+}
@@ -0,0 +1,634 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A check of one CheckType: the attributes it needs and how its results are reported to Nagios.
+ */
+public class Check {
+    /**
+     * The clock of the target JVM that rates are computed against. It is reset when the JVM restarts.
+     */
+    private static final AttributeIdentifier UPTIME = new AttributeIdentifier("java.lang:type=Runtime", "Uptime", "ms");
+
+    private Options.CheckType checkType;
+    private String name;
+    private List<AttributeIdentifier> attributes;
+    private String header;
+
+    /**
+     * For checks of a rate: the unit of the rate and the period it refers to in milliseconds
+     */
+    private String rateUnit;
+    private long ratePeriod;
+
+    /**
+     * For checks on GC notifications: the window they look back and the percentile of pauses they report
+     */
+    private long windowMillis;
+    private int pausePercentile;
+
+    /**
+     * For the Attribute check: the MBeans and attribute it reads and how it combines them
+     */
+    private PatternQuery query;
+
+    /**
+     * For the HotThreads check: the sampler of the threads' CPU time
+     */
+    private HotThreads hotThreads;
+
+    /**
+     * For checks over a window of samples: the percentile they report instead of the current value
+     */
+    private Integer percentile;
+
+    /**
+     * For checks on the history of an attribute: the statistic they report, the unit memory values are
+     * reported in, and whether lower values are worse
+     */
+    private Options.CheckType seriesType;
+    private String seriesUnit;
+    private boolean lowerIsWorse;
+
+    /**
+     * Trends are forecast no further than a year ahead
+     */
+    private static final long MAX_FORECAST_HOURS = 8760;
+
+    /**
+     * Create the check for a check type
+     * @param checkType the type of the check
+     * @param unit the unit memory values shall be reported in, may be null
+     */
+    public Check(Options.CheckType checkType, String unit) {
+        this(checkType, unit, 5);
+    }
+
+    /**
+     * Create the check for a check type
+     * @param checkType the type of the check
+     * @param unit the unit memory values shall be reported in, may be null
+     * @param window the minutes checks on GC notifications look back
+     */
+    public Check(Options.CheckType checkType, String unit, int window) {
+        this.windowMillis = window * 60000L;
+        this.checkType = checkType;
+        this.attributes = new LinkedList<AttributeIdentifier>();
+        this.header = "UNKNOWN";
+
+        List<AttributeIdentifier> attrs = this.attributes;
+        switch (checkType) {
+            case HeapMem:
+                attrs.add(new AttributeIdentifier("java.lang:type=Memory", "HeapMemoryUsage", "used", unit));
+                attrs.add(new AttributeIdentifier("java.lang:type=Memory", "HeapMemoryUsage", "init", unit));
+                attrs.add(new AttributeIdentifier("java.lang:type=Memory", "HeapMemoryUsage", "committed", unit));
+                attrs.add(new AttributeIdentifier("java.lang:type=Memory", "HeapMemoryUsage", "max", unit));
+                header = "Heap Memory Usage";
+                break;
+
+            case NonHeapMem:
+                attrs.add(new AttributeIdentifier("java.lang:type=Memory", "NonHeapMemoryUsage", "used", unit));
+                attrs.add(new AttributeIdentifier("java.lang:type=Memory", "NonHeapMemoryUsage", "init", unit));
+                attrs.add(new AttributeIdentifier("java.lang:type=Memory", "NonHeapMemoryUsage", "committed", unit));
+                attrs.add(new AttributeIdentifier("java.lang:type=Memory", "NonHeapMemoryUsage", "max", unit));
+                header = "Non-Heap Memory Usage";
+                break;
+
+            case MemPoolEden:
+                attrs.add(new AttributeIdentifier(BeanResolver.Role.EDEN, "Usage", "used", unit));
+                attrs.add(new AttributeIdentifier(BeanResolver.Role.EDEN, "Usage", "init", unit));
+                attrs.add(new AttributeIdentifier(BeanResolver.Role.EDEN, "Usage", "committed", unit));
+                attrs.add(new AttributeIdentifier(BeanResolver.Role.EDEN, "Usage", "max", unit));
+                header = "Memory Pool Eden Space Usage";
+                break;
+
+            case MemPoolSurvivor:
+                attrs.add(new AttributeIdentifier(BeanResolver.Role.SURVIVOR, "Usage", "used", unit));
+                attrs.add(new AttributeIdentifier(BeanResolver.Role.SURVIVOR, "Usage", "init", unit));
+                attrs.add(new AttributeIdentifier(BeanResolver.Role.SURVIVOR, "Usage", "committed", unit));
+                attrs.add(new AttributeIdentifier(BeanResolver.Role.SURVIVOR, "Usage", "max", unit));
+                header = "Memory Pool Survivor Space Usage";
+                break;
+
+            case MemPoolCodeCache:
+                attrs.add(new AttributeIdentifier("java.lang:type=MemoryPool,name=Code Cache", "Usage", "used", unit));
+                attrs.add(new AttributeIdentifier("java.lang:type=MemoryPool,name=Code Cache", "Usage", "init", unit));
+                attrs.add(new AttributeIdentifier("java.lang:type=MemoryPool,name=Code Cache", "Usage", "committed", unit));
+                attrs.add(new AttributeIdentifier("java.lang:type=MemoryPool,name=Code Cache", "Usage", "max", unit));
+                header = "Memory Pool Code Cache Usage";
+                break;
+
+            case MemPoolOldGen:
+                attrs.add(new AttributeIdentifier(BeanResolver.Role.OLD_GEN, "Usage", "used", unit));
+                attrs.add(new AttributeIdentifier(BeanResolver.Role.OLD_GEN, "Usage", "init", unit));
+                attrs.add(new AttributeIdentifier(BeanResolver.Role.OLD_GEN, "Usage", "committed", unit));
+                attrs.add(new AttributeIdentifier(BeanResolver.Role.OLD_GEN, "Usage", "max", unit));
+                header = "Memory Pool Old Gen Usage";
+                break;
+
+            case GCMarkSweepCount:
+                attrs.add(new AttributeIdentifier(BeanResolver.Role.FULL_GC, "CollectionCount", null, ""));
+                header = "Garbage Collection Count";
+                break;
+
+            case GCMarkSweepTime:
+                attrs.add(new AttributeIdentifier(BeanResolver.Role.FULL_GC, "CollectionTime", null, "ms"));
+                header = "Garbage Collection Time";
+                break;
+
+            case ClassLoading:
+                attrs.add(new AttributeIdentifier("java.lang:type=ClassLoading", "LoadedClassCount", ""));
+                attrs.add(new AttributeIdentifier("java.lang:type=ClassLoading", "TotalLoadedClassCount", ""));
+                attrs.add(new AttributeIdentifier("java.lang:type=ClassLoading", "UnloadedClassCount", ""));
+                header = "Loaded Classes";
+                break;
+
+            case ThreadCount:
+                attrs.add(new AttributeIdentifier("java.lang:type=Threading", "ThreadCount", ""));
+                attrs.add(new AttributeIdentifier("java.lang:type=Threading", "TotalStartedThreadCount", ""));
+                attrs.add(new AttributeIdentifier("java.lang:type=Threading", "DaemonThreadCount", ""));
+                header = "Threads";
+                break;
+
+            case GCMarkSweepCountRate:
+                attrs.add(new AttributeIdentifier(BeanResolver.Role.FULL_GC, "CollectionCount", null, ""));
+                attrs.add(UPTIME);
+                header = "Garbage Collections per Minute";
+                rateUnit = "/min";
+                ratePeriod = 60000;
+                break;
+
+            case GCMarkSweepTimeRate:
+                attrs.add(new AttributeIdentifier(BeanResolver.Role.FULL_GC, "CollectionTime", null, "ms"));
+                attrs.add(UPTIME);
+                header = "Garbage Collection Time per Second";
+                rateUnit = "ms/s";
+                ratePeriod = 1000;
+                break;
+
+            case ClassLoadingRate:
+                attrs.add(new AttributeIdentifier("java.lang:type=ClassLoading", "TotalLoadedClassCount", ""));
+                attrs.add(UPTIME);
+                header = "Loaded Classes per Minute";
+                rateUnit = "/min";
+                ratePeriod = 60000;
+                break;
+
+            case GCMaxPause:
+                header = "Maximum GC Pause";
+                pausePercentile = 100;
+                break;
+
+            case GCPauseP99:
+                header = "99th Percentile GC Pause";
+                pausePercentile = 99;
+                break;
+
+            case Attribute:
+                header = "Attribute";
+                break;
+
+            case HotThreads:
+                header = "Busiest Thread CPU Usage";
+                break;
+
+            case HeapMemAvg:
+                attrs.add(new AttributeIdentifier("java.lang:type=Memory", "HeapMemoryUsage", "used", "B"));
+                header = "Heap Memory Usage Moving Average";
+                seriesType = checkType;
+                break;
+
+            case OldGenTrend:
+                attrs.add(new AttributeIdentifier(BeanResolver.Role.OLD_GEN, "Usage", "used", "B"));
+                header = "Memory Pool Old Gen Post-GC Trend";
+                seriesType = checkType;
+                break;
+
+            case OldGenExhaustion:
+                attrs.add(new AttributeIdentifier(BeanResolver.Role.OLD_GEN, "Usage", "used", "B"));
+                attrs.add(new AttributeIdentifier(BeanResolver.Role.OLD_GEN, "Usage", "max", "B"));
+                header = "Hours until Old Gen is Exhausted";
+                seriesType = checkType;
+                lowerIsWorse = true;
+                break;
+        }
+        seriesUnit = unit != null ? unit : "B";
+    }
+
+    /**
+     * Create the check for a check type defined in a configuration file
+     * @param definition the definition of the check type
+     * @param unit the unit of attributes the definition gives no unit for, may be null
+     * @param window the minutes a percentile is reported over
+     */
+    public Check(CheckDefinition definition, String unit, int window) {
+        this.windowMillis = window * 60000L;
+        this.name = definition.getName();
+        this.header = definition.getHeader();
+        this.attributes = new LinkedList<AttributeIdentifier>();
+        for (AttributeIdentifier id : definition.getAttributes()) {
+            String attrUnit = id.getUnit() != null ? id.getUnit() : (unit != null ? unit : "");
+            attributes.add(new AttributeIdentifier(id.getObjectName(), id.getAttribute(), id.getSubAttribute(), attrUnit));
+        }
+    }
+
+    /**
+     * Return the type of this check
+     * @return the check type, or null for a check type defined in a configuration file
+     */
+    public Options.CheckType getCheckType() {
+        return checkType;
+    }
+
+    /**
+     * Return the name of the type of this check, as given with -t
+     * @return the name of the check type
+     */
+    public String getName() {
+        return checkType != null ? checkType.name() : name;
+    }
+
+    /**
+     * Return the attributes this check needs. The first one is the one the thresholds apply to.
+     * @return the attributes
+     */
+    public List<AttributeIdentifier> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * Return the human readable name of this check
+     * @return the header of the status line
+     */
+    public String getHeader() {
+        return header;
+    }
+
+    /**
+     * Return whether this check reports the rate of a counter instead of its value
+     * @return true for rate checks
+     */
+    public boolean isRate() {
+        return ratePeriod > 0;
+    }
+
+    /**
+     * Return whether this check reports a statistic over the history of an attribute, which is kept in
+     * a TimeSeries
+     * @return true for checks on the history of an attribute
+     */
+    public boolean isSeries() {
+        return seriesType != null;
+    }
+
+    /**
+     * Return the query of an Attribute check
+     * @return the query, or null if this is not an Attribute check
+     */
+    public PatternQuery getQuery() {
+        return query;
+    }
+
+    /**
+     * Set the query of an Attribute check
+     * @param query the query
+     */
+    public void setQuery(PatternQuery query) {
+        this.query = query;
+        this.header = query.getDescription();
+    }
+
+    /**
+     * Return the thread sampler of a HotThreads check
+     * @return the sampler, or null if this is not a HotThreads check
+     */
+    public HotThreads getHotThreads() {
+        return hotThreads;
+    }
+
+    /**
+     * Set the thread sampler of a HotThreads check
+     * @param hotThreads the sampler
+     */
+    public void setHotThreads(HotThreads hotThreads) {
+        this.hotThreads = hotThreads;
+    }
+
+    /**
+     * Return how many of the results of this check have names that are the same in every run. The
+     * results after them are named after what they were found for, e.g. an MBean, and come and go
+     * with it.
+     *
+     * @param res the results of a run, as returned by derive()
+     * @return the number of results at the start of the list whose names are fixed
+     */
+    public int getFixedResultCount(List<Result> res) {
+        if (query == null) {
+            return res.size();
+        }
+        // the aggregate and the bean count
+        return Math.min(res.size(), percentile != null ? 3 : 2);
+    }
+
+    /**
+     * Return the lines printed after the values of this check, e.g. the stack traces of hot threads
+     * @param res the results of this check, as returned by derive()
+     * @return the lines, empty if there are none
+     */
+    public static String getDetails(List<Result> res) {
+        StringBuilder sb = new StringBuilder();
+        for (Result r : res) {
+            if (r.getDetails() != null) {
+                sb.append(r.getDetails());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Return the percentile over the window this check reports instead of the current value
+     * @return the percentile, 100 for the largest value, or null if the current value is reported
+     */
+    public Integer getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * Report a percentile over the window instead of the current value
+     * @param percentile the percentile, 100 for the largest value
+     */
+    public void setPercentile(Integer percentile) {
+        this.percentile = percentile;
+        this.header = header + " " + getPercentileName();
+    }
+
+    /**
+     * For checks where lower is worse the percentile is counted from the bottom, so -p p95 reports
+     * the 5th percentile and -p max the smallest value
+     */
+    private String getPercentileName() {
+        if (lowerIsWorse) {
+            return percentile == 100 ? "Min" : "P" + (100 - percentile);
+        }
+        return percentile == 100 ? "Max" : "P" + percentile;
+    }
+
+    /**
+     * Return whether this check is answered from the GC notifications received by a GcMonitor
+     * @return true for checks on GC notifications
+     */
+    public boolean isGcNotification() {
+        return pausePercentile > 0;
+    }
+
+    /**
+     * Turn the fetched values into the values the thresholds apply to. For most checks these are the
+     * fetched values themselves. Rate checks compare the counter and the target's uptime with the
+     * previous sample of the same target, which is kept in the StateStore, and report the increase of
+     * the counter per period, followed by the counter itself. On the first run and after the target
+     * was restarted there is no usable previous sample and the rate is reported as 0. Checks on the
+     * history of an attribute add the fetched value to its TimeSeries and report a statistic of it,
+     * followed by the fetched value. Checks on GC notifications fetch no values at all, they report a
+     * summary of the pauses in their window. If a percentile is set, the value the thresholds apply to
+     * is added to its Histogram, and the percentile over the window is reported in its place, followed
+     * by all values as before. For checks where lower is worse the percentile is taken from the lower
+     * tail.
+     *
+     * @param url the URL of the target the values were fetched from
+     * @param res the results of this check's attributes, in the same order as getAttributes()
+     * @return the results to evaluate
+     * @throws IOException if the state store cannot be accessed
+     */
+    public List<Result> derive(String url, List<Result> res) throws IOException {
+        List<Result> derived = deriveCurrent(url, res);
+        if (percentile == null || derived.isEmpty() || derived.get(0).getValue() == null) {
+            return derived;
+        }
+
+        Result current = derived.get(0);
+        String key = url + "|" + getName() + "|" + header + "|" + current.getName() + "|" + current.getUnit();
+        Histogram.Stats stats = Histogram.get(key).record(System.currentTimeMillis(), current.getValue(), windowMillis, percentile, lowerIsWorse);
+
+        // the value is in the unit of the check already, it must not be converted again
+        Result stat = new Result(stats.getValue(), current.getUnit());
+        stat.setName(current.getName() + getPercentileName());
+        List<Result> windowed = new ArrayList<Result>(derived.size() + 1);
+        windowed.add(stat);
+        windowed.addAll(derived);
+        return windowed;
+    }
+
+    private List<Result> deriveCurrent(String url, List<Result> res) throws IOException {
+        if (isGcNotification()) {
+            return GcMonitor.get(url).summarize(windowMillis, pausePercentile);
+        }
+        if (isSeries()) {
+            return deriveFromSeries(url, res);
+        }
+        if (!isRate()) {
+            return res;
+        }
+
+        Result counter = res.get(0);
+        long uptime = res.get(1).getValue();
+        AttributeIdentifier attr = attributes.get(0);
+        String key = url + "|" + attr.getRole() + "|" + attr.getObjectName() + "|" + attr.getAttribute();
+        StateStore.Sample prev = StateStore.getDefault().swap(key, uptime, counter.getValue());
+
+        long rate = 0;
+        if (prev != null && uptime > prev.getTime() && counter.getValue() >= prev.getValue()) {
+            rate = (counter.getValue() - prev.getValue()) * ratePeriod / (uptime - prev.getTime());
+        }
+
+        List<Result> derived = new ArrayList<Result>(2);
+        derived.add(new Result(rate, rateUnit, counter.getName() + "Rate"));
+        derived.add(counter);
+        return derived;
+    }
+
+    private List<Result> deriveFromSeries(String url, List<Result> res) throws IOException {
+        Result used = res.get(0);
+        AttributeIdentifier attr = attributes.get(0);
+        String key = url + "|" + attr.getRole() + "|" + attr.getObjectName() + "|" + attr.getAttribute() + "|" + attr.getSubAttribute();
+        TimeSeries.Stats stats = TimeSeries.get(key).append(System.currentTimeMillis(), used.getValue(), windowMillis);
+
+        List<Result> derived = new ArrayList<Result>(3);
+        switch (seriesType) {
+            case HeapMemAvg:
+                derived.add(new Result(stats.getMovingAverage(), seriesUnit, "usedAverage"));
+                break;
+            case OldGenTrend:
+                derived.add(new Result(stats.getSlope() != null ? Math.round(stats.getSlope()) / scale(seriesUnit) : 0, seriesUnit + "/h", "baselineTrend"));
+                derived.add(new Result(stats.getBaseline(), seriesUnit, "baseline"));
+                break;
+            case OldGenExhaustion:
+                long max = res.get(1).getValue();
+                long hours = MAX_FORECAST_HOURS;
+                if (stats.getSlope() != null && stats.getSlope() > 0 && max > 0) {
+                    hours = Math.max(0, Math.min(MAX_FORECAST_HOURS, (long) ((max - stats.getBaseline()) / stats.getSlope())));
+                }
+                derived.add(new Result(hours, "h", "hoursToExhaustion"));
+                derived.add(new Result(stats.getSlope() != null ? Math.round(stats.getSlope()) / scale(seriesUnit) : 0, seriesUnit + "/h", "baselineTrend"));
+                derived.add(new Result(max, seriesUnit, "max"));
+                break;
+            default:
+                break;
+        }
+        derived.add(new Result(used.getValue(), seriesUnit, used.getName()));
+        return derived;
+    }
+
+    /**
+     * Return the number of bytes in a unit Result converts memory values to
+     */
+    private static long scale(String unit) {
+        switch (unit) {
+            case "KB":
+                return 1024;
+            case "MB":
+                return 1048576;
+            case "GB":
+                return 1073741824;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Compare the results against the thresholds and print the status line and performance data.
+     *
+     * @param res the results of this check, as returned by derive()
+     * @param warn the warning threshold
+     * @param crit the critical threshold
+     * @param out the stream to print the Nagios output to
+     * @return the Nagios status code
+     */
+    public int evaluate(List<Result> res, int warn, int crit, PrintStream out) {
+        int statval = getStatus(res, warn, crit);
+        String status = getStatusName(statval);
+
+        String perfData = "";
+        out.println(status + ": " + header + ": " + res.get(0).getValue() + " " + res.get(0).getUnit() + "/" + warn + "/" + crit);
+        for(int i = 0; i < res.size(); i ++) {
+            Result r = res.get(i);
+            if(i == 0) {
+                out.println(quoteLabel(r.getName()) + "=" + r.getValue() + r.getUnit() + ";" + warn + ";" + crit);
+                perfData = " | " + perfDataLabel(r.getName()) + "=" + r.getValue() + r.getUnit() + ";" + warn + ";"+crit+";;";
+            } else {
+                out.println(quoteLabel(r.getName()) + "=" + r.getValue() + r.getUnit());
+            }
+        }
+        out.print(getDetails(res));
+        out.println(perfData);
+        return statval;
+    }
+
+    /**
+     * Compare the results against the thresholds. A HotThreads check is CRITICAL whenever threads are
+     * deadlocked.
+     *
+     * @param res the results of this check, as returned by derive()
+     * @param warn the warning threshold
+     * @param crit the critical threshold
+     * @return the Nagios status code
+     */
+    public int getStatus(List<Result> res, int warn, int crit) {
+        if (hotThreads != null) {
+            for (Result r : res) {
+                if (HotThreads.DEADLOCKED.equals(r.getName()) && r.getValue() > 0) {
+                    // deadlocked threads never recover
+                    return 2;
+                }
+            }
+        }
+        if (lowerIsWorse) {
+            if (res.get(0).getValue() < crit) {
+                return 2;
+            } else if (res.get(0).getValue() < warn) {
+                return 1;
+            } else {
+                return 0;
+            }
+        }
+        if (res.get(0).getValue() > crit) {
+            return 2;
+        } else if (res.get(0).getValue() > warn) {
+            return 1;
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Return a label as Nagios performance data allows it. A label may contain anything but equals
+     * signs, which are replaced, but has to be quoted if it contains spaces, e.g. a path into
+     * TabularData such as memoryUsageAfterGc[G1 Old Gen].used. Quotes within it are doubled.
+     *
+     * @param label the name of a value
+     * @return the label, quoted only where needed
+     */
+    public static String perfDataLabel(String label) {
+        String l = label.replace('=', '_');
+        return l.matches(".*[\\s'].*") ? quoteLabel(l) : l;
+    }
+
+    /**
+     * Return a label quoted as in performance data, as check_java prints it in the long text
+     * @param label the name of a value
+     * @return the quoted label
+     */
+    public static String quoteLabel(String label) {
+        return "'" + label.replace('=', '_').replace("'", "''") + "'";
+    }
+
+    /**
+     * Return the name check_java prints for a Nagios status code
+     * @param statval the status code
+     * @return the name of the status
+     */
+    public static String getStatusName(int statval) {
+        switch (statval) {
+            case 0:
+                return "OK";
+            case 1:
+                return "WARN";
+            case 2:
+                return "CRITICAL";
+            default:
+                return "UNKNOWN";
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * Check types defined in a configuration file, given with -f.
+ *
+ * The file is a properties file. Every key starts with the name of the check type it belongs to:
+ * <pre>
+ * TomcatBusy.header = Busy Tomcat Threads
+ * TomcatBusy.warn = 150
+ * TomcatBusy.crit = 190
+ * TomcatBusy.status = 1
+ * TomcatBusy.attribute.1.object = Catalina:type=ThreadPool,name="http-nio-8080"
+ * TomcatBusy.attribute.1.name = currentThreadsBusy
+ * TomcatBusy.attribute.2.object = Catalina:type=ThreadPool,name="http-nio-8080"
+ * TomcatBusy.attribute.2.name = maxThreads
+ * </pre>
+ * Attributes are numbered from 1 and may be paths into complex values, e.g.
+ * HeapMemoryUsage.used. status is the number of the attribute the thresholds apply to, the first one by
+ * default. unit sets the unit of all attributes, attribute.N.unit that of one attribute; without
+ * either the unit given with -U applies.
+ *
+ * Nagios starts a new check_java for every check, so for large files the definitions a check uses are
+ * kept in binary form in the StateDirectory, together with the compiled QueryPlan of the check. As
+ * long as the content of the configuration file is unchanged, later runs read them from there
+ * instead of parsing the file and compiling the plan again. In a fresh JVM, parsing a file of 140 KB
+ * takes about 55 ms and reading the compiled form about 11 ms, but a file of 1 KB is parsed in 6 ms,
+ * faster than the compiled form can be read, so small files are always parsed.
+ */
+public class CheckConfig {
+    private static final long MAGIC = 0x636a706c616e0002L;
+
+    /**
+     * The size from which reading the compiled form of a file is faster than parsing it
+     */
+    private static final long MIN_CACHED_SIZE = 16 * 1024;
+
+    /**
+     * The file the compiled form is kept in, null if the configuration file is parsed every time
+     */
+    private final File cacheFile;
+    private final String stamp;
+    private final Map<String, CheckDefinition> definitions;
+    private QueryPlan plan;
+
+    private CheckConfig(File cacheFile, String stamp, Map<String, CheckDefinition> definitions, QueryPlan plan) {
+        this.cacheFile = cacheFile;
+        this.stamp = stamp;
+        this.definitions = definitions;
+        this.plan = plan;
+    }
+
+    /**
+     * Load the definitions of check types from a configuration file, or from the compiled form of a
+     * previous run with the same file and check types.
+     *
+     * @param file the configuration file
+     * @param names the check types given with -t; those not defined in code must be defined in the file
+     * @return the definitions of the check types not defined in code
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if a check type is not defined or its definition is invalid
+     */
+    public static CheckConfig load(File file, List<String> names) throws IOException {
+        byte[] content = Files.readAllBytes(file.toPath());
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        String stamp = file.getAbsolutePath() + "|" + content.length + "|" + Long.toHexString(crc.getValue());
+        File cacheFile = content.length >= MIN_CACHED_SIZE
+                ? new File(StateDirectory.get(), "plan-" + Long.toHexString(StateStore.hash(file.getAbsolutePath() + "|" + names)) + ".bin")
+                : null;
+
+        if (cacheFile != null && cacheFile.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+                if (in.readLong() == MAGIC && in.readUTF().equals(stamp)) {
+                    Map<String, CheckDefinition> definitions = new LinkedHashMap<>();
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        CheckDefinition def = CheckDefinition.read(in);
+                        definitions.put(def.getName(), def);
+                    }
+                    QueryPlan plan = in.readBoolean() ? QueryPlan.read(in) : null;
+                    return new CheckConfig(cacheFile, stamp, definitions, plan);
+                }
+            } catch (IOException e) {
+                // unreadable or written by another version, compile again
+            }
+        }
+
+        Properties props = new Properties();
+        props.load(new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8));
+        Map<String, CheckDefinition> definitions = new LinkedHashMap<>();
+        for (String name : names) {
+            if (!Options.isBuiltInType(name)) {
+                definitions.put(name, parse(props, name));
+            }
+        }
+        CheckConfig config = new CheckConfig(cacheFile, stamp, definitions, null);
+        if (cacheFile != null) {
+            config.save();
+        }
+        return config;
+    }
+
+    private static CheckDefinition parse(Properties props, String name) {
+        String unit = props.getProperty(name + ".unit");
+        List<AttributeIdentifier> attrs = new ArrayList<>();
+        for (int i = 1; props.getProperty(name + ".attribute." + i + ".name") != null; i++) {
+            String prefix = name + ".attribute." + i;
+            String obj = props.getProperty(prefix + ".object");
+            if (obj == null) {
+                throw new IllegalArgumentException(prefix + ".object is missing in the check configuration");
+            }
+            String[] split = AttributePath.split(props.getProperty(prefix + ".name").trim());
+            attrs.add(new AttributeIdentifier(obj.trim(), split[0], split[1], props.getProperty(prefix + ".unit", unit)));
+        }
+        if (attrs.isEmpty()) {
+            throw new IllegalArgumentException("Unknown type " + name);
+        }
+
+        int status = Integer.parseInt(props.getProperty(name + ".status", "1").trim());
+        if (status < 1 || status > attrs.size()) {
+            throw new IllegalArgumentException(name + ".status must be the number of one of its attributes");
+        }
+        attrs.add(0, attrs.remove(status - 1));
+
+        return new CheckDefinition(name, props.getProperty(name + ".header", name).trim(), attrs,
+                parseThreshold(props, name + ".warn"), parseThreshold(props, name + ".crit"));
+    }
+
+    private static Integer parseThreshold(Properties props, String key) {
+        String val = props.getProperty(key);
+        return val != null ? Integer.valueOf(val.trim()) : null;
+    }
+
+    /**
+     * Return the definition of a check type
+     * @param name the name of the check type
+     * @return the definition, or null if the check type is defined in code
+     */
+    public CheckDefinition getDefinition(String name) {
+        return definitions.get(name);
+    }
+
+    /**
+     * Return the query plan compiled for the check types by a previous run
+     * @return the plan, or null if there is none yet
+     */
+    public QueryPlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * Keep a query plan for the check types, so later runs need not compile it
+     * @param plan the plan
+     */
+    public void setPlan(QueryPlan plan) {
+        this.plan = plan;
+        if (cacheFile == null) {
+            return;
+        }
+        try {
+            save();
+        } catch (IOException e) {
+            // the plan is only an optimisation, it will be compiled again next time
+        }
+    }
+
+    private void save() throws IOException {
+        File tmp = File.createTempFile("plan", ".tmp", cacheFile.getParentFile());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeLong(MAGIC);
+            out.writeUTF(stamp);
+            out.writeInt(definitions.size());
+            for (CheckDefinition def : definitions.values()) {
+                def.write(out);
+            }
+            out.writeBoolean(plan != null);
+            if (plan != null) {
+                plan.write(out);
+            }
+        }
+        Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
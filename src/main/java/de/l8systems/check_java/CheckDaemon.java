@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import javax.management.JMException;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long running check_java that keeps its JMX connections open between checks.
+ *
+ * The daemon listens on a port of the loopback interface. A client sends the command line arguments of
+ * a check as one line, separated by tabs. The daemon answers with the Nagios status code on the first
+ * line, followed by the output check_java would have printed, and closes the connection.
+ */
+public class CheckDaemon implements Runnable {
+    private static final int WORKER_THREADS = 32;
+
+    /**
+     * How many checks of the same target run at the same time unless the daemon is started with -M
+     */
+    public static final int DEFAULT_MAX_CONCURRENT = 4;
+
+    private final int port;
+    private final ConnectionPool pool;
+    private final ExecutorService workers = Executors.newFixedThreadPool(WORKER_THREADS);
+    private final PollScheduler scheduler;
+
+    /**
+     * Create a new daemon
+     * @param port the port to listen on
+     */
+    public CheckDaemon(int port) {
+        this(port, null, DEFAULT_MAX_CONCURRENT);
+    }
+
+    /**
+     * Create a new daemon that serves values it fetched before as long as a scheduler allows
+     * @param port the port to listen on
+     * @param scheduler the scheduler that decides which values are fetched again, may be null
+     * @param maxConcurrent how many checks of the same target may run at the same time, 0 for no limit
+     */
+    public CheckDaemon(int port, PollScheduler scheduler, int maxConcurrent) {
+        this.port = port;
+        this.scheduler = scheduler;
+        this.pool = new ConnectionPool(maxConcurrent);
+    }
+
+    /**
+     * Accept and answer check requests until the process is terminated.
+     */
+    @Override
+    public void run() {
+        Instrumentation.install();
+        try {
+            Instrumentation.register();
+        } catch (JMException e) {
+            System.out.println("Could not register the instrumentation MBean: " + e.getMessage());
+        }
+        try (ServerSocket server = new ServerSocket(port, 256, InetAddress.getLoopbackAddress())) {
+            System.out.println("check_java daemon listening on port " + port);
+            while (true) {
+                final Socket socket = server.accept();
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            System.out.println("check_java daemon stopped: " + e.getClass().getName() + ": " + e.getMessage());
+        } finally {
+            workers.shutdownNow();
+            pool.closeAll();
+        }
+    }
+
+    /**
+     * Answer a single check request
+     * @param socket the connection to the client
+     */
+    private void handle(Socket socket) {
+        try (Socket s = socket) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            String line = in.readLine();
+            if (line == null) {
+                return;
+            }
+
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(buf, false, "UTF-8");
+            int status = execute(line.isEmpty() ? new String[0] : line.split("\t"), out);
+            out.flush();
+
+            OutputStream os = s.getOutputStream();
+            os.write((status + "\n").getBytes(StandardCharsets.UTF_8));
+            buf.writeTo(os);
+            os.flush();
+        } catch (IOException e) {
+            // the client went away, nobody is left to tell
+        }
+    }
+
+    /**
+     * Run a check as check_java would when called with the given arguments
+     * @param args the command line arguments of the check
+     * @param out the stream to print the Nagios output to
+     * @return the Nagios status code
+     */
+    private int execute(String[] args, PrintStream out) {
+        try {
+            Options opts = new Options(args);
+            if (opts.isUsageRequested()) {
+                opts.printUsage(out);
+                return 3;
+            }
+            return Main.runCheck(opts, pool, scheduler, out);
+        } catch (Exception e) {
+            out.println("Could not retrieve data: " + e.getClass().getName() + ": " + e.getMessage());
+            return 3;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A check type defined in a configuration file instead of in code: its name, the header of its status
+ * line, its attributes and default thresholds. The first attribute is the one the status depends on.
+ */
+public class CheckDefinition {
+    private final String name;
+    private final String header;
+    private final List<AttributeIdentifier> attributes;
+    private final Integer warn;
+    private final Integer crit;
+
+    /**
+     * Create a check definition
+     * @param name the name the check type is selected by with -t
+     * @param header the human readable name of the check
+     * @param attributes the attributes, the one the status depends on first
+     * @param warn the default warning threshold, may be null
+     * @param crit the default critical threshold, may be null
+     */
+    public CheckDefinition(String name, String header, List<AttributeIdentifier> attributes, Integer warn, Integer crit) {
+        this.name = name;
+        this.header = header;
+        this.attributes = Collections.unmodifiableList(new ArrayList<AttributeIdentifier>(attributes));
+        this.warn = warn;
+        this.crit = crit;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHeader() {
+        return header;
+    }
+
+    public List<AttributeIdentifier> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @return the warning threshold used unless -w is given, or null if there is none
+     */
+    public Integer getWarn() {
+        return warn;
+    }
+
+    /**
+     * @return the critical threshold used unless -c is given, or null if there is none
+     */
+    public Integer getCrit() {
+        return crit;
+    }
+
+    /**
+     * Write the definition in binary form
+     * @param out the stream to write to
+     * @throws IOException if writing fails
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeUTF(name);
+        out.writeUTF(header);
+        out.writeInt(warn != null ? warn : Integer.MIN_VALUE);
+        out.writeInt(crit != null ? crit : Integer.MIN_VALUE);
+        out.writeInt(attributes.size());
+        for (AttributeIdentifier id : attributes) {
+            out.writeUTF(id.getObjectName());
+            out.writeUTF(id.getAttribute());
+            QueryPlan.writeNullable(out, id.getSubAttribute());
+            QueryPlan.writeNullable(out, id.getUnit());
+        }
+    }
+
+    /**
+     * Read a definition written by write()
+     * @param in the stream to read from
+     * @return the definition
+     * @throws IOException if reading fails
+     */
+    public static CheckDefinition read(DataInputStream in) throws IOException {
+        String name = in.readUTF();
+        String header = in.readUTF();
+        int warn = in.readInt();
+        int crit = in.readInt();
+        int count = in.readInt();
+        List<AttributeIdentifier> attributes = new ArrayList<AttributeIdentifier>(Math.max(0, count));
+        for (int i = 0; i < count; i++) {
+            String obj = in.readUTF();
+            String attr = in.readUTF();
+            String sub = QueryPlan.readNullable(in);
+            String unit = QueryPlan.readNullable(in);
+            attributes.add(new AttributeIdentifier(obj, attr, sub, unit));
+        }
+        return new CheckDefinition(name, header, attributes, warn != Integer.MIN_VALUE ? warn : null, crit != Integer.MIN_VALUE ? crit : null);
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All checks requested in one invocation of check_java.
+ *
+ * The attributes of all checks are merged into one list, so they are fetched over a single connection
+ * with one round trip per MBean, and the results are reported to Nagios as one combined check result.
+ */
+public class CheckGroup {
+    private List<Check> checks = new ArrayList<Check>();
+    private List<Integer> warnThresholds = new ArrayList<Integer>();
+    private List<Integer> critThresholds = new ArrayList<Integer>();
+    private long cacheTtlMillis;
+    private boolean archived;
+    private QueryPlan plan;
+
+    /**
+     * Create the checks for all check types given on the command line
+     * @param opts the command line options
+     * @throws IOException if the configuration file given with -f cannot be read
+     */
+    public CheckGroup(Options opts) throws IOException {
+        List<String> names = opts.getCheckNames();
+        CheckConfig config = opts.getConfigFile() != null ? CheckConfig.load(opts.getConfigFile(), names) : null;
+        for (int i = 0; i < names.size(); i++) {
+            CheckDefinition def = config != null ? config.getDefinition(names.get(i)) : null;
+            if (def != null) {
+                Check check = new Check(def, opts.getUnit(), opts.getWindow());
+                if (opts.getPercentile() != null) {
+                    check.setPercentile(opts.getPercentile());
+                }
+                checks.add(check);
+                warnThresholds.add(opts.hasWarnThresholds() || def.getWarn() == null ? opts.getWarnThreshold(i) : def.getWarn());
+                critThresholds.add(opts.hasCritThresholds() || def.getCrit() == null ? opts.getCritThreshold(i) : def.getCrit());
+                continue;
+            }
+
+            Options.CheckType type = Options.CheckType.valueOf(names.get(i));
+            Check check = new Check(type, opts.getUnit(), opts.getWindow());
+            if (type == Options.CheckType.Attribute) {
+                check.setQuery(opts.getPatternQuery());
+            } else if (type == Options.CheckType.HotThreads) {
+                check.setHotThreads(new HotThreads(opts.getTopN()));
+            }
+            if (opts.getPercentile() != null && !check.isGcNotification()) {
+                check.setPercentile(opts.getPercentile());
+            }
+            checks.add(check);
+            warnThresholds.add(opts.getWarnThreshold(i));
+            critThresholds.add(opts.getCritThreshold(i));
+        }
+        cacheTtlMillis = opts.getCacheTtl() * 1000L;
+        archived = opts.isArchived();
+
+        if (config != null) {
+            plan = loadPlan(config);
+        }
+    }
+
+    /**
+     * Attributes of MBeans that are looked up by their role have no name before the target is known,
+     * so a plan can only be kept for groups of attributes that are all given by name.
+     */
+    private QueryPlan loadPlan(CheckConfig config) {
+        List<AttributeIdentifier> attrs = getAttributes();
+        for (AttributeIdentifier id : attrs) {
+            if (id.getRole() != null) {
+                return null;
+            }
+        }
+        if (config.getPlan() != null && config.getPlan().matches(attrs)) {
+            return config.getPlan();
+        }
+        try {
+            QueryPlan compiled = QueryPlan.compile(attrs);
+            config.setPlan(compiled);
+            return compiled;
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException("Invalid object name in the check configuration: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Return the checks of this group
+     * @return the checks
+     */
+    public List<Check> getChecks() {
+        return checks;
+    }
+
+    /**
+     * Return whether any of the checks is answered from GC notifications
+     * @return true if the target's GC notifications must be received
+     */
+    public boolean needsGcMonitor() {
+        for (Check check : checks) {
+            if (check.isGcNotification()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the attributes all checks need, in the order of the checks
+     * @return the attributes
+     */
+    public List<AttributeIdentifier> getAttributes() {
+        List<AttributeIdentifier> attrs = new ArrayList<AttributeIdentifier>();
+        for (Check check : checks) {
+            attrs.addAll(check.getAttributes());
+        }
+        return attrs;
+    }
+
+    /**
+     * Fetch the values of all checks. The fixed attributes of all checks are fetched together, with
+     * one round trip per MBean; the MBeans of Attribute checks are queried by their pattern, and the
+     * threads of HotThreads checks are sampled.
+     *
+     * @param client the JMX server to fetch the values from
+     * @return the results of each check, in the order of the checks
+     */
+    public List<List<Result>> fetch(JMXClient client) throws IOException, JMException, InterruptedException {
+        List<Result> res;
+        if (isCacheable()) {
+            res = AttributeIdentifier.getValues(client, getAttributes(), ResultCache.getDefault(), cacheTtlMillis);
+        } else if (plan != null) {
+            res = AttributeIdentifier.getValues(client, getAttributes(), plan);
+        } else {
+            res = AttributeIdentifier.getValues(client, getAttributes());
+        }
+
+        List<List<Result>> perCheck = split(res);
+        for (int i = 0; i < checks.size(); i++) {
+            if (checks.get(i).getQuery() != null) {
+                perCheck.set(i, checks.get(i).getQuery().fetch(client));
+            } else if (checks.get(i).getHotThreads() != null) {
+                perCheck.set(i, checks.get(i).getHotThreads().fetch(client));
+            }
+        }
+        return perCheck;
+    }
+
+    /**
+     * Fetch the values of all checks, leaving out attributes whose last value the scheduler still
+     * serves. Groups of checks that need live values are fetched completely.
+     *
+     * @param client the JMX server to fetch the values from
+     * @param scheduler the scheduler that decides which values are fetched again, may be null
+     * @return the results of each check, in the order of the checks
+     */
+    public List<List<Result>> fetch(JMXClient client, PollScheduler scheduler) throws IOException, JMException, InterruptedException {
+        if (scheduler == null || needsLiveValues()) {
+            return fetch(client);
+        }
+
+        String url = client.getUrl();
+        List<AttributeIdentifier> due = new ArrayList<AttributeIdentifier>();
+        for (int i = 0; i < checks.size(); i++) {
+            List<AttributeIdentifier> attrs = checks.get(i).getAttributes();
+            due.addAll(scheduler.due(url, attrs, warnThresholds.get(i), critThresholds.get(i)));
+        }
+
+        if (!due.isEmpty()) {
+            List<Result> res = AttributeIdentifier.getValues(client, due);
+            for (int i = 0; i < due.size(); i++) {
+                scheduler.update(url, due.get(i), res.get(i));
+            }
+        }
+        return split(scheduler.values(url, getAttributes()));
+    }
+
+    /**
+     * Fetch the values of all checks from the cache shared between check_java processes, without
+     * connecting to the target. Only possible if the cache is enabled with -C and none of the checks
+     * needs a live connection.
+     *
+     * @param url the URL of the target
+     * @return the results of each check, in the order of the checks, or null unless all of them are
+     *         cached and fresh
+     */
+    public List<List<Result>> fetchCached(String url) throws IOException {
+        if (!isCacheable()) {
+            return null;
+        }
+        List<Result> res = AttributeIdentifier.getCachedValues(url, getAttributes(), ResultCache.getDefault());
+        return res != null ? split(res) : null;
+    }
+
+    private boolean isCacheable() {
+        return cacheTtlMillis > 0 && !needsLiveValues();
+    }
+
+    /**
+     * Pattern queries, thread samples and GC notifications need a live connection, a rate over a cached uptime would
+     * be 0, and a cached value would be added to a history or histogram twice, so only groups of plain
+     * checks are served from values fetched before.
+     */
+    private boolean needsLiveValues() {
+        for (Check check : checks) {
+            if (check.getQuery() != null || check.getHotThreads() != null || check.isRate() || check.isGcNotification()
+                    || check.isSeries() || check.getPercentile() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<List<Result>> split(List<Result> res) {
+        List<List<Result>> perCheck = new ArrayList<List<Result>>(checks.size());
+        int offset = 0;
+        for (Check check : checks) {
+            perCheck.add(res.subList(offset, offset + check.getAttributes().size()));
+            offset += check.getAttributes().size();
+        }
+        return perCheck;
+    }
+
+    /**
+     * Compare the results against the thresholds and print the combined status line and performance
+     * data. A single check is reported exactly as check_java always did, several checks are reported
+     * with the worst status of all of them.
+     *
+     * @param url the URL of the target the results were fetched from
+     * @param res the results of each check, as returned by fetch()
+     * @param out the stream to print the Nagios output to
+     * @return the Nagios status code
+     * @throws IOException if a rate check cannot access its previous sample
+     */
+    public int evaluate(String url, List<List<Result>> res, PrintStream out) throws IOException {
+        List<List<Result>> derived = new ArrayList<List<Result>>();
+        for (int i = 0; i < checks.size(); i++) {
+            derived.add(checks.get(i).derive(url, res.get(i)));
+        }
+        if (archived) {
+            archive(url, derived);
+        }
+
+        if (checks.size() == 1) {
+            return checks.get(0).evaluate(derived.get(0), warnThresholds.get(0), critThresholds.get(0), out);
+        }
+
+        int worst = 0;
+        StringBuilder summary = new StringBuilder();
+        StringBuilder details = new StringBuilder();
+        StringBuilder perfData = new StringBuilder(" |");
+
+        for (int i = 0; i < checks.size(); i++) {
+            Check check = checks.get(i);
+            int warn = warnThresholds.get(i);
+            int crit = critThresholds.get(i);
+            List<Result> checkRes = derived.get(i);
+
+            int statval = check.getStatus(checkRes, warn, crit);
+            worst = Math.max(worst, statval);
+
+            if (i > 0) {
+                summary.append(", ");
+            }
+            summary.append(check.getHeader()).append(": ").append(checkRes.get(0).getValue()).append(" ")
+                    .append(checkRes.get(0).getUnit()).append("/").append(warn).append("/").append(crit)
+                    .append(" (").append(Check.getStatusName(statval)).append(")");
+
+            for (int j = 0; j < checkRes.size(); j++) {
+                Result r = checkRes.get(j);
+                String label = check.getName() + "." + r.getName();
+                if (j == 0) {
+                    details.append(Check.quoteLabel(label)).append("=").append(r.getValue()).append(r.getUnit())
+                            .append(";").append(warn).append(";").append(crit).append("\n");
+                    perfData.append(" ").append(Check.perfDataLabel(label)).append("=").append(r.getValue()).append(r.getUnit())
+                            .append(";").append(warn).append(";").append(crit).append(";;");
+                } else {
+                    details.append(Check.quoteLabel(label)).append("=").append(r.getValue()).append(r.getUnit()).append("\n");
+                    perfData.append(" ").append(Check.perfDataLabel(label)).append("=").append(r.getValue()).append(r.getUnit()).append(";;;;");
+                }
+            }
+            details.append(Check.getDetails(checkRes));
+        }
+
+        out.println(Check.getStatusName(worst) + ": " + summary);
+        out.print(details);
+        out.println(perfData);
+        return worst;
+    }
+
+    /**
+     * Append the values of this run to the archive of the target, under the labels of the performance
+     * data. Values named after an MBean or a thread are left out, their names change too often to
+     * make a history. The archive is only a record, so a failure to write it does not fail the check.
+     */
+    private void archive(String url, List<List<Result>> derived) {
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < checks.size(); i++) {
+            List<Result> checkRes = derived.get(i);
+            for (Result r : checkRes.subList(0, checks.get(i).getFixedResultCount(checkRes))) {
+                if (r.getValue() != null) {
+                    values.put(checks.get(i).getName() + "." + r.getName(), r.getValue());
+                }
+            }
+        }
+        try {
+            MetricArchive.get(url).append(System.currentTimeMillis(), values);
+        } catch (IOException e) {
+            // e.g. a full disk, which the checks of the target have nothing to do with
+        }
+    }
+}
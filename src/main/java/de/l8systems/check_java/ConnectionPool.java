@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Keeps one open JMX connection per URL, so repeated checks against the same target do not pay for the
+ * RMI lookup and handshake every time. Optionally limits how many checks may use the connection to a
+ * target at the same time, so a burst of checks does not flood a target that is already struggling.
+ */
+public class ConnectionPool {
+    /**
+     * The connection to one URL. It is established on a thread of its own, and every check that
+     * needs it waits for it only as long as its own deadline allows, so a target that hangs while
+     * connecting neither blocks the checks against other targets nor holds any check of its own
+     * beyond its time limit.
+     */
+    private static class Slot {
+        private CompletableFuture<JMXClient> connection;
+        private Semaphore permits;
+    }
+
+    private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<>();
+    private final int maxConcurrent;
+
+    /**
+     * Create a pool that does not limit how many checks use a connection at the same time
+     */
+    public ConnectionPool() {
+        this(0);
+    }
+
+    /**
+     * Create a pool
+     * @param maxConcurrent how many checks may use the connection to a target at the same time, 0 for
+     *                      no limit
+     */
+    public ConnectionPool(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    private Slot slot(String url) {
+        Slot slot = slots.get(url);
+        if (slot == null) {
+            Slot newSlot = new Slot();
+            if (maxConcurrent > 0) {
+                newSlot.permits = new Semaphore(maxConcurrent, true);
+            }
+            slot = slots.putIfAbsent(url, newSlot);
+            if (slot == null) {
+                slot = newSlot;
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Return the open connection to a JMX server, connecting to it if there is none yet. Checks that
+     * arrive while a connection is being established wait for that attempt instead of starting
+     * their own. If the attempt runs out of the time of the check that started it, a check with time
+     * left starts another one.
+     *
+     * @param url the URL of the JMX server
+     * @param deadline the deadline a new connection must be established by
+     * @return the connection
+     * @throws IOException if no connection could be established
+     * @throws TimeoutException if connecting took longer than the deadline allows
+     */
+    public JMXClient get(String url, Deadline deadline) throws IOException, TimeoutException, InterruptedException {
+        Slot slot = slot(url);
+        while (true) {
+            CompletableFuture<JMXClient> connection;
+            boolean started = false;
+            synchronized (slot) {
+                if (slot.connection == null) {
+                    slot.connection = connect(slot, url, deadline);
+                    started = true;
+                }
+                connection = slot.connection;
+            }
+
+            try {
+                return connection.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                throw deadline.timeout();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof TimeoutException && !started && deadline.remainingMillis() > 0) {
+                    // the attempt of a check with less time left gave up, try again within our own time
+                    continue;
+                }
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof TimeoutException) {
+                    throw (TimeoutException) cause;
+                }
+                throw new IOException("Could not connect to " + url + ": " + cause, cause);
+            }
+        }
+    }
+
+    /**
+     * Establish a connection in the background. A failed attempt is removed from the slot, so the
+     * next check tries again.
+     */
+    private static CompletableFuture<JMXClient> connect(final Slot slot, final String url, final Deadline deadline) {
+        final CompletableFuture<JMXClient> connection = new CompletableFuture<>();
+        Deadline.EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connection.complete(JMXClient.connect(url, deadline, false));
+                } catch (Exception e) {
+                    synchronized (slot) {
+                        if (slot.connection == connection) {
+                            slot.connection = null;
+                        }
+                    }
+                    connection.completeExceptionally(e);
+                }
+            }
+        });
+        return connection;
+    }
+
+    /**
+     * Wait until a check may use the connection to a target. Checks are let through in the order they
+     * arrived. Every successful call must be followed by a call to release().
+     *
+     * @param url the URL of the JMX server
+     * @param timeoutMillis how long to wait at most
+     * @throws TimeoutException if too many checks are still using the connection after the timeout
+     */
+    public void acquire(String url, long timeoutMillis) throws InterruptedException, TimeoutException {
+        Slot slot = slot(url);
+        if (slot.permits != null && !slot.permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new TimeoutException("More than " + maxConcurrent + " checks of " + url + " are still running after "
+                    + TimeUnit.MILLISECONDS.toSeconds(timeoutMillis) + " seconds");
+        }
+    }
+
+    /**
+     * Let the next check use the connection to a target
+     * @param url the URL of the JMX server
+     */
+    public void release(String url) {
+        Slot slot = slot(url);
+        if (slot.permits != null) {
+            slot.permits.release();
+        }
+    }
+
+    /**
+     * Drop a connection that turned out to be broken, so the next call to get() reconnects.
+     *
+     * @param url the URL of the JMX server
+     * @param client the broken connection
+     */
+    public void invalidate(String url, JMXClient client) {
+        Slot slot = slots.get(url);
+        if (slot != null) {
+            synchronized (slot) {
+                if (slot.connection != null && connected(slot.connection) == client) {
+                    slot.connection = null;
+                }
+            }
+        }
+        try {
+            client.close();
+        } catch (IOException e) {
+            // the connection is broken anyway
+        }
+    }
+
+    /**
+     * Close all connections.
+     */
+    public void closeAll() {
+        for (Slot slot : slots.values()) {
+            synchronized (slot) {
+                JMXClient client = slot.connection != null ? connected(slot.connection) : null;
+                if (client != null) {
+                    try {
+                        client.close();
+                    } catch (IOException e) {
+                        // nothing left to do
+                    }
+                }
+                slot.connection = null;
+            }
+        }
+    }
+
+    /**
+     * Return the connection an attempt established, or null if it failed or is still running
+     */
+    private static JMXClient connected(CompletableFuture<JMXClient> connection) {
+        return connection.isDone() && !connection.isCompletedExceptionally() ? connection.getNow(null) : null;
+    }
+}
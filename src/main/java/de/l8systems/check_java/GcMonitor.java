@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Receives the garbage collection notifications of a target instead of polling its collectors.
+ *
+ * The monitor subscribes to com.sun.management.gc.notification on every GarbageCollector MBean and
+ * keeps the collections of the last minutes in memory, with their cause and the usage of every memory
+ * pool before and after them. Checks on pause times are answered from these collections without any
+ * request to the target. As the notifications are only received while the connection is open, this
+ * only works in daemon mode.
+ */
+public class GcMonitor implements NotificationListener {
+    /**
+     * One finished collection
+     */
+    private static class Collection {
+        private final long time;
+        private final long duration;
+        private final long reclaimed;
+        private final boolean pause;
+        private final String cause;
+        // the pools, shared between collections, and their usage in the same order
+        private final String[] pools;
+        private final long[] before;
+        private final long[] after;
+
+        private Collection(long time, long duration, long reclaimed, boolean pause, String cause, String[] pools, long[] before, long[] after) {
+            this.time = time;
+            this.duration = duration;
+            this.reclaimed = reclaimed;
+            this.pause = pause;
+            this.cause = cause;
+            this.pools = pools;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    /**
+     * Collections older than this are dropped, it limits the window checks can ask for
+     */
+    private static final long MAX_AGE_MILLIS = 60 * 60 * 1000L;
+
+    /**
+     * Upper bound of the collections kept, in case a target collects extremely often
+     */
+    private static final int MAX_COLLECTIONS = 100000;
+
+    private static final Map<String, GcMonitor> monitors = new HashMap<String, GcMonitor>();
+
+    private final Deque<Collection> collections = new ArrayDeque<Collection>();
+    private String[] pools = new String[0];
+    private JMXClient client;
+
+    /**
+     * Make sure the GC notifications of a target are received through the given connection. If the
+     * target is already monitored through another connection, e.g. because the old one broke, the
+     * subscription is moved to the new one and the collections received so far are kept.
+     *
+     * @param url the URL of the target
+     * @param client the open connection to the target
+     * @throws IOException if the subscription fails
+     */
+    public static void attach(String url, JMXClient client) throws IOException, MalformedObjectNameException {
+        GcMonitor monitor;
+        synchronized (monitors) {
+            monitor = monitors.get(url);
+            if (monitor == null) {
+                monitor = new GcMonitor();
+                monitors.put(url, monitor);
+            }
+        }
+        monitor.subscribe(client);
+    }
+
+    /**
+     * Return the monitor of a target
+     * @param url the URL of the target
+     * @return the monitor
+     * @throws IllegalStateException if the target is not monitored, i.e. check_java is not running as a daemon
+     */
+    public static GcMonitor get(String url) {
+        synchronized (monitors) {
+            GcMonitor monitor = monitors.get(url);
+            if (monitor == null) {
+                throw new IllegalStateException("GC notification checks are only available in daemon mode (-D)");
+            }
+            return monitor;
+        }
+    }
+
+    private synchronized void subscribe(JMXClient client) throws IOException, MalformedObjectNameException {
+        if (this.client == client) {
+            return;
+        }
+
+        NotificationFilterSupport filter = new NotificationFilterSupport();
+        filter.enableType(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION);
+
+        for (ObjectName name : client.queryNames("java.lang:type=GarbageCollector,*")) {
+            try {
+                client.addNotificationListener(name, this, filter);
+            } catch (InstanceNotFoundException e) {
+                // the collector vanished in between, nothing to subscribe to
+            }
+        }
+        this.client = client;
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        Map<String, MemoryUsage> usageBefore = info.getGcInfo().getMemoryUsageBeforeGc();
+        Map<String, MemoryUsage> usageAfter = info.getGcInfo().getMemoryUsageAfterGc();
+        long reclaimed = used(usageBefore) - used(usageAfter);
+        // ZGC, Shenandoah and G1 report their concurrent cycles through separate collectors, these are no pauses
+        boolean pause = !info.getGcName().contains("Cycles") && !info.getGcName().contains("Concurrent");
+
+        synchronized (this) {
+            String[] names = usageBefore.keySet().toArray(new String[0]);
+            Arrays.sort(names);
+            if (!Arrays.equals(names, pools)) {
+                pools = names;
+            }
+            long[] before = new long[pools.length];
+            long[] after = new long[pools.length];
+            for (int i = 0; i < pools.length; i++) {
+                before[i] = usageBefore.get(pools[i]).getUsed();
+                MemoryUsage u = usageAfter.get(pools[i]);
+                after[i] = u != null ? u.getUsed() : before[i];
+            }
+
+            long now = System.currentTimeMillis();
+            collections.addLast(new Collection(now, info.getGcInfo().getDuration(), reclaimed, pause, info.getGcCause(), pools, before, after));
+            expire(now);
+        }
+    }
+
+    private static long used(Map<String, MemoryUsage> usage) {
+        long used = 0;
+        for (MemoryUsage u : usage.values()) {
+            used += u.getUsed();
+        }
+        return used;
+    }
+
+    private void expire(long now) {
+        while (!collections.isEmpty() && (collections.size() > MAX_COLLECTIONS || now - collections.peekFirst().time > MAX_AGE_MILLIS)) {
+            collections.removeFirst();
+        }
+    }
+
+    /**
+     * Summarize the pauses of the last minutes.
+     *
+     * @param windowMillis the length of the window, in milliseconds
+     * @param percentile the percentile of the pause durations to report first, 100 for the maximum
+     * @return the pause duration at the percentile, the number of pauses, the total pause time and the
+     *         bytes reclaimed by all collections in the window, followed by the number of collections
+     *         per cause, most frequent first, and the mean usage of every memory pool before and after
+     *         the collections
+     */
+    public synchronized List<Result> summarize(long windowMillis, int percentile) {
+        long now = System.currentTimeMillis();
+        expire(now);
+
+        long[] durations = new long[collections.size()];
+        int n = 0;
+        long total = 0;
+        long reclaimed = 0;
+        final Map<String, Long> causes = new HashMap<String, Long>();
+        Map<String, long[]> usage = new TreeMap<String, long[]>();
+        Iterator<Collection> it = collections.descendingIterator();
+        while (it.hasNext()) {
+            Collection c = it.next();
+            if (now - c.time > windowMillis) {
+                break;
+            }
+            reclaimed += c.reclaimed;
+            if (c.pause) {
+                durations[n++] = c.duration;
+                total += c.duration;
+            }
+            Long seen = causes.get(c.cause);
+            causes.put(c.cause, seen != null ? seen + 1 : 1L);
+            for (int i = 0; i < c.pools.length; i++) {
+                // the sums of the usage before and after, and the number of collections that saw the pool
+                long[] sums = usage.get(c.pools[i]);
+                if (sums == null) {
+                    sums = new long[3];
+                    usage.put(c.pools[i], sums);
+                }
+                sums[0] += c.before[i];
+                sums[1] += c.after[i];
+                sums[2]++;
+            }
+        }
+
+        long value = 0;
+        if (n > 0) {
+            Arrays.sort(durations, 0, n);
+            int rank = (int) Math.ceil(percentile / 100.0 * n);
+            value = durations[Math.max(0, Math.min(n, rank) - 1)];
+        }
+
+        List<Result> res = new ArrayList<Result>(4 + causes.size() + 2 * usage.size());
+        res.add(new Result(value, "ms", percentile == 100 ? "maxPause" : "p" + percentile + "Pause"));
+        res.add(new Result((long) n, "", "pauses"));
+        res.add(new Result(total, "ms", "pauseTime"));
+        res.add(new Result(reclaimed, "B", "reclaimed"));
+
+        List<String> byCount = new ArrayList<String>(causes.keySet());
+        Collections.sort(byCount, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Long.compare(causes.get(b), causes.get(a));
+            }
+        });
+        for (String cause : byCount) {
+            res.add(new Result(causes.get(cause), "", "cause." + cause));
+        }
+        for (Map.Entry<String, long[]> e : usage.entrySet()) {
+            long[] sums = e.getValue();
+            res.add(new Result(sums[0] / sums[2], "B", e.getKey() + ".usedBefore"));
+            res.add(new Result(sums[1] / sums[2], "B", e.getKey() + ".usedAfter"));
+        }
+        return res;
+    }
+}
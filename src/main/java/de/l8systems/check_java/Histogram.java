@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The distribution of the recent samples of one value of one target, kept between runs of check_java.
+ *
+ * Samples are counted in log-linear buckets as in HdrHistogram: every power of two is split into 8
+ * buckets of equal width, so a bucket is at most an eighth of its lower bound wide and values from 0
+ * to Long.MAX_VALUE fit into 488 buckets. The window is covered by a ring of slices, each with its own
+ * counts, and the oldest slice is cleared and reused as the window moves on. A query merges the slices
+ * within the window.
+ *
+ * The histogram is kept in a memory-mapped file of a fixed size, about 23 KB, no matter how many
+ * samples it has seen, so tens of thousands of them can be kept. Only the recently used ones keep
+ * their file open; the others open it for as long as a sample takes to record.
+ */
+public class Histogram {
+    /**
+     * The statistics of the samples within the window
+     */
+    public static class Stats {
+        private final long count;
+        private final long value;
+        private final long max;
+
+        private Stats(long count, long value, long max) {
+            this.count = count;
+            this.value = value;
+            this.max = max;
+        }
+
+        /**
+         * @return the number of samples within the window
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the requested percentile: the upper bound of the bucket it falls into, but no more
+         *         than the largest sample, or for the lower tail the lower bound of that bucket
+         */
+        public long getValue() {
+            return value;
+        }
+
+        /**
+         * @return the largest sample within the window
+         */
+        public long getMax() {
+            return max;
+        }
+    }
+
+    private static final long MAGIC = 0x636a686973746f31L;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    private static final int SLICES = 12;
+    private static final int HEADER_SIZE = 64;
+
+    // header fields
+    private static final int SLICE_MILLIS = 8;
+
+    // slice fields
+    private static final int SLICE_NUMBER = 0;
+    private static final int SLICE_COUNT = 8;
+    private static final int SLICE_MAX = 16;
+    private static final int SLICE_BUCKETS = 24;
+    private static final int SLICE_SIZE = SLICE_BUCKETS + BUCKETS * 4;
+
+    /**
+     * How many histograms keep their file open between samples, well below the usual limit of 1024
+     * open files per process
+     */
+    private static final int MAX_OPEN = 256;
+
+    private static final Map<String, Histogram> open = new LinkedHashMap<String, Histogram>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Histogram> eldest) {
+            if (size() > MAX_OPEN) {
+                eldest.getValue().close();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final File file;
+    private final MappedByteBuffer buf;
+
+    /**
+     * The open file, null once the histogram has been closed. The mapping stays valid without it.
+     */
+    private FileChannel channel;
+
+    /**
+     * Return the histogram of a value. Histograms live in the subdirectory histograms of the
+     * StateDirectory, one file per histogram.
+     *
+     * @param key the name of the histogram, e.g. the target URL and attribute
+     * @return the histogram
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public static synchronized Histogram get(String key) throws IOException {
+        Histogram histogram = open.get(key);
+        if (histogram == null) {
+            File dir = StateDirectory.get("histograms");
+            histogram = new Histogram(new File(dir, Long.toHexString(StateStore.hash(key)) + ".hg"));
+            open.put(key, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Open or create a histogram
+     * @param file the file to keep the counts in
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public Histogram(File file) throws IOException {
+        long size = HEADER_SIZE + (long) SLICES * SLICE_SIZE;
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        try (FileLock lock = channel.lock()) {
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (buf.getLong(0) != MAGIC) {
+                // new or foreign file, start over
+                buf.putLong(SLICE_MILLIS, 0L);
+                buf.putLong(0, MAGIC);
+            }
+        }
+    }
+
+    /**
+     * Add a sample and return the statistics of the window including it.
+     *
+     * @param time the time the sample was taken, in milliseconds
+     * @param value the sampled value; negative values are counted as 0
+     * @param windowMillis the window, in milliseconds
+     * @param percentile the percentile to return, 100 for the largest sample
+     * @param lowerTail whether to count the percentile from the smallest sample up, for values where
+     *                  lower is worse: 95 then returns the value 95% of the samples are at or above,
+     *                  100 the smallest sample
+     * @return the statistics
+     * @throws IOException if the file cannot be locked
+     */
+    public synchronized Stats record(long time, long value, long windowMillis, int percentile, boolean lowerTail) throws IOException {
+        FileChannel ch = channel != null ? channel : new RandomAccessFile(file, "rw").getChannel();
+        try (FileLock lock = ch.lock()) {
+            long sliceMillis = Math.max(1, windowMillis / SLICES);
+            if (buf.getLong(SLICE_MILLIS) != sliceMillis) {
+                // the window was changed, the slices do not fit it anymore
+                for (int i = 0; i < SLICES; i++) {
+                    clear(i, -1);
+                }
+                buf.putLong(SLICE_MILLIS, sliceMillis);
+            }
+
+            long current = time / sliceMillis;
+            int slice = (int) (current % SLICES);
+            int off = sliceOffset(slice);
+            if (buf.getLong(off + SLICE_NUMBER) != current) {
+                clear(slice, current);
+            }
+            long v = Math.max(0, value);
+            int bucket = off + SLICE_BUCKETS + bucketOf(v) * 4;
+            buf.putInt(bucket, buf.getInt(bucket) + 1);
+            buf.putLong(off + SLICE_COUNT, buf.getLong(off + SLICE_COUNT) + 1);
+            buf.putLong(off + SLICE_MAX, Math.max(buf.getLong(off + SLICE_MAX), v));
+
+            return stats(current, percentile, lowerTail);
+        } finally {
+            if (ch != channel) {
+                ch.close();
+            }
+        }
+    }
+
+    /**
+     * Close the file of the histogram. Samples can still be recorded, each opens the file again.
+     */
+    synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing was written through the channel, the mapping keeps the counts
+            }
+            channel = null;
+        }
+    }
+
+    private Stats stats(long current, int percentile, boolean lowerTail) {
+        long count = 0;
+        long max = 0;
+        boolean[] live = new boolean[SLICES];
+        for (int i = 0; i < SLICES; i++) {
+            int off = sliceOffset(i);
+            long number = buf.getLong(off + SLICE_NUMBER);
+            if (number > current - SLICES && number <= current) {
+                live[i] = true;
+                count += buf.getLong(off + SLICE_COUNT);
+                max = Math.max(max, buf.getLong(off + SLICE_MAX));
+            }
+        }
+
+        int rankPercentile = lowerTail ? 100 - Math.min(100, percentile) : Math.min(100, percentile);
+        long rank = Math.max(1, (long) Math.ceil(count * rankPercentile / 100.0));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            for (int i = 0; i < SLICES; i++) {
+                if (live[i]) {
+                    seen += buf.getInt(sliceOffset(i) + SLICE_BUCKETS + b * 4);
+                }
+            }
+            if (seen >= rank) {
+                // report the bound of the bucket on the side of the tail, so the value errs towards worse
+                return new Stats(count, lowerTail ? lowerBound(b) : Math.min(upperBound(b), max), max);
+            }
+        }
+        return new Stats(count, max, max);
+    }
+
+    private void clear(int slice, long number) {
+        int off = sliceOffset(slice);
+        buf.putLong(off + SLICE_NUMBER, number);
+        buf.putLong(off + SLICE_COUNT, 0L);
+        buf.putLong(off + SLICE_MAX, 0L);
+        for (int b = 0; b < BUCKETS; b++) {
+            buf.putInt(off + SLICE_BUCKETS + b * 4, 0);
+        }
+    }
+
+    /**
+     * Values below 8 have a bucket of their own, above that the bucket is given by the position of
+     * the highest bit and the 3 bits below it
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return lowerBound(bucket) + (1L << shift) - 1;
+    }
+
+    private static int sliceOffset(int slice) {
+        return HEADER_SIZE + slice * SLICE_SIZE;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import java.io.IOException;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds the threads of the target that use the most CPU, and threads that are deadlocked.
+ *
+ * The CPU time of all threads is read twice, a second apart, with one bulk call each; only the ids
+ * and times of the threads cross the wire, 16 bytes per thread. Names and stack traces are fetched
+ * afterwards for the top N threads only, with a limited depth, so the amount of data transferred
+ * stays small even on JVMs with thousands of threads.
+ *
+ * The threads are reported by rank, thread1 to threadN, since thread names are unbounded, change
+ * with every pool and are often shared by several threads. The names appear in the stack traces.
+ */
+public class HotThreads {
+    private static final long SAMPLE_MILLIS = 1000;
+    private static final int STACK_DEPTH = 5;
+    private static final int MAX_DEADLOCKED = 10;
+
+    /**
+     * The name of the result with the number of deadlocked threads
+     */
+    static final String DEADLOCKED = "deadlocked";
+
+    /**
+     * The prefix of the results with the CPU usage of the busiest threads, followed by their rank
+     */
+    private static final String THREAD_PREFIX = "thread";
+
+    private final int topN;
+
+    /**
+     * The CPU time a thread used between the two samples
+     */
+    private static class Usage {
+        private final long id;
+        private final long nanos;
+
+        private Usage(long id, long nanos) {
+            this.id = id;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * Create a hot thread check
+     * @param topN the number of threads to report
+     */
+    public HotThreads(int topN) {
+        this.topN = topN;
+    }
+
+    /**
+     * Sample the CPU time of all threads and look for deadlocks.
+     *
+     * @param client the JMX server to query
+     * @return the CPU usage of the busiest thread in percent of one core, with the names and top stack
+     *         frames of the threads found as its details, the number of deadlocked threads, and the
+     *         CPU usage of the top N threads, busiest first
+     */
+    public List<Result> fetch(JMXClient client) throws IOException, InterruptedException {
+        com.sun.management.ThreadMXBean threads = client.getThreadMXBean();
+        if (!threads.isThreadCpuTimeEnabled()) {
+            throw new IllegalStateException("Thread CPU time measurement is disabled on the target");
+        }
+
+        long[] ids = threads.getAllThreadIds();
+        long[] before = threads.getThreadCpuTime(ids);
+        long start = System.nanoTime();
+        Thread.sleep(SAMPLE_MILLIS);
+        long[] after = threads.getThreadCpuTime(ids);
+        long elapsed = System.nanoTime() - start;
+
+        List<Usage> usages = new ArrayList<Usage>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            // -1 for threads that terminated in between
+            if (before[i] >= 0 && after[i] >= 0) {
+                usages.add(new Usage(ids[i], after[i] - before[i]));
+            }
+        }
+        Collections.sort(usages, new Comparator<Usage>() {
+            @Override
+            public int compare(Usage a, Usage b) {
+                return Long.compare(b.nanos, a.nanos);
+            }
+        });
+        List<Usage> top = usages.subList(0, Math.min(topN, usages.size()));
+
+        long[] topIds = new long[top.size()];
+        for (int i = 0; i < topIds.length; i++) {
+            topIds[i] = top.get(i).id;
+        }
+        ThreadInfo[] infos = threads.getThreadInfo(topIds, STACK_DEPTH);
+
+        long[] deadlocked = threads.findDeadlockedThreads();
+
+        List<Result> res = new ArrayList<Result>(2 + top.size());
+        res.add(new Result(top.isEmpty() ? 0L : percent(top.get(0).nanos, elapsed), "%", "topThreadCpu"));
+        res.add(new Result(deadlocked != null ? (long) deadlocked.length : 0L, "", DEADLOCKED));
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < top.size(); i++) {
+            // null if the thread terminated before its stack was read
+            if (infos[i] == null) {
+                continue;
+            }
+            long cpu = percent(top.get(i).nanos, elapsed);
+            String rank = THREAD_PREFIX + (i + 1);
+            res.add(new Result(cpu, "%", rank));
+            sb.append(rank).append(": ");
+            appendThread(sb, infos[i], cpu + "%");
+        }
+        if (deadlocked != null) {
+            sb.append("Deadlocked threads:\n");
+            long[] shown = Arrays.copyOf(deadlocked, Math.min(MAX_DEADLOCKED, deadlocked.length));
+            for (ThreadInfo info : threads.getThreadInfo(shown, STACK_DEPTH)) {
+                if (info != null) {
+                    appendThread(sb, info, "waiting for " + info.getLockName() + " held by \"" + info.getLockOwnerName() + "\"");
+                }
+            }
+        }
+        res.get(0).setDetails(sb.toString());
+        return res;
+    }
+
+    private static long percent(long nanos, long elapsed) {
+        return elapsed > 0 ? nanos * 100 / elapsed : 0;
+    }
+
+    private static void appendThread(StringBuilder sb, ThreadInfo info, String note) {
+        sb.append('"').append(info.getThreadName()).append("\" (").append(info.getThreadState()).append(") ")
+                .append(note).append("\n");
+        for (StackTraceElement frame : info.getStackTrace()) {
+            sb.append("    at ").append(frame).append("\n");
+        }
+    }
+}
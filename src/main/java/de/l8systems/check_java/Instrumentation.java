@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.Socket;
+import java.rmi.server.RMISocketFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures what check_java itself costs: the time spent in each phase of a check, the calls made to
+ * and the bytes exchanged with JMX servers, and the memory allocated.
+ *
+ * Calls are counted by every JMXClient. Bytes are only counted once install() has replaced the RMI
+ * socket factory of the process, which must happen before the first connection is made. Bytes and
+ * allocations are counted for the whole process, so in daemon mode the figures of a single check
+ * include the work of checks running at the same time.
+ */
+public class Instrumentation implements InstrumentationMBean {
+    /**
+     * The phases of a check, in the order they happen
+     */
+    public enum Phase {
+        STARTUP("startup"), CONNECT("connect"), FETCH("fetch"), OUTPUT("output");
+
+        private final String name;
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Return the name of the phase in the performance data, e.g. check_java.connect
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+    }
+
+    private static final Instrumentation TOTALS = new Instrumentation();
+    private static boolean installed;
+
+    private final AtomicLong checks = new AtomicLong();
+    private final AtomicLong[] phaseNanos = new AtomicLong[Phase.values().length];
+    private final AtomicLong rmiCalls = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    private Instrumentation() {
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Count the bytes of all RMI connections made from now on. Has no effect if another RMI socket
+     * factory has already been installed.
+     */
+    public static synchronized void install() {
+        if (installed) {
+            return;
+        }
+        try {
+            RMISocketFactory.setSocketFactory(new CountingSocketFactory());
+        } catch (IOException e) {
+            // a factory has been set already, bytes are not counted
+        }
+        installed = true;
+    }
+
+    /**
+     * Register the totals of all checks as MBean de.l8systems.check_java:type=Instrumentation in the
+     * platform MBeanServer.
+     */
+    public static void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(TOTALS, new ObjectName("de.l8systems.check_java:type=Instrumentation"));
+    }
+
+    /**
+     * Return a connection that counts the calls made through it
+     * @param mbsc the connection to count the calls of
+     * @return the counting connection
+     */
+    static MBeanServerConnection countCalls(final MBeanServerConnection mbsc) {
+        return (MBeanServerConnection) Proxy.newProxyInstance(MBeanServerConnection.class.getClassLoader(),
+                new Class<?>[] {MBeanServerConnection.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                TOTALS.rmiCalls.incrementAndGet();
+                try {
+                    return method.invoke(mbsc, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        });
+    }
+
+    @Override
+    public long getChecks() {
+        return checks.get();
+    }
+
+    @Override
+    public long getConnectTime() {
+        return TimeUnit.NANOSECONDS.toMillis(phaseNanos[Phase.CONNECT.ordinal()].get());
+    }
+
+    @Override
+    public long getFetchTime() {
+        return TimeUnit.NANOSECONDS.toMillis(phaseNanos[Phase.FETCH.ordinal()].get());
+    }
+
+    @Override
+    public long getOutputTime() {
+        return TimeUnit.NANOSECONDS.toMillis(phaseNanos[Phase.OUTPUT.ordinal()].get());
+    }
+
+    @Override
+    public long getRmiCalls() {
+        return rmiCalls.get();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return allocatedBytes();
+    }
+
+    /**
+     * Return the bytes allocated by all live threads, or 0 if the JVM cannot tell. Threads that have
+     * already terminated are not included.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+        if (!sunThreads.isThreadAllocatedMemorySupported() || !sunThreads.isThreadAllocatedMemoryEnabled()) {
+            return 0;
+        }
+        long sum = 0;
+        for (long bytes : sunThreads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                sum += bytes;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * The measurements of a single check. Every phase lasts from the end of the previous one until
+     * end() is called for it.
+     */
+    public static class Run {
+        private final long[] phaseNanos = new long[Phase.values().length];
+        private final long rmiCalls = TOTALS.rmiCalls.get();
+        private final long bytesRead = TOTALS.bytesRead.get();
+        private final long bytesWritten = TOTALS.bytesWritten.get();
+        private final long allocated = allocatedBytes();
+        private final boolean startup;
+        private long last = System.nanoTime();
+
+        /**
+         * Start measuring a check
+         * @param startup whether the check started with the JVM, so the time since the JVM was
+         *                started is accounted as the startup phase
+         */
+        public Run(boolean startup) {
+            this.startup = startup;
+            if (startup) {
+                phaseNanos[Phase.STARTUP.ordinal()] = TimeUnit.MILLISECONDS.toNanos(ManagementFactory.getRuntimeMXBean().getUptime());
+            }
+        }
+
+        /**
+         * End a phase of the check
+         * @param phase the phase that has ended
+         */
+        public void end(Phase phase) {
+            long now = System.nanoTime();
+            phaseNanos[phase.ordinal()] += now - last;
+            last = now;
+        }
+
+        /**
+         * Add the measurements to the totals exposed by the MBean and return the Nagios output of the
+         * check, with the measurements appended to its performance data if requested.
+         *
+         * @param output the Nagios output of the check
+         * @param perfData whether to append the measurements as performance data
+         * @return the output
+         */
+        public String finish(String output, boolean perfData) {
+            TOTALS.checks.incrementAndGet();
+            for (Phase phase : Phase.values()) {
+                TOTALS.phaseNanos[phase.ordinal()].addAndGet(phaseNanos[phase.ordinal()]);
+            }
+            if (!perfData) {
+                return output;
+            }
+
+            StringBuilder fields = new StringBuilder();
+            for (Phase phase : Phase.values()) {
+                if (phase == Phase.STARTUP && !startup) {
+                    continue;
+                }
+                fields.append(" check_java.").append(phase.getName()).append("=")
+                        .append(TimeUnit.NANOSECONDS.toMicros(phaseNanos[phase.ordinal()]) / 1000.0).append("ms;;;;");
+            }
+            fields.append(" check_java.rmi_calls=").append(TOTALS.rmiCalls.get() - rmiCalls).append(";;;;");
+            fields.append(" check_java.bytes_read=").append(TOTALS.bytesRead.get() - bytesRead).append("B;;;;");
+            fields.append(" check_java.bytes_written=").append(TOTALS.bytesWritten.get() - bytesWritten).append("B;;;;");
+            fields.append(" check_java.allocated=").append(Math.max(0, allocatedBytes() - allocated)).append("B;;;;");
+
+            // the performance data is the last line of the output
+            String body = output.endsWith("\n") ? output.substring(0, output.length() - 1) : output;
+            int lastLine = body.lastIndexOf('\n') + 1;
+            String separator = body.indexOf(" |", lastLine) >= 0 ? "" : "\n |";
+            return body + separator + fields + "\n";
+        }
+    }
+
+    /**
+     * Creates sockets for RMI that count the bytes read from and written to them. Only one factory
+     * can be installed, so it applies the timeouts of JMXClient as well.
+     */
+    private static class CountingSocketFactory extends TimeoutSocketFactory {
+        CountingSocketFactory() {
+            super(JMXClient.SOCKET_TIMEOUT, JMXClient.SOCKET_TIMEOUT);
+        }
+
+        @Override
+        protected Socket newSocket() {
+            return new CountingSocket();
+        }
+    }
+
+    private static class CountingSocket extends Socket {
+        private InputStream countingIn;
+        private OutputStream countingOut;
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (countingIn == null) {
+                countingIn = new FilterInputStream(super.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b >= 0) {
+                            TOTALS.bytesRead.incrementAndGet();
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int n = super.read(b, off, len);
+                        if (n > 0) {
+                            TOTALS.bytesRead.addAndGet(n);
+                        }
+                        return n;
+                    }
+                };
+            }
+            return countingIn;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (countingOut == null) {
+                countingOut = new FilterOutputStream(super.getOutputStream()) {
+                    @Override
+                    public void write(int b) throws IOException {
+                        out.write(b);
+                        TOTALS.bytesWritten.incrementAndGet();
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                        TOTALS.bytesWritten.addAndGet(len);
+                    }
+                };
+            }
+            return countingOut;
+        }
+    }
+}
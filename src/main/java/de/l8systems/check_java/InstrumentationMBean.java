@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+/**
+ * The cost of check_java itself, as exposed over JMX in daemon mode. All times are totals over all
+ * checks answered since the daemon started.
+ */
+public interface InstrumentationMBean {
+    /**
+     * @return the number of checks answered
+     */
+    long getChecks();
+
+    /**
+     * @return the time spent establishing JMX connections, in milliseconds
+     */
+    long getConnectTime();
+
+    /**
+     * @return the time spent fetching values, in milliseconds
+     */
+    long getFetchTime();
+
+    /**
+     * @return the time spent evaluating values and formatting the output, in milliseconds
+     */
+    long getOutputTime();
+
+    /**
+     * @return the number of calls made to JMX servers
+     */
+    long getRmiCalls();
+
+    /**
+     * @return the number of bytes received over RMI connections
+     */
+    long getBytesRead();
+
+    /**
+     * @return the number of bytes sent over RMI connections
+     */
+    long getBytesWritten();
+
+    /**
+     * @return the number of bytes allocated by the live threads of check_java
+     */
+    long getAllocatedBytes();
+}
@@ -29,16 +29,31 @@
 package de.l8systems.check_java;
 
 import javax.management.*;
-import javax.management.openmbean.CompositeDataSupport;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
+import java.rmi.server.RMISocketFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * JMX interface class.
@@ -48,27 +63,59 @@ import java.util.Set;
 public class JMXClient {
     private MBeanServerConnection mbsc;
     private JMXConnector connector;
+    private BeanResolver resolver;
+    private String location;
+    private final ConcurrentMap<String, FutureTask<List<Object>>> inFlight = new ConcurrentHashMap<>();
+
+    private static final long DEFAULT_HEDGE_DELAY = 1000;
+    private static final long MIN_HEDGE_DELAY = 50;
 
     /**
-     * An exemplary listener to retrieve notifications through JMX.
-     */
-    public static class ClientListener implements NotificationListener {
-
-        public void handleNotification(Notification notification,
-                                       Object handback) {
-            System.out.println("\nReceived notification:");
-            System.out.println("\tClassName: " + notification.getClass().getName());
-            System.out.println("\tSource: " + notification.getSource());
-            System.out.println("\tType: " + notification.getType());
-            System.out.println("\tMessage: " + notification.getMessage());
-            if (notification instanceof AttributeChangeNotification) {
-                AttributeChangeNotification acn =
-                        (AttributeChangeNotification) notification;
-                System.out.println("\tAttributeName: " + acn.getAttributeName());
-                System.out.println("\tAttributeType: " + acn.getAttributeType());
-                System.out.println("\tNewValue: " + acn.getNewValue());
-                System.out.println("\tOldValue: " + acn.getOldValue());
-            }
+     * How long an RMI call waits for a connection or an answer before it fails. This bounds how long
+     * a thread abandoned by a deadline can hang; deadlines themselves are usually much shorter.
+     */
+    static final int SOCKET_TIMEOUT = 30000;
+
+    /**
+     * How long the server may hold a request for notifications, well below the socket timeout so a
+     * quiet target does not look like a hung one
+     */
+    private static final long NOTIFICATION_FETCH_TIMEOUT = 10000;
+
+    /**
+     * Why the RMI sockets have no timeouts, null if they have them
+     */
+    private static final String SOCKET_FACTORY_ERROR;
+
+    static {
+        // read once by the RMI transport, and it applies them to the sockets it gets from the factory
+        setDefault("sun.rmi.transport.tcp.handshakeTimeout", SOCKET_TIMEOUT);
+        setDefault("sun.rmi.transport.tcp.responseTimeout", SOCKET_TIMEOUT);
+        SOCKET_FACTORY_ERROR = installSocketFactory();
+    }
+
+    /**
+     * Install the RMI socket factory with timeouts, unless Instrumentation has installed its own that
+     * applies them as well. The factory can only be set once per process.
+     *
+     * @return null if the installed factory applies the timeouts, the reason otherwise
+     */
+    private static String installSocketFactory() {
+        if (RMISocketFactory.getSocketFactory() instanceof TimeoutSocketFactory) {
+            return null;
+        }
+        try {
+            RMISocketFactory.setSocketFactory(new TimeoutSocketFactory(SOCKET_TIMEOUT, SOCKET_TIMEOUT));
+            return null;
+        } catch (IOException e) {
+            return "RMI socket factory " + RMISocketFactory.getSocketFactory().getClass().getName()
+                    + " is installed already, connections would have no socket timeouts";
+        }
+    }
+
+    private static void setDefault(String property, int value) {
+        if (System.getProperty(property) == null) {
+            System.setProperty(property, String.valueOf(value));
         }
     }
 
@@ -81,19 +128,214 @@ public class JMXClient {
      */
     public JMXClient(String location) throws MalformedURLException, java.io.IOException {
         System.out.println("Connecting to JMX server");
-	
+        init(location, openConnector(location));
+    }
+
+    private JMXClient(String location, JMXConnector connector) throws IOException {
+        init(location, connector);
+    }
+
+    private void init(String location, JMXConnector connector) throws IOException {
+        this.location = location;
+        this.connector = connector;
+        resolver = new BeanResolver(location);
+        mbsc = Instrumentation.countCalls(connector.getMBeanServerConnection());
+    }
+
+    private static JMXConnector openConnector(String location) throws MalformedURLException, IOException {
+        if (SOCKET_FACTORY_ERROR != null) {
+            throw new IOException(SOCKET_FACTORY_ERROR);
+        }
 	String jmxUser = System.getenv("check_java_jmxUser");
 	String jmxPass = System.getenv("check_java_jmxPass");
 	
 	Map<String, Object> env = new HashMap<>();
 	String[] creds = new String[] {jmxUser, jmxPass};
         env.put(JMXConnector.CREDENTIALS, creds);
+        env.put("jmx.remote.x.notification.fetch.timeout", NOTIFICATION_FETCH_TIMEOUT);
 	
+        if (LocalAttach.isLocal(location)) {
+            try {
+                return JMXConnectorFactory.connect(new JMXServiceURL(LocalAttach.getConnectorAddress(location, false)), env);
+            } catch (IOException e) {
+                // the JVM the address was found for may have been replaced by another with the same PID
+                return JMXConnectorFactory.connect(new JMXServiceURL(LocalAttach.getConnectorAddress(location, true)), env);
+            }
+        }
+
         JMXServiceURL url = new JMXServiceURL(location);
 	
-        connector = JMXConnectorFactory.connect(url, env);
-	
-        mbsc = connector.getMBeanServerConnection();
+        return JMXConnectorFactory.connect(url, env);
+    }
+
+    /**
+     * Create a new connection to a JMX server that is established before a deadline.
+     *
+     * The RMI registry lookup and the connection handshake run on the threads of the deadline, so a
+     * target that accepts the TCP connection but never answers cannot hold up the caller. If hedge is
+     * set and the first attempt takes longer than connections to this target usually do, or fails
+     * right away, a second attempt is started in parallel and the first one to succeed is used. An
+     * attempt that is no longer needed closes its connection itself should it ever succeed. The usual
+     * connect time is tracked per target in the StateStore.
+     *
+     * @param location the URL of the JMX server
+     * @param deadline the deadline the connection must be established by
+     * @param hedge whether to start a second attempt if the first one is slow
+     * @return the connected client
+     * @throws TimeoutException if no attempt succeeded before the deadline
+     * @throws IOException if all attempts failed
+     */
+    public static JMXClient connect(String location, Deadline deadline, boolean hedge) throws IOException, TimeoutException, InterruptedException {
+        System.out.println("Connecting to JMX server");
+        CompletionService<JMXConnector> attempts = new ExecutorCompletionService<>(Deadline.EXECUTOR);
+        Map<Future<JMXConnector>, Attempt> pending = new HashMap<>();
+        long start = System.nanoTime();
+        long hedgeDelay = hedge ? hedgeDelayMillis(location) : 0;
+        int started = 0;
+        IOException failure = null;
+
+        try {
+            while (true) {
+                if (started == 0 || (hedge && started == 1 && pending.isEmpty())) {
+                    Attempt attempt = new Attempt(location);
+                    pending.put(attempts.submit(attempt), attempt);
+                    started++;
+                }
+                if (pending.isEmpty()) {
+                    throw failure;
+                }
+
+                long wait = deadline.remainingMillis();
+                boolean hedgePending = hedge && started == 1;
+                if (hedgePending) {
+                    wait = Math.min(wait, Math.max(0, hedgeDelay - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+                }
+                Future<JMXConnector> done = attempts.poll(wait, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    if (!hedgePending || deadline.remainingMillis() == 0) {
+                        throw deadline.timeout();
+                    }
+                    Attempt attempt = new Attempt(location);
+                    pending.put(attempts.submit(attempt), attempt);
+                    started++;
+                    continue;
+                }
+
+                pending.remove(done);
+                JMXConnector connector;
+                try {
+                    connector = done.get();
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    continue;
+                }
+                recordConnectTime(location, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                try {
+                    return new JMXClient(location, connector);
+                } catch (IOException e) {
+                    closeQuietly(connector);
+                    failure = e;
+                }
+            }
+        } finally {
+            for (Map.Entry<Future<JMXConnector>, Attempt> e : pending.entrySet()) {
+                e.getValue().abandon(e.getKey());
+            }
+        }
+    }
+
+    /**
+     * One attempt to connect. Whichever of the attempt and the caller giving up on it comes second
+     * closes the connection, so an abandoned attempt never leaves one open and never needs a thread
+     * waiting for it.
+     */
+    private static class Attempt implements Callable<JMXConnector> {
+        private final String location;
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        Attempt(String location) {
+            this.location = location;
+        }
+
+        @Override
+        public JMXConnector call() throws IOException {
+            JMXConnector connector = openConnector(location);
+            if (!settled.compareAndSet(false, true)) {
+                closeQuietly(connector);
+            }
+            return connector;
+        }
+
+        /**
+         * Give up on the attempt
+         * @param future the future of the attempt
+         */
+        void abandon(Future<JMXConnector> future) {
+            if (settled.compareAndSet(false, true)) {
+                // the attempt closes its connection itself if it ever gets one
+                return;
+            }
+            try {
+                // the attempt has already connected and is only handing over its result
+                closeQuietly(future.get());
+            } catch (Exception e) {
+                // no connection to close
+            }
+        }
+    }
+
+    private static void closeQuietly(JMXConnector connector) {
+        try {
+            connector.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+
+    /**
+     * Return how long to wait for the first connection attempt before starting a second one: the
+     * usual connect time plus four times its mean deviation, which is rarely exceeded by a healthy
+     * target. Without any history, one second.
+     */
+    private static long hedgeDelayMillis(String location) {
+        try {
+            StateStore.Sample stats = StateStore.getDefault().get("connect|" + location);
+            if (stats != null) {
+                return Math.max(MIN_HEDGE_DELAY, stats.getTime() + 4 * stats.getValue());
+            }
+        } catch (IOException e) {
+            // no history available
+        }
+        return DEFAULT_HEDGE_DELAY;
+    }
+
+    /**
+     * Fold a connect time into the moving mean and mean deviation of the target. The StateStore
+     * sample holds the mean as its time and the deviation as its value.
+     */
+    private static void recordConnectTime(String location, long millis) {
+        String key = "connect|" + location;
+        try {
+            StateStore store = StateStore.getDefault();
+            StateStore.Sample stats = store.get(key);
+            long mean = millis;
+            long dev = millis / 2;
+            if (stats != null) {
+                mean = stats.getTime() + (millis - stats.getTime()) / 8;
+                dev = stats.getValue() + (Math.abs(millis - stats.getTime()) - stats.getValue()) / 4;
+            }
+            store.swap(key, mean, dev);
+        } catch (IOException e) {
+            // the statistics are only an optimisation
+        }
+    }
+
+    /**
+     * Return the URL of the JMX server this client is connected to
+     * @return the URL
+     */
+    public String getUrl() {
+        return location;
     }
 
     /**
@@ -151,15 +393,233 @@ public class JMXClient {
         return mbsc.getMBeanInfo(obj);
     }
 
+    /**
+     * Return all MBeans on the server together with their class names
+     * @return the MBeans
+     * @throws java.io.IOException
+     */
+    public Set<ObjectInstance> queryMBeans() throws java.io.IOException {
+        return mbsc.queryMBeans(null, null);
+    }
+
+    /**
+     * Retrieve information on a specific MBean available through the JMX server
+     * @param name the MBean in question
+     * @return the information on the MBean
+     * @throws IntrospectionException
+     * @throws ReflectionException
+     * @throws InstanceNotFoundException
+     * @throws IOException
+     */
+    public MBeanInfo getMBeanInfo(ObjectName name) throws IntrospectionException, ReflectionException, InstanceNotFoundException, IOException {
+        return mbsc.getMBeanInfo(name);
+    }
+
+    /**
+     * Retrieve the values of several attributes of one MBean. Attributes that cannot be read are
+     * missing from the result.
+     * @param name the MBean to read
+     * @param attributes the names of the attributes
+     * @return the values that could be read
+     * @throws InstanceNotFoundException
+     * @throws ReflectionException
+     * @throws IOException
+     */
+    public AttributeList getAttributes(ObjectName name, String[] attributes) throws InstanceNotFoundException, ReflectionException, IOException {
+        return mbsc.getAttributes(name, attributes);
+    }
+
     public Object getAttribute(String objectName, String attribute, String subAttribute) throws AttributeNotFoundException, MBeanException, ReflectionException, InstanceNotFoundException, IOException, MalformedObjectNameException {
         ObjectName obj = new ObjectName(objectName);
         Object val = mbsc.getAttribute(obj, attribute);
 
-        if (val instanceof CompositeDataSupport && subAttribute != null) {
-            return ((CompositeDataSupport) val).get(subAttribute);
-        } else {
+        return extractSubAttribute(val, subAttribute);
+    }
+
+    /**
+     * Retrieve the values of several attributes at once.
+     *
+     * The identifiers are compiled into a QueryPlan that groups them by the MBean they reside in, so
+     * every MBean is queried with a single getAttributes call, no matter how many (sub-)attributes are
+     * requested from it. Sub-attributes of the same complex attribute are all extracted from the one
+     * value that was transferred, and may be paths into nested CompositeData and TabularData (see
+     * AttributePath). Identifiers that refer to an MBean by its role are resolved first.
+     *
+     * @param ids the attributes to retrieve
+     * @return the values of the attributes, in the same order as the given identifiers
+     * @throws AttributeNotFoundException
+     * @throws InstanceNotFoundException
+     * @throws ReflectionException
+     * @throws IOException
+     * @throws MalformedObjectNameException
+     */
+    public List<Object> getAttributes(List<AttributeIdentifier> ids) throws AttributeNotFoundException, InstanceNotFoundException, ReflectionException, IOException, MalformedObjectNameException {
+        List<AttributeIdentifier> resolved = resolver.resolve(this, ids);
+        try {
+            return fetchAttributes(resolved);
+        } catch (InstanceNotFoundException e) {
+            if (resolved == ids) {
+                throw e;
+            }
+            // a cached name may be stale, e.g. after the target was restarted with another collector
+            resolver.invalidate();
+            return fetchAttributes(resolver.resolve(this, ids));
+        }
+    }
+
+    /**
+     * Retrieve the values of several JMX attributes like getAttributes(), but yield null for those the
+     * target does not have instead of failing, so checks that do not apply to a target, like one of
+     * a memory pool another collector lacks, do not cost the others their batched read.
+     *
+     * @param ids the attributes to retrieve
+     * @return the values of the attributes, in the same order as the given identifiers, null for
+     *         those the target does not have
+     * @throws ReflectionException
+     * @throws IOException
+     * @throws MalformedObjectNameException
+     */
+    public List<Object> getAvailableAttributes(List<AttributeIdentifier> ids) throws ReflectionException, IOException, MalformedObjectNameException {
+        List<AttributeIdentifier> resolved = resolver.resolveAvailable(this, ids);
+        List<AttributeIdentifier> available = new ArrayList<>(resolved.size());
+        for (AttributeIdentifier id : resolved) {
+            if (id != null) {
+                available.add(id);
+            }
+        }
+
+        List<Object> vals;
+        try {
+            vals = QueryPlan.compile(available).execute(this, true);
+        } catch (AttributeNotFoundException | InstanceNotFoundException e) {
+            throw new IllegalStateException("Missing attributes are skipped", e);
+        }
+        List<Object> res = new ArrayList<>(resolved.size());
+        int next = 0;
+        for (AttributeIdentifier id : resolved) {
+            res.add(id != null ? vals.get(next++) : null);
+        }
+        return res;
+    }
+
+    /**
+     * Return the names of all MBeans matching a pattern
+     * @param pattern the ObjectName pattern, e.g. "java.lang:type=MemoryPool,*"
+     * @return the matching MBean names
+     * @throws MalformedObjectNameException
+     * @throws IOException
+     */
+    public Set<ObjectName> queryNames(String pattern) throws MalformedObjectNameException, IOException {
+        return mbsc.queryNames(new ObjectName(pattern), null);
+    }
+
+    private List<Object> fetchAttributes(List<AttributeIdentifier> ids) throws AttributeNotFoundException, InstanceNotFoundException, ReflectionException, IOException, MalformedObjectNameException {
+        return execute(QueryPlan.compile(ids));
+    }
+
+    /**
+     * Fetch the attributes of a query plan.
+     *
+     * Threads sharing this client, like the workers of the daemon, that ask for the same attributes
+     * while a fetch of them is running wait for that fetch and get its values, instead of sending
+     * the same requests to the target again. The values must not be modified.
+     *
+     * @param plan the plan
+     * @return the values, in the order of the attributes the plan was compiled for
+     * @throws AttributeNotFoundException
+     * @throws InstanceNotFoundException
+     * @throws ReflectionException
+     * @throws IOException
+     */
+    public List<Object> execute(final QueryPlan plan) throws AttributeNotFoundException, InstanceNotFoundException, ReflectionException, IOException {
+        String key = plan.getKey();
+        FutureTask<List<Object>> task = new FutureTask<List<Object>>(new Callable<List<Object>>() {
+            @Override
+            public List<Object> call() throws Exception {
+                return plan.execute(JMXClient.this);
+            }
+        });
+        FutureTask<List<Object>> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+            running = task;
+        }
+
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for attributes of " + location);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AttributeNotFoundException) {
+                throw (AttributeNotFoundException) cause;
+            } else if (cause instanceof InstanceNotFoundException) {
+                throw (InstanceNotFoundException) cause;
+            } else if (cause instanceof ReflectionException) {
+                throw (ReflectionException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Return the value a path points to inside a complex typed value, or the value itself if there is
+     * no path.
+     *
+     * @param val the value of the attribute
+     * @param subAttribute the path into the value, may be null
+     * @return the value the path points to
+     */
+    private static Object extractSubAttribute(Object val, String subAttribute) {
+        if (subAttribute == null) {
             return val;
         }
+        return AttributePath.of(subAttribute).extract(val);
+    }
+
+    /**
+     * Return a proxy of the target's ThreadMXBean, including the HotSpot extensions such as bulk reads
+     * of thread CPU times
+     * @return the proxy
+     * @throws IOException
+     */
+    public com.sun.management.ThreadMXBean getThreadMXBean() throws IOException {
+        return ManagementFactory.newPlatformMXBeanProxy(mbsc, ManagementFactory.THREAD_MXBEAN_NAME, com.sun.management.ThreadMXBean.class);
+    }
+
+    /**
+     * Subscribe to the notifications of an MBean
+     * @param name the MBean that emits the notifications
+     * @param listener the listener that receives them
+     * @param filter selects the notifications the listener receives, may be null for all
+     * @throws InstanceNotFoundException
+     * @throws IOException
+     */
+    public void addNotificationListener(ObjectName name, NotificationListener listener, NotificationFilter filter) throws InstanceNotFoundException, IOException {
+        mbsc.addNotificationListener(name, listener, filter, null);
+    }
+
+    /**
+     * Remove a subscription made with addNotificationListener
+     * @param name the MBean that emits the notifications
+     * @param listener the listener that received them
+     * @throws InstanceNotFoundException
+     * @throws ListenerNotFoundException
+     * @throws IOException
+     */
+    public void removeNotificationListener(ObjectName name, NotificationListener listener) throws InstanceNotFoundException, ListenerNotFoundException, IOException {
+        mbsc.removeNotificationListener(name, listener);
     }
 
     public void close() throws IOException {
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the JMX connector of a JVM on the same host through the Attach API, so it can be monitored
+ * without a JMX port and without an RMI registry.
+ *
+ * The target is given as a URL of the form local:&lt;PID&gt; or local:&lt;part of the main class&gt;.
+ * Attaching starts the target's local management agent if it is not running yet and returns the
+ * address of its connector. Attaching takes much longer than connecting, so the address is kept
+ * in the StateDirectory, where no other user can replace it, and reused for as long as the JVM with that PID lives.
+ *
+ * The Attach API only works for JVMs of the same user, and on Java 8 it needs tools.jar on the class
+ * path. It is called through reflection, so check_java builds and runs without it and only local:
+ * URLs fail if it is missing.
+ */
+public class LocalAttach {
+    /**
+     * The scheme of URLs that refer to a local JVM
+     */
+    public static final String SCHEME = "local:";
+
+    /**
+     * Return whether a URL refers to a local JVM
+     * @param location the URL
+     * @return true for local:... URLs
+     */
+    public static boolean isLocal(String location) {
+        return location.startsWith(SCHEME);
+    }
+
+    /**
+     * Return the address of the JMX connector of a local JVM
+     *
+     * @param location the local:... URL of the JVM
+     * @param fresh whether to attach even if a previously found address is known
+     * @return the address of the connector
+     * @throws IOException if there is no single matching JVM or it cannot be attached to
+     */
+    public static String getConnectorAddress(String location, boolean fresh) throws IOException {
+        String pid = findPid(location.substring(SCHEME.length()));
+        File cache = cacheFile(pid);
+        if (!fresh && cache.isFile()) {
+            return new String(Files.readAllBytes(cache.toPath()), StandardCharsets.UTF_8).trim();
+        }
+
+        Object vm = invoke("VirtualMachine", null, "attach", pid);
+        String address;
+        try {
+            address = (String) invoke("VirtualMachine", vm, "startLocalManagementAgent");
+        } finally {
+            invoke("VirtualMachine", vm, "detach");
+        }
+
+        File tmp = new File(cache.getPath() + ".tmp");
+        Files.write(tmp.toPath(), address.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return address;
+    }
+
+    /**
+     * Return the PID of the JVM a local URL refers to: the PID itself, or the PID of the only other
+     * JVM whose main class and arguments contain the given text.
+     */
+    private static String findPid(String spec) throws IOException {
+        if (spec.matches("[0-9]+")) {
+            return spec;
+        }
+
+        String self = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        List<String> matches = new ArrayList<String>();
+        for (Object vm : (List<?>) invoke("VirtualMachine", null, "list")) {
+            String id = (String) invoke("VirtualMachineDescriptor", vm, "id");
+            if (!id.equals(self) && ((String) invoke("VirtualMachineDescriptor", vm, "displayName")).contains(spec)) {
+                matches.add(id);
+            }
+        }
+        if (matches.isEmpty()) {
+            throw new IOException("No local JVM matches " + spec);
+        } else if (matches.size() > 1) {
+            throw new IOException("Several local JVMs match " + spec + ": " + matches);
+        }
+        return matches.get(0);
+    }
+
+    /**
+     * Call a method of a class of the Attach API
+     *
+     * @param type the name of the class in com.sun.tools.attach
+     * @param target the object to call the method on, null for a static method
+     * @param method the name of the method
+     * @param args the arguments, all of them strings
+     * @return what the method returned
+     * @throws IOException if the Attach API is not available, or the method failed
+     */
+    private static Object invoke(String type, Object target, String method, String... args) throws IOException {
+        try {
+            Class<?>[] params = new Class<?>[args.length];
+            Arrays.fill(params, String.class);
+            Method m = Class.forName("com.sun.tools.attach." + type).getMethod(method, params);
+            return m.invoke(target, (Object[]) args);
+        } catch (ClassNotFoundException | LinkageError e) {
+            throw new IOException("The Attach API is not available, add tools.jar to the class path");
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            // e.g. AttachNotSupportedException
+            throw new IOException("Could not attach to the JVM: " + e.getCause().getMessage(), e.getCause());
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new IOException("Could not use the Attach API: " + e, e);
+        }
+    }
+
+    private static File cacheFile(String pid) throws IOException {
+        return new File(StateDirectory.get(), "local-" + pid + ".address");
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Walks all MBeans of a JMX server and prints every numeric attribute, and every numeric item of a
+ * CompositeData attribute, either as a check_java command line or as a metric line.
+ *
+ * The MBeans are walked in batches on a pool of threads sharing one connection. Every line is printed
+ * as soon as its MBean has been read, so memory use does not grow with the number of MBeans. Servers
+ * usually register thousands of MBeans of a handful of classes, so MBeanInfo is fetched once per class
+ * and reused for all MBeans of that class.
+ */
+public class MBeanDiscovery {
+    /**
+     * How discovered attributes are printed
+     */
+    public enum Format {
+        /**
+         * A check_java command line per attribute, with the current value as a comment
+         */
+        CHECKS("checks"),
+        /**
+         * The ObjectName, the attribute and the current value, separated by tabs
+         */
+        METRICS("metrics");
+
+        private final String name;
+
+        Format(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Look up a format by the name given with -L
+         * @param name the name
+         * @return the format
+         * @throws IllegalArgumentException if there is no format of that name
+         */
+        public static Format forName(String name) {
+            for (Format f : values()) {
+                if (f.name.equals(name)) {
+                    return f;
+                }
+            }
+            throw new IllegalArgumentException("Unknown discovery format: " + name);
+        }
+    }
+
+    private static final int BATCH_SIZE = 64;
+    private static final int THREADS = 16;
+
+    private final JMXClient client;
+    private final Format format;
+    private final PrintStream out;
+
+    /**
+     * MBeanInfo by the class of the MBean. Holds futures so concurrent batches wait for a single
+     * getMBeanInfo call instead of issuing their own.
+     */
+    private final ConcurrentMap<String, Future<MBeanInfo>> infoCache = new ConcurrentHashMap<>();
+
+    /**
+     * Create a discovery of all MBeans of a JMX server
+     * @param client the JMX server
+     * @param format how discovered attributes are printed
+     * @param out the stream to print them to
+     */
+    public MBeanDiscovery(JMXClient client, Format format, PrintStream out) {
+        this.client = client;
+        this.format = format;
+        this.out = out;
+    }
+
+    /**
+     * Walk all MBeans and print their numeric attributes.
+     *
+     * @return the number of attributes printed
+     */
+    public int run() throws IOException, InterruptedException {
+        List<ObjectInstance> instances = new ArrayList<>(client.queryMBeans());
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "check_java-discovery");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < instances.size(); i += BATCH_SIZE) {
+                final List<ObjectInstance> batch = instances.subList(i, Math.min(instances.size(), i + BATCH_SIZE));
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return walk(batch);
+                    }
+                }));
+            }
+
+            int count = 0;
+            for (Future<Integer> future : futures) {
+                try {
+                    count += future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException("Could not walk MBeans", e.getCause());
+                }
+            }
+            return count;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Read and print the numeric attributes of a batch of MBeans. MBeans that vanished in between or
+     * cannot be read are skipped.
+     */
+    private int walk(List<ObjectInstance> batch) throws IOException, InterruptedException {
+        int count = 0;
+        StringBuilder lines = new StringBuilder();
+        for (ObjectInstance instance : batch) {
+            AttributeList values;
+            try {
+                String[] attrs = readableAttributes(getInfo(instance));
+                if (attrs.length == 0) {
+                    continue;
+                }
+                values = client.getAttributes(instance.getObjectName(), attrs);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                continue;
+            }
+
+            lines.setLength(0);
+            for (Attribute attr : values.asList()) {
+                Object val = attr.getValue();
+                if (val instanceof Number) {
+                    append(lines, instance.getObjectName(), attr.getName(), (Number) val);
+                    count++;
+                } else if (val instanceof CompositeData) {
+                    CompositeData data = (CompositeData) val;
+                    for (String key : data.getCompositeType().keySet()) {
+                        if (data.get(key) instanceof Number) {
+                            append(lines, instance.getObjectName(), attr.getName() + "." + key, (Number) data.get(key));
+                            count++;
+                        }
+                    }
+                }
+            }
+            synchronized (out) {
+                out.print(lines);
+            }
+        }
+        return count;
+    }
+
+    private void append(StringBuilder lines, ObjectName name, String attribute, Number value) {
+        switch (format) {
+            case CHECKS:
+                lines.append("check_java -u ").append(quote(client.getUrl()))
+                        .append(" -t Attribute -o ").append(quote(name.getCanonicalName()))
+                        .append(" -a ").append(quote(attribute))
+                        .append(" -w WARN -c CRIT  # ").append(value).append("\n");
+                break;
+            case METRICS:
+                lines.append(name.getCanonicalName()).append("\t").append(attribute).append("\t").append(value).append("\n");
+                break;
+        }
+    }
+
+    private static String quote(String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * Return the MBeanInfo of an MBean, from the cache if another MBean of its kind has been
+     * introspected before.
+     */
+    private MBeanInfo getInfo(final ObjectInstance instance) throws Exception {
+        String key = cacheKey(instance);
+        FutureTask<MBeanInfo> task = new FutureTask<>(new Callable<MBeanInfo>() {
+            @Override
+            public MBeanInfo call() throws Exception {
+                return client.getMBeanInfo(instance.getObjectName());
+            }
+        });
+        Future<MBeanInfo> cached = infoCache.putIfAbsent(key, task);
+        if (cached == null) {
+            cached = task;
+            task.run();
+        }
+        try {
+            return cached.get();
+        } catch (ExecutionException e) {
+            // the MBean may have vanished, let the next one of its kind try again
+            infoCache.remove(key, cached);
+            throw (Exception) e.getCause();
+        }
+    }
+
+    /**
+     * Standard MBeans and MXBeans have the same MBeanInfo for all instances of a class. Dynamic MBeans
+     * such as model MBeans share one class for many kinds of beans, so the domain and type of their
+     * name are taken into account as well. Should two of them differ nonetheless, attributes the
+     * other one lacks are silently dropped by getAttributes.
+     */
+    private static String cacheKey(ObjectInstance instance) {
+        String className = instance.getClassName();
+        ObjectName name = instance.getObjectName();
+        return className + "|" + name.getDomain() + "|" + name.getKeyProperty("type");
+    }
+
+    private static String[] readableAttributes(MBeanInfo info) {
+        Set<String> names = new LinkedHashSet<>();
+        for (MBeanAttributeInfo attr : info.getAttributes()) {
+            if (attr.isReadable() && isCandidate(attr.getType())) {
+                names.add(attr.getName());
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Return whether an attribute of this type may have a numeric value or numeric items
+     */
+    private static boolean isCandidate(String type) {
+        switch (type) {
+            case "byte": case "short": case "int": case "long": case "float": case "double":
+            case "java.lang.Byte": case "java.lang.Short": case "java.lang.Integer": case "java.lang.Long":
+            case "java.lang.Float": case "java.lang.Double": case "java.lang.Number":
+            case "java.util.concurrent.atomic.AtomicInteger": case "java.util.concurrent.atomic.AtomicLong":
+            case "java.math.BigInteger": case "java.math.BigDecimal":
+            case "javax.management.openmbean.CompositeData":
+                return true;
+            default:
+                return false;
+        }
+    }
+}
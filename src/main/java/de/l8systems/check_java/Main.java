@@ -30,8 +30,19 @@
 
 package de.l8systems.check_java;
 
-import java.util.LinkedList;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class Main {
 
@@ -39,119 +50,212 @@ public class Main {
         try {
             Options opts = new Options(args);
 
-            List<AttributeIdentifier> attrs = new LinkedList<AttributeIdentifier>();
-            String hdr = "UNKNOWN";
-            switch (opts.getCheckType()) {
-                case HeapMem:
-                    attrs.add(new AttributeIdentifier("java.lang:type=Memory", "HeapMemoryUsage", "used", opts.getUnit()));
-                    attrs.add(new AttributeIdentifier("java.lang:type=Memory", "HeapMemoryUsage", "init", opts.getUnit()));
-                    attrs.add(new AttributeIdentifier("java.lang:type=Memory", "HeapMemoryUsage", "committed", opts.getUnit()));
-                    attrs.add(new AttributeIdentifier("java.lang:type=Memory", "HeapMemoryUsage", "max", opts.getUnit()));
-                    hdr = "Heap Memory Usage";
-                    break;
-
-                case NonHeapMem:
-                    attrs.add(new AttributeIdentifier("java.lang:type=Memory", "NonHeapMemoryUsage", "used", opts.getUnit()));
-                    attrs.add(new AttributeIdentifier("java.lang:type=Memory", "NonHeapMemoryUsage", "init", opts.getUnit()));
-                    attrs.add(new AttributeIdentifier("java.lang:type=Memory", "NonHeapMemoryUsage", "committed", opts.getUnit()));
-                    attrs.add(new AttributeIdentifier("java.lang:type=Memory", "NonHeapMemoryUsage", "max", opts.getUnit()));
-                    hdr = "Non-Heap Memory Usage";
-                    break;
-
-                case MemPoolEden:
-                    attrs.add(new AttributeIdentifier("java.lang:type=MemoryPool,name=PS Eden Space", "Usage", "used", opts.getUnit()));
-                    attrs.add(new AttributeIdentifier("java.lang:type=MemoryPool,name=PS Eden Space", "Usage", "init", opts.getUnit()));
-                    attrs.add(new AttributeIdentifier("java.lang:type=MemoryPool,name=PS Eden Space", "Usage", "committed", opts.getUnit()));
-                    attrs.add(new AttributeIdentifier("java.lang:type=MemoryPool,name=PS Eden Space", "Usage", "max", opts.getUnit()));
-                    hdr = "Memory Pool PS Eden Space Usage";
-                    break;
-
-                case MemPoolSurvivor:
-                    attrs.add(new AttributeIdentifier("java.lang:type=MemoryPool,name=PS Survivor Space", "Usage", "used", opts.getUnit()));
-                    attrs.add(new AttributeIdentifier("java.lang:type=MemoryPool,name=PS Survivor Space", "Usage", "init", opts.getUnit()));
-                    attrs.add(new AttributeIdentifier("java.lang:type=MemoryPool,name=PS Survivor Space", "Usage", "committed", opts.getUnit()));
-                    attrs.add(new AttributeIdentifier("java.lang:type=MemoryPool,name=PS Survivor Space", "Usage", "max", opts.getUnit()));
-                    hdr = "Memory Pool PS Survivor Space Usage";
-                    break;
-
-                case MemPoolCodeCache:
-                    attrs.add(new AttributeIdentifier("java.lang:type=MemoryPool,name=Code Cache", "Usage", "used", opts.getUnit()));
-                    attrs.add(new AttributeIdentifier("java.lang:type=MemoryPool,name=Code Cache", "Usage", "init", opts.getUnit()));
-                    attrs.add(new AttributeIdentifier("java.lang:type=MemoryPool,name=Code Cache", "Usage", "committed", opts.getUnit()));
-                    attrs.add(new AttributeIdentifier("java.lang:type=MemoryPool,name=Code Cache", "Usage", "max", opts.getUnit()));
-                    hdr = "Memory Pool Code Cache Usage";
-                    break;
-
-                case MemPoolOldGen:
-                    attrs.add(new AttributeIdentifier("java.lang:type=MemoryPool,name=PS Old Gen", "Usage", "used", opts.getUnit()));
-                    attrs.add(new AttributeIdentifier("java.lang:type=MemoryPool,name=PS Old Gen", "Usage", "init", opts.getUnit()));
-                    attrs.add(new AttributeIdentifier("java.lang:type=MemoryPool,name=PS Old Gen", "Usage", "committed", opts.getUnit()));
-                    attrs.add(new AttributeIdentifier("java.lang:type=MemoryPool,name=PS Old Gen", "Usage", "max", opts.getUnit()));
-                    hdr = "Memory Pool PS Old Gen Usage";
-                    break;
-
-                case GCMarkSweepCount:
-                    attrs.add(new AttributeIdentifier("java.lang:type=GarbageCollector,name=PS MarkSweep", "CollectionCount", ""));
-                    hdr = "Garbage Collection Count";
-                    break;
-
-                case GCMarkSweepTime:
-                    attrs.add(new AttributeIdentifier("java.lang:type=GarbageCollector,name=PS MarkSweep", "CollectionTime", "ms"));
-                    hdr = "Garbage Collection Time";
-                    break;
-
-                case ClassLoading:
-                    attrs.add(new AttributeIdentifier("java.lang:type=ClassLoading", "LoadedClassCount", ""));
-                    attrs.add(new AttributeIdentifier("java.lang:type=ClassLoading", "TotalLoadedClassCount", ""));
-                    attrs.add(new AttributeIdentifier("java.lang:type=ClassLoading", "UnloadedClassCount", ""));
-                    hdr = "Loaded Classes";
-                    break;
-
-                case ThreadCount:
-                    attrs.add(new AttributeIdentifier("java.lang:type=Threading", "ThreadCount", ""));
-                    attrs.add(new AttributeIdentifier("java.lang:type=Threading", "TotalStartedThreadCount", ""));
-                    attrs.add(new AttributeIdentifier("java.lang:type=Threading", "DaemonThreadCount", ""));
-                    hdr = "Threads";
-                    break;
+            if (opts.isUsageRequested()) {
+                opts.printUsage(System.out);
+                System.exit(3);
             }
 
-            List<Result> res = new LinkedList<Result>();
-            JMXClient client = new JMXClient(opts.getUrl());
+            if (opts.getDaemonPort() != null) {
+                PollScheduler scheduler = null;
+                if (opts.getPollBounds() != null) {
+                    scheduler = new PollScheduler(TimeUnit.SECONDS.toMillis(opts.getPollBounds()[0]), TimeUnit.SECONDS.toMillis(opts.getPollBounds()[1]));
+                }
+                int maxConcurrent = opts.getMaxConnections() != null ? opts.getMaxConnections() : CheckDaemon.DEFAULT_MAX_CONCURRENT;
+                new CheckDaemon(opts.getDaemonPort(), scheduler, maxConcurrent).run();
+                return;
+            }
 
-            for (AttributeIdentifier attr : attrs) {
-                res.add(attr.getValue(client));
+            if (opts.getExporterPort() != null) {
+                new MetricsExporter(opts).run();
+                return;
             }
 
-            client.close();
+            if (opts.getDiscoveryFormat() != null) {
+                JMXClient client = new JMXClient(opts.getUrl());
+                PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 65536), false, "UTF-8");
+                new MBeanDiscovery(client, opts.getDiscoveryFormat(), out).run();
+                out.flush();
+                client.close();
+                System.exit(0);
+            }
 
-            String status = "OK";
-            int statval = 0;
-            if (res.get(0).getValue() > opts.getWarnThreshold()) {
-                status = "WARN";
-                statval = 1;
+            if (opts.getArchiveSeries() != null) {
+                MetricArchive archive = MetricArchive.get(opts.getUrl());
+                List<MetricArchive.Sample> samples;
+                if (opts.getArchiveStep() > 0) {
+                    PatternQuery.Aggregation aggregation = opts.getAggregation() != null ? opts.getAggregation() : PatternQuery.Aggregation.AVG;
+                    samples = archive.downsample(opts.getArchiveSeries(), 0, Long.MAX_VALUE, TimeUnit.SECONDS.toMillis(opts.getArchiveStep()), aggregation);
+                } else {
+                    samples = archive.scan(opts.getArchiveSeries(), 0, Long.MAX_VALUE);
+                }
+                PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 65536), false, "UTF-8");
+                for (MetricArchive.Sample s : samples) {
+                    out.println(TimeUnit.MILLISECONDS.toSeconds(s.getTime()) + "\t" + s.getValue());
+                }
+                out.flush();
+                System.exit(0);
+            }
 
-                if (res.get(0).getValue() > opts.getCritThreshold()) {
-                    status = "CRITICAL";
-                    statval = 2;
+            if (opts.getUrls().size() > 1) {
+                int worst = 0;
+                for (MultiTargetPoller.TargetResult res : new MultiTargetPoller(opts).poll()) {
+                    System.out.print("[" + res.getUrl() + "] " + res.getOutput());
+                    worst = Math.max(worst, res.getStatus());
                 }
+                System.exit(worst);
             }
 
-            String perfData = "";
-            System.out.println(status + ": " + hdr + ": " + res.get(0).getValue() + " " + res.get(0).getUnit() + "/" + opts.getWarnThreshold() + "/" + opts.getCritThreshold());
-            for(int i = 0; i < res.size(); i ++) {
-                Result r = res.get(i);
-                if(i == 0) {
-                    System.out.println("'" + r.getName() + "'=" + r.getValue() + r.getUnit() + ";" + opts.getWarnThreshold() + ";" + opts.getCritThreshold());
-                    perfData = " | " + r.getName() + "=" + r.getValue() + r.getUnit() + ";" + opts.getWarnThreshold() + ";"+opts.getCritThreshold()+";;";
-                } else {
-                    System.out.println("'" + r.getName() + "'=" + r.getValue() + r.getUnit());
+            if (opts.isInstrumented()) {
+                Instrumentation.install();
+            }
+            Instrumentation.Run run = new Instrumentation.Run(true);
+
+            final CheckGroup checks = new CheckGroup(opts);
+            if (checks.needsGcMonitor()) {
+                throw new IllegalStateException("GC notification checks are only available in daemon mode (-D)");
+            }
+            List<List<Result>> res = checks.fetchCached(opts.getUrl());
+            if (res == null) {
+                Deadline deadline = new Deadline(TimeUnit.SECONDS.toMillis(opts.getTimeLimit()));
+                TargetLock lock = opts.getMaxConnections() != null ? TargetLock.acquire(opts.getUrl(), opts.getMaxConnections(), deadline) : null;
+                try {
+                    final JMXClient client = JMXClient.connect(opts.getUrl(), deadline, opts.isHedged());
+                    run.end(Instrumentation.Phase.CONNECT);
+                    res = deadline.run(new Callable<List<List<Result>>>() {
+                        @Override
+                        public List<List<Result>> call() throws Exception {
+                            return checks.fetch(client);
+                        }
+                    });
+
+                    client.close();
+                } finally {
+                    if (lock != null) {
+                        lock.close();
+                    }
                 }
             }
-            System.out.println(perfData);
-            System.exit(statval);
+            run.end(Instrumentation.Phase.FETCH);
+
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(buf, false, "UTF-8");
+            int status = checks.evaluate(opts.getUrl(), res, out);
+            out.flush();
+            run.end(Instrumentation.Phase.OUTPUT);
+
+            System.out.print(run.finish(buf.toString("UTF-8"), opts.isInstrumented()));
+            System.exit(status);
         } catch (Exception e) {
             System.out.println("Could not retrieve data: " + e.getClass().getName() + ": " + e.getMessage());
             System.exit(3);
         }
     }
+
+    /**
+     * Run a check with a connection taken from a pool. If the pooled connection turns out to be broken,
+     * it is replaced by a new one and the check is retried once. Connecting and fetching are bounded by
+     * the time limit of the check. With several targets, each is checked side by side within the
+     * time limit and its output is prefixed with its URL, as without the daemon.
+     *
+     * @param opts the options of the check
+     * @param pool the pool to take the connection from
+     * @param scheduler the scheduler that decides which values are fetched again, may be null
+     * @param out the stream to print the Nagios output to
+     * @return the Nagios status code, the worst of all targets
+     */
+    public static int runCheck(final Options opts, final ConnectionPool pool, final PollScheduler scheduler, PrintStream out) throws Exception {
+        List<String> urls = opts.getUrls();
+        final Deadline deadline = new Deadline(TimeUnit.SECONDS.toMillis(opts.getTimeLimit()));
+        if (urls.size() == 1) {
+            return runCheck(opts, urls.get(0), pool, scheduler, deadline, out);
+        }
+
+        List<Future<MultiTargetPoller.TargetResult>> futures = new ArrayList<>(urls.size());
+        for (final String url : urls) {
+            futures.add(Deadline.EXECUTOR.submit(new Callable<MultiTargetPoller.TargetResult>() {
+                @Override
+                public MultiTargetPoller.TargetResult call() throws Exception {
+                    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                    PrintStream targetOut = new PrintStream(buf, false, "UTF-8");
+                    int status = runCheck(opts, url, pool, scheduler, deadline, targetOut);
+                    targetOut.flush();
+                    return new MultiTargetPoller.TargetResult(url, status, buf.toString("UTF-8"));
+                }
+            }));
+        }
+
+        int worst = 0;
+        for (int i = 0; i < urls.size(); i++) {
+            MultiTargetPoller.TargetResult res;
+            try {
+                res = futures.get(i).get(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                futures.get(i).cancel(true);
+                res = failed(urls.get(i), deadline.timeout());
+            } catch (ExecutionException e) {
+                res = failed(urls.get(i), e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+            }
+            out.print("[" + res.getUrl() + "] " + res.getOutput());
+            worst = Math.max(worst, res.getStatus());
+        }
+        return worst;
+    }
+
+    /**
+     * Report a target that could not be checked, in the words check_java uses for a single target
+     */
+    private static MultiTargetPoller.TargetResult failed(String url, Exception e) {
+        return new MultiTargetPoller.TargetResult(url, 3, "Could not retrieve data: " + e.getClass().getName() + ": " + e.getMessage() + "\n");
+    }
+
+    /**
+     * Run a check against one target with a pooled connection before a deadline
+     */
+    private static int runCheck(Options opts, String url, ConnectionPool pool, PollScheduler scheduler, Deadline deadline, PrintStream out) throws Exception {
+        Instrumentation.Run run = new Instrumentation.Run(false);
+        CheckGroup checks = new CheckGroup(opts);
+
+        List<List<Result>> res = checks.fetchCached(url);
+        if (res == null) {
+            pool.acquire(url, deadline.remainingMillis());
+            try {
+                JMXClient client = pool.get(url, deadline);
+                run.end(Instrumentation.Phase.CONNECT);
+                try {
+                    res = fetch(url, checks, client, scheduler, deadline);
+                } catch (IOException e) {
+                    pool.invalidate(url, client);
+                    client = pool.get(url, deadline);
+                    res = fetch(url, checks, client, scheduler, deadline);
+                }
+            } finally {
+                pool.release(url);
+            }
+        }
+        run.end(Instrumentation.Phase.FETCH);
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        PrintStream checkOut = new PrintStream(buf, false, "UTF-8");
+        int status = checks.evaluate(url, res, checkOut);
+        checkOut.flush();
+        run.end(Instrumentation.Phase.OUTPUT);
+
+        out.print(run.finish(buf.toString("UTF-8"), opts.isInstrumented()));
+        return status;
+    }
+
+    /**
+     * Fetch the values of a group of checks over a pooled connection before a deadline
+     */
+    private static List<List<Result>> fetch(final String url, final CheckGroup checks, final JMXClient client, final PollScheduler scheduler, Deadline deadline) throws Exception {
+        return deadline.run(new Callable<List<List<Result>>>() {
+            @Override
+            public List<List<Result>> call() throws Exception {
+                if (checks.needsGcMonitor()) {
+                    GcMonitor.attach(url, client);
+                }
+                return checks.fetch(client, scheduler);
+            }
+        });
+    }
 }
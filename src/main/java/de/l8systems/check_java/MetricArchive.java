@@ -0,0 +1,584 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The long-term archive of the values collected from one target, for capacity planning.
+ *
+ * The archive is a file of blocks that only ever grows at its end. It starts with a directory block
+ * that maps every series, i.e. the name of a value such as HeapMem.used, to the block new samples of
+ * it are appended to; a full directory block is continued by another one at the end of the file.
+ * Every other block holds the samples of one series. The first block of a series is small, so a
+ * series that is rarely written costs little, the ones after it are 4 KB. Samples are compressed as
+ * in Facebook's Gorilla:
+ * <ul>
+ *     <li>timestamps, in seconds, as the change of the interval between samples. Samples taken at a
+ *     steady interval need a single bit.</li>
+ *     <li>values as the XOR with the previous value. An unchanged value needs a single bit, a changed
+ *     one only its bits that differ, framed by the count of leading and trailing zeros, which are
+ *     reused from the previous value if they fit.</li>
+ * </ul>
+ * Regularly sampled values that change little take one to two bytes per sample. The encoder state is
+ * kept in the header of each block, so appending a sample writes only its own bits.
+ *
+ * Reading a series walks the blocks in the order they were written, which is the order of their
+ * samples, so a range scan reads the file sequentially and skips the blocks outside of the range
+ * after reading their header.
+ */
+public class MetricArchive {
+    /**
+     * A sample of a series
+     */
+    public static class Sample {
+        private final long time;
+        private final long value;
+
+        public Sample(long time, long value) {
+            this.time = time;
+            this.value = value;
+        }
+
+        /**
+         * @return the time the sample was taken, in milliseconds, to the second
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public long getValue() {
+            return value;
+        }
+    }
+
+    private static final long MAGIC = 0x636a617263680002L;
+    private static final int FIRST_BLOCK_SIZE = 512;
+    private static final int BLOCK_SIZE = 4096;
+
+    // directory fields: the magic number, the offset of the next directory block, then entries of
+    // series hash and the offset of its current block
+    private static final int NEXT_DIRECTORY = 8;
+    private static final int DIRECTORY_START = 16;
+    private static final int ENTRY_SIZE = 16;
+    private static final int ENTRIES = (BLOCK_SIZE - DIRECTORY_START) / ENTRY_SIZE;
+
+    // block header fields
+    private static final int SERIES = 0;
+    private static final int FIRST_TIME = 8;
+    private static final int FIRST_VALUE = 16;
+    private static final int LAST_TIME = 24;
+    private static final int LAST_VALUE = 32;
+    private static final int LAST_DELTA = 40;
+    private static final int COUNT = 48;
+    private static final int BITS = 52;
+    private static final int LEADING = 56;
+    private static final int TRAILING = 57;
+    private static final int SIZE = 60;
+    private static final int HEADER_SIZE = 64;
+
+    /**
+     * The most bits a sample can take: the longest timestamp and the longest value encoding
+     */
+    private static final int MAX_SAMPLE_BITS = 4 + 32 + 2 + 6 + 6 + 64;
+
+    private static final Map<String, MetricArchive> open = new HashMap<>();
+
+    private final FileChannel channel;
+    private final List<MappedByteBuffer> directory = new ArrayList<>();
+
+    /**
+     * The block each series is currently appended to, by the hash of the series. Kept mapped, as
+     * mappings are only released by the garbage collector and one per sample would pile up.
+     */
+    private final Map<Long, Block> current = new HashMap<>();
+
+    private static class Block {
+        private final long offset;
+        private final MappedByteBuffer buffer;
+
+        Block(long offset, MappedByteBuffer buffer) {
+            this.offset = offset;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Return the archive of a target. Archives live in the subdirectory archive of the
+     * StateDirectory, one file per target.
+     *
+     * @param url the URL of the target
+     * @return the archive
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public static synchronized MetricArchive get(String url) throws IOException {
+        MetricArchive archive = open.get(url);
+        if (archive == null) {
+            File dir = StateDirectory.get("archive");
+            archive = new MetricArchive(new File(dir, Long.toHexString(StateStore.hash(url)) + ".cja"));
+            open.put(url, archive);
+        }
+        return archive;
+    }
+
+    /**
+     * Open or create an archive
+     * @param file the file to keep the samples in
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public MetricArchive(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        try (FileLock lock = channel.lock()) {
+            boolean empty = channel.size() == 0;
+            MappedByteBuffer first = channel.map(FileChannel.MapMode.READ_WRITE, 0, BLOCK_SIZE);
+            if (empty) {
+                first.putLong(0, MAGIC);
+            } else if (first.getLong(0) != MAGIC) {
+                throw new IOException(file + " is not a check_java archive");
+            }
+            directory.add(first);
+            if (!empty) {
+                dropTornTail();
+            }
+        }
+    }
+
+    /**
+     * Return the size of the block at an offset, a directory block or one of samples
+     * @return the size, or 0 at the end of the file or of its valid blocks
+     */
+    private static int blockSize(ByteBuffer data, int off) {
+        if (off + HEADER_SIZE > data.limit()) {
+            return 0;
+        }
+        if (data.getLong(off) == MAGIC) {
+            return off + BLOCK_SIZE <= data.limit() ? BLOCK_SIZE : 0;
+        }
+        int size = data.getInt(off + SIZE);
+        // the file was grown for a block whose header never reached the disk
+        return size >= HEADER_SIZE && off + size <= data.limit() ? size : 0;
+    }
+
+    /**
+     * Cut off the blocks after the first one whose header never reached the disk, so new blocks are
+     * not appended behind them where no scan finds them. Directory entries pointing there are
+     * disabled; a series hash is never 0, so a cleared series matches no series anymore.
+     */
+    private void dropTornTail() throws IOException {
+        MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        int end = BLOCK_SIZE;
+        int size;
+        while ((size = blockSize(data, end)) > 0) {
+            end += size;
+        }
+        if (end == data.limit()) {
+            return;
+        }
+        for (int d = 0; d < directory.size(); d++) {
+            MappedByteBuffer dir = directory.get(d);
+            for (int i = 0; i < ENTRIES; i++) {
+                int off = DIRECTORY_START + i * ENTRY_SIZE;
+                if (dir.getLong(off + 8) >= end) {
+                    dir.putLong(off, 0L);
+                }
+            }
+            long next = dir.getLong(NEXT_DIRECTORY);
+            if (next >= end) {
+                dir.putLong(NEXT_DIRECTORY, 0L);
+            } else if (next != 0) {
+                directory.add(map(next, BLOCK_SIZE));
+            }
+        }
+        channel.truncate(end);
+    }
+
+    /**
+     * Append one sample to each of several series
+     *
+     * @param time the time the samples were taken, in milliseconds
+     * @param values the values by the name of their series
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void append(long time, Map<String, Long> values) throws IOException {
+        long seconds = time / 1000;
+        try (FileLock lock = channel.lock()) {
+            for (Map.Entry<String, Long> e : values.entrySet()) {
+                append(StateStore.hash(e.getKey()), seconds, e.getValue());
+            }
+        }
+    }
+
+    private void append(long series, long seconds, long value) throws IOException {
+        ByteBuffer entry = findEntry(series);
+        int size = FIRST_BLOCK_SIZE;
+        if (entry != null) {
+            MappedByteBuffer block = currentBlock(series, entry.getLong(8));
+            if (block.getInt(BITS) + MAX_SAMPLE_BITS <= (block.capacity() - HEADER_SIZE) * 8) {
+                appendSample(block, seconds, value);
+                return;
+            }
+            size = BLOCK_SIZE;
+        } else {
+            entry = freeEntry();
+        }
+
+        // start a new block at the end of the file
+        long offset = channel.size();
+        MappedByteBuffer block = map(offset, size);
+        block.putLong(SERIES, series);
+        block.putLong(FIRST_TIME, seconds);
+        block.putLong(FIRST_VALUE, value);
+        block.putLong(LAST_TIME, seconds);
+        block.putLong(LAST_VALUE, value);
+        block.putLong(LAST_DELTA, 0L);
+        block.putInt(BITS, 0);
+        block.put(LEADING, (byte) -1);
+        block.put(TRAILING, (byte) 0);
+        block.putInt(SIZE, size);
+        block.putInt(COUNT, 1);
+        entry.putLong(0, series);
+        entry.putLong(8, offset);
+        current.put(series, new Block(offset, block));
+    }
+
+    /**
+     * Return the block a series is appended to, which another process may have moved on from the one
+     * mapped last
+     */
+    private MappedByteBuffer currentBlock(long series, long offset) throws IOException {
+        Block block = current.get(series);
+        if (block == null || block.offset != offset) {
+            ByteBuffer size = ByteBuffer.allocate(4);
+            channel.read(size, offset + SIZE);
+            block = new Block(offset, map(offset, size.getInt(0)));
+            current.put(series, block);
+        }
+        return block.buffer;
+    }
+
+    private void appendSample(ByteBuffer block, long seconds, long value) {
+        BitWriter out = new BitWriter(block, block.getInt(BITS));
+
+        long delta = seconds - block.getLong(LAST_TIME);
+        long dod = delta - block.getLong(LAST_DELTA);
+        if (dod == 0) {
+            out.write(0, 1);
+        } else if (dod >= -63 && dod <= 64) {
+            out.write(0b10, 2);
+            out.write(dod + 63, 7);
+        } else if (dod >= -255 && dod <= 256) {
+            out.write(0b110, 3);
+            out.write(dod + 255, 9);
+        } else if (dod >= -2047 && dod <= 2048) {
+            out.write(0b1110, 4);
+            out.write(dod + 2047, 12);
+        } else {
+            out.write(0b1111, 4);
+            out.write(dod, 32);
+        }
+
+        long xor = value ^ block.getLong(LAST_VALUE);
+        if (xor == 0) {
+            out.write(0, 1);
+        } else {
+            int leading = Long.numberOfLeadingZeros(xor);
+            int trailing = Long.numberOfTrailingZeros(xor);
+            int prevLeading = block.get(LEADING);
+            int prevTrailing = block.get(TRAILING);
+            if (prevLeading >= 0 && leading >= prevLeading && trailing >= prevTrailing) {
+                out.write(0b10, 2);
+                out.write(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+            } else {
+                int length = 64 - leading - trailing;
+                out.write(0b11, 2);
+                out.write(leading, 6);
+                out.write(length - 1, 6);
+                out.write(xor >>> trailing, length);
+                block.put(LEADING, (byte) leading);
+                block.put(TRAILING, (byte) trailing);
+            }
+        }
+
+        block.putLong(LAST_TIME, seconds);
+        block.putLong(LAST_VALUE, value);
+        block.putLong(LAST_DELTA, delta);
+        block.putInt(BITS, out.position());
+        block.putInt(COUNT, block.getInt(COUNT) + 1);
+    }
+
+    /**
+     * Return the samples of a series within a range of time
+     *
+     * @param series the name of the series
+     * @param from the start of the range, in milliseconds, inclusive
+     * @param to the end of the range, in milliseconds, exclusive
+     * @return the samples, oldest first
+     * @throws IOException if the file cannot be read
+     */
+    public synchronized List<Sample> scan(String series, long from, long to) throws IOException {
+        long hash = StateStore.hash(series);
+        List<Sample> res = new ArrayList<>();
+        try (FileLock lock = channel.lock(0, Long.MAX_VALUE, true)) {
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int size;
+            for (int off = BLOCK_SIZE; (size = blockSize(data, off)) > 0; off += size) {
+                if (data.getLong(off) == MAGIC) {
+                    continue;
+                }
+                if (data.getLong(off + SERIES) != hash || data.getLong(off + FIRST_TIME) * 1000 >= to
+                        || data.getLong(off + LAST_TIME) * 1000 < from) {
+                    continue;
+                }
+                data.position(off);
+                ByteBuffer block = data.slice();
+                block.limit(size);
+                decode(block, from, to, res);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Return the samples of a series within a range of time, combined into one sample per step. A
+     * combined sample has the time its step starts at; steps without samples are left out.
+     *
+     * @param series the name of the series
+     * @param from the start of the range, in milliseconds, inclusive
+     * @param to the end of the range, in milliseconds, exclusive
+     * @param stepMillis the length of a step, in milliseconds
+     * @param aggregation how the samples of a step are combined
+     * @return the combined samples, oldest first
+     * @throws IOException if the file cannot be read
+     */
+    public List<Sample> downsample(String series, long from, long to, long stepMillis, PatternQuery.Aggregation aggregation) throws IOException {
+        List<Sample> res = new ArrayList<>();
+        long step = 0;
+        long count = 0;
+        long acc = 0;
+        for (Sample s : scan(series, from, to)) {
+            long start = from + (s.getTime() - from) / stepMillis * stepMillis;
+            if (count > 0 && start != step) {
+                res.add(new Sample(step, finish(aggregation, acc, count)));
+                count = 0;
+            }
+            step = start;
+            acc = count == 0 ? first(aggregation, s.getValue()) : combine(aggregation, acc, s.getValue());
+            count++;
+        }
+        if (count > 0) {
+            res.add(new Sample(step, finish(aggregation, acc, count)));
+        }
+        return res;
+    }
+
+    private static long first(PatternQuery.Aggregation aggregation, long value) {
+        return aggregation == PatternQuery.Aggregation.COUNT ? 1 : value;
+    }
+
+    private static long combine(PatternQuery.Aggregation aggregation, long acc, long value) {
+        switch (aggregation) {
+            case MAX:
+                return Math.max(acc, value);
+            case MIN:
+                return Math.min(acc, value);
+            case COUNT:
+                return acc + 1;
+            default:
+                return acc + value;
+        }
+    }
+
+    private static long finish(PatternQuery.Aggregation aggregation, long acc, long count) {
+        return aggregation == PatternQuery.Aggregation.AVG ? acc / count : acc;
+    }
+
+    private static void decode(ByteBuffer block, long from, long to, List<Sample> res) {
+        BitReader in = new BitReader(block);
+        long seconds = block.getLong(FIRST_TIME);
+        long value = block.getLong(FIRST_VALUE);
+        long delta = 0;
+        int leading = 0;
+        int trailing = 0;
+        int count = block.getInt(COUNT);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                long dod;
+                if (in.read(1) == 0) {
+                    dod = 0;
+                } else if (in.read(1) == 0) {
+                    dod = in.read(7) - 63;
+                } else if (in.read(1) == 0) {
+                    dod = in.read(9) - 255;
+                } else if (in.read(1) == 0) {
+                    dod = in.read(12) - 2047;
+                } else {
+                    dod = (int) in.read(32);
+                }
+                delta += dod;
+                seconds += delta;
+
+                if (in.read(1) == 1) {
+                    if (in.read(1) == 1) {
+                        leading = (int) in.read(6);
+                        trailing = 64 - leading - ((int) in.read(6) + 1);
+                    }
+                    value ^= in.read(64 - leading - trailing) << trailing;
+                }
+            }
+            long millis = seconds * 1000;
+            if (millis >= from && millis < to) {
+                res.add(new Sample(millis, value));
+            }
+        }
+    }
+
+    /**
+     * Return the directory entry of a series
+     * @return the entry, positioned at its start, or null if the series has none yet
+     */
+    private ByteBuffer findEntry(long series) throws IOException {
+        for (int d = 0; d < directoryBlocks(); d++) {
+            MappedByteBuffer dir = directory.get(d);
+            for (int i = 0; i < ENTRIES; i++) {
+                int off = DIRECTORY_START + i * ENTRY_SIZE;
+                if (dir.getLong(off + 8) == 0) {
+                    return null;
+                }
+                if (dir.getLong(off) == series) {
+                    return entry(dir, off);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the first unused directory entry, continuing the directory in a new block if it is full
+     */
+    private ByteBuffer freeEntry() throws IOException {
+        MappedByteBuffer last = directory.get(directoryBlocks() - 1);
+        for (int i = 0; i < ENTRIES; i++) {
+            int off = DIRECTORY_START + i * ENTRY_SIZE;
+            if (last.getLong(off + 8) == 0) {
+                return entry(last, off);
+            }
+        }
+        long offset = channel.size();
+        MappedByteBuffer next = map(offset, BLOCK_SIZE);
+        next.putLong(0, MAGIC);
+        last.putLong(NEXT_DIRECTORY, offset);
+        directory.add(next);
+        return entry(next, DIRECTORY_START);
+    }
+
+    /**
+     * Return the number of directory blocks, mapping those added by other processes since
+     */
+    private int directoryBlocks() throws IOException {
+        long next;
+        while ((next = directory.get(directory.size() - 1).getLong(NEXT_DIRECTORY)) != 0) {
+            directory.add(map(next, BLOCK_SIZE));
+        }
+        return directory.size();
+    }
+
+    private static ByteBuffer entry(MappedByteBuffer dir, int off) {
+        ByteBuffer entry = dir.duplicate();
+        entry.position(off);
+        entry.limit(off + ENTRY_SIZE);
+        return entry.slice();
+    }
+
+    private MappedByteBuffer map(long offset, int size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+    }
+
+    /**
+     * Writes bits into the payload of a block, most significant bit first
+     */
+    static class BitWriter {
+        private final ByteBuffer block;
+        private int position;
+
+        BitWriter(ByteBuffer block, int position) {
+            this.block = block;
+            this.position = position;
+        }
+
+        void write(long bits, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                int off = HEADER_SIZE + (position >>> 3);
+                int mask = 0x80 >>> (position & 7);
+                if (((bits >>> i) & 1) != 0) {
+                    block.put(off, (byte) (block.get(off) | mask));
+                } else {
+                    block.put(off, (byte) (block.get(off) & ~mask));
+                }
+                position++;
+            }
+        }
+
+        int position() {
+            return position;
+        }
+    }
+
+    /**
+     * Reads the bits written by a BitWriter
+     */
+    static class BitReader {
+        private final ByteBuffer block;
+        private int position;
+
+        BitReader(ByteBuffer block) {
+            this.block = block;
+        }
+
+        long read(int count) {
+            long bits = 0;
+            for (int i = 0; i < count; i++) {
+                int off = HEADER_SIZE + (position >>> 3);
+                bits = (bits << 1) | ((block.get(off) >>> (7 - (position & 7))) & 1);
+                position++;
+            }
+            return bits;
+        }
+    }
+}
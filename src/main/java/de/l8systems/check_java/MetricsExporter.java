@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the values check_java knows how to fetch as Prometheus metrics on /metrics.
+ *
+ * A scrape is answered from the values of the last fetch as long as they are younger than the cache
+ * interval. Scrapes arriving while a fetch is running wait for that fetch instead of starting their
+ * own, so any number of concurrent scrapes causes at most one round of JMX requests per interval.
+ * A fetch reads all targets at the same time and waits for them no longer than the time limit, a
+ * target that misses it is reported as down.
+ *
+ * Like the daemon, the exporter only listens on the loopback interface unless it is given an address.
+ */
+public class MetricsExporter implements Runnable {
+    /**
+     * Attributes that only ever grow and are exported as counters, everything else is a gauge
+     */
+    private static final Set<String> COUNTERS = new HashSet<String>(Arrays.asList(
+            "CollectionCount", "CollectionTime", "TotalLoadedClassCount", "UnloadedClassCount", "TotalStartedThreadCount"));
+
+    private final int port;
+    private final String address;
+    private final long intervalNanos;
+    private final long timeLimitMillis;
+    private final List<String> urls;
+    private final List<Check> checks = new ArrayList<Check>();
+    private final ConnectionPool pool = new ConnectionPool();
+
+    private String cached;
+    private long cachedAt;
+    private FutureTask<String> inFlight;
+
+    /**
+     * Create an exporter for the targets given on the command line. It exports the values of every
+     * check type that reads attributes directly, and the Attribute check if -o and -a are given.
+     * Values are exported unconverted, in bytes and milliseconds.
+     *
+     * @param opts the command line options
+     */
+    public MetricsExporter(Options opts) {
+        this.port = opts.getExporterPort();
+        this.address = opts.getExporterAddress();
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(opts.getCacheInterval());
+        this.timeLimitMillis = TimeUnit.SECONDS.toMillis(opts.getTimeLimit());
+        this.urls = opts.getUrls();
+
+        for (Options.CheckType type : Options.CheckType.values()) {
+            Check check = new Check(type, null);
+            if (type == Options.CheckType.Attribute) {
+                if (!opts.hasPatternQuery()) {
+                    continue;
+                }
+                check.setQuery(opts.getPatternQuery());
+            } else if (type == Options.CheckType.HotThreads || check.isRate() || check.isGcNotification() || check.isSeries()) {
+                continue;
+            }
+            checks.add(check);
+        }
+    }
+
+    /**
+     * Serve scrapes until the process is terminated
+     */
+    @Override
+    public void run() {
+        try {
+            InetSocketAddress bind = address != null ? new InetSocketAddress(address, port) : new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+            HttpServer server = HttpServer.create(bind, 64);
+            server.createContext("/metrics", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    byte[] body;
+                    int status = 200;
+                    try {
+                        body = scrape().getBytes(StandardCharsets.UTF_8);
+                    } catch (Exception e) {
+                        body = ("Could not retrieve data: " + e + "\n").getBytes(StandardCharsets.UTF_8);
+                        status = 500;
+                    }
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(status, body.length);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        os.write(body);
+                    }
+                }
+            });
+            server.setExecutor(Executors.newFixedThreadPool(8));
+            server.start();
+            System.out.println("check_java exporter listening on " + bind.getAddress().getHostAddress() + ":" + port);
+        } catch (IOException e) {
+            System.out.println("check_java exporter stopped: " + e.getClass().getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Return the metrics, fetching them only if the cached ones are too old and no other scrape is
+     * fetching them already.
+     *
+     * @return the metrics in the Prometheus text format
+     */
+    public String scrape() throws InterruptedException, ExecutionException {
+        FutureTask<String> task;
+        boolean owner = false;
+        synchronized (this) {
+            if (cached != null && System.nanoTime() - cachedAt < intervalNanos) {
+                return cached;
+            }
+            if (inFlight == null) {
+                inFlight = new FutureTask<String>(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return collect();
+                    }
+                });
+                owner = true;
+            }
+            task = inFlight;
+        }
+
+        if (owner) {
+            task.run();
+            synchronized (this) {
+                try {
+                    cached = task.get();
+                    cachedAt = System.nanoTime();
+                } finally {
+                    inFlight = null;
+                }
+            }
+        }
+        return task.get();
+    }
+
+    /**
+     * Fetch the values of all checks from all targets. The samples of all targets are grouped by
+     * metric, as the text format requires.
+     */
+    private String collect() {
+        final Deadline deadline = new Deadline(timeLimitMillis);
+        List<Future<Map<String, StringBuilder>>> pending = new ArrayList<Future<Map<String, StringBuilder>>>();
+        for (final String url : urls) {
+            pending.add(Deadline.EXECUTOR.submit(new Callable<Map<String, StringBuilder>>() {
+                @Override
+                public Map<String, StringBuilder> call() throws Exception {
+                    return collect(url, deadline);
+                }
+            }));
+        }
+
+        Map<String, StringBuilder> families = new LinkedHashMap<String, StringBuilder>();
+        for (int i = 0; i < urls.size(); i++) {
+            long up = 1;
+            try {
+                merge(families, pending.get(i).get(deadline.remainingMillis(), TimeUnit.MILLISECONDS));
+            } catch (Exception e) {
+                pending.get(i).cancel(true);
+                up = 0;
+            }
+            appendSample(families, "check_java_up", "gauge", "Whether the target could be read", target(urls.get(i)), up);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (StringBuilder family : families.values()) {
+            sb.append(family);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Fetch the values of all checks from one target
+     */
+    private Map<String, StringBuilder> collect(String url, Deadline deadline) throws Exception {
+        final JMXClient client = pool.get(url, deadline);
+        final String target = target(url);
+        try {
+            return deadline.run(new Callable<Map<String, StringBuilder>>() {
+                @Override
+                public Map<String, StringBuilder> call() throws Exception {
+                    return collect(client, target);
+                }
+            });
+        } catch (IOException e) {
+            pool.invalidate(url, client);
+            throw e;
+        }
+    }
+
+    private static String target(String url) {
+        return "{target=\"" + escape(url) + "\"}";
+    }
+
+    private Map<String, StringBuilder> collect(JMXClient client, String target) throws Exception {
+        Map<String, StringBuilder> families = new LinkedHashMap<String, StringBuilder>();
+        List<Check> plain = new ArrayList<Check>();
+        List<AttributeIdentifier> attrs = new ArrayList<AttributeIdentifier>();
+        for (Check check : checks) {
+            if (check.getQuery() != null) {
+                appendResults(families, check, target, fetch(client, check));
+            } else {
+                plain.add(check);
+                attrs.addAll(check.getAttributes());
+            }
+        }
+
+        // checks that do not apply to the target, e.g. the Code Cache pool on Java 9 and later, only
+        // miss their own values and keep the read of all others batched
+        List<Result> res = AttributeIdentifier.getAvailableValues(client, attrs);
+        int offset = 0;
+        for (Check check : plain) {
+            int size = check.getAttributes().size();
+            appendResults(families, check, target, res.subList(offset, offset + size));
+            offset += size;
+        }
+        return families;
+    }
+
+    /**
+     * Add the samples of one target to those of the others
+     */
+    private static void merge(Map<String, StringBuilder> families, Map<String, StringBuilder> target) {
+        for (Map.Entry<String, StringBuilder> e : target.entrySet()) {
+            StringBuilder family = families.get(e.getKey());
+            if (family == null) {
+                families.put(e.getKey(), e.getValue());
+            } else {
+                // skip the HELP and TYPE lines the family already has
+                StringBuilder samples = e.getValue();
+                family.append(samples, samples.indexOf("\n", samples.indexOf("\n") + 1) + 1, samples.length());
+            }
+        }
+    }
+
+    /**
+     * Fetch the values of an Attribute check
+     * @return the results, or null if the query does not apply to the target
+     */
+    private static List<Result> fetch(JMXClient client, Check check) throws IOException {
+        try {
+            return check.getQuery().fetch(client);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static void appendResults(Map<String, StringBuilder> families, Check check, String target, List<Result> res) {
+        if (res == null) {
+            return;
+        }
+        String prefix = "check_java_" + check.getCheckType().name().toLowerCase(Locale.ROOT) + "_";
+        for (int i = 0; i < res.size(); i++) {
+            Result r = res.get(i);
+            if (r.getValue() == null) {
+                continue;
+            }
+            if (check.getQuery() != null && i >= 2) {
+                // the top contributors of an Attribute check are one metric, labeled by their MBean
+                String labels = target.substring(0, target.length() - 1) + ",bean=\"" + escape(r.getName()) + "\"}";
+                appendSample(families, prefix + "top", "gauge", check.getHeader() + ", the largest values by MBean", labels, r.getValue());
+            } else if (COUNTERS.contains(r.getName())) {
+                appendSample(families, prefix + sanitize(r.getName()) + "_total", "counter", check.getHeader() + ": " + r.getName(), target, r.getValue());
+            } else {
+                appendSample(families, prefix + sanitize(r.getName()), "gauge", check.getHeader() + ": " + r.getName(), target, r.getValue());
+            }
+        }
+    }
+
+    private static void appendSample(Map<String, StringBuilder> families, String name, String type, String help, String labels, long value) {
+        StringBuilder family = families.get(name);
+        if (family == null) {
+            family = new StringBuilder("# HELP ").append(name).append(' ').append(help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n')
+                    .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            families.put(name, family);
+        }
+        family.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    private static String sanitize(String name) {
+        return name.replaceAll("[^A-Za-z0-9_]", "_");
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the same checks against many targets concurrently.
+ *
+ * Every target is polled on a worker thread with its own connection. All targets share one deadline
+ * that starts with the sweep, also those still waiting for a worker; a target that misses it is
+ * reported as UNKNOWN and its connection is closed, so hung endpoints cannot hold back the rest of
+ * the sweep, and the sweep as a whole ends by the deadline.
+ */
+public class MultiTargetPoller {
+    private static final int MAX_THREADS = 64;
+
+    /**
+     * The outcome of the checks against one target
+     */
+    public static class TargetResult {
+        private final String url;
+        private final int status;
+        private final String output;
+
+        public TargetResult(String url, int status, String output) {
+            this.url = url;
+            this.status = status;
+            this.output = output;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+    }
+
+    private final Options opts;
+
+    /**
+     * Create a poller for the targets and checks given on the command line
+     * @param opts the command line options
+     */
+    public MultiTargetPoller(Options opts) {
+        this.opts = opts;
+    }
+
+    /**
+     * Poll all targets and return their results once every target has either answered or missed its
+     * deadline.
+     *
+     * @return the results, in the order of the targets
+     */
+    public List<TargetResult> poll() throws InterruptedException, IOException {
+        List<String> urls = opts.getUrls();
+        final CheckGroup checks = new CheckGroup(opts);
+        final Deadline deadline = new Deadline(TimeUnit.SECONDS.toMillis(opts.getTimeLimit()));
+
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(urls.size(), MAX_THREADS), DAEMON_THREADS);
+
+        List<CompletableFuture<TargetResult>> futures = new ArrayList<>(urls.size());
+        List<AtomicReference<JMXClient>> clients = new ArrayList<>(urls.size());
+        for (final String url : urls) {
+            final CompletableFuture<TargetResult> future = new CompletableFuture<>();
+            final AtomicReference<JMXClient> client = new AtomicReference<>();
+            futures.add(future);
+            clients.add(client);
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    future.complete(check(url, checks, client, deadline, opts.isHedged()));
+                    closeQuietly(client.get());
+                }
+            });
+        }
+
+        List<TargetResult> results = new ArrayList<>(urls.size());
+        for (int i = 0; i < futures.size(); i++) {
+            CompletableFuture<TargetResult> future = futures.get(i);
+            try {
+                results.add(future.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                if (future.complete(failed(urls.get(i), deadline.timeout()))) {
+                    closeQuietly(clients.get(i).get());
+                }
+                results.add(future.getNow(null));
+            } catch (ExecutionException e) {
+                // check() reports all failures as a result
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        workers.shutdownNow();
+        return results;
+    }
+
+    /**
+     * Run the checks against a single target
+     * @param url the URL of the target
+     * @param checks the checks to run
+     * @param client receives the connection as soon as it is established, so it can be closed should
+     *               the target miss the deadline
+     * @param deadline the deadline of the sweep
+     * @param hedge whether to start a second connection attempt if the first one is slow
+     * @return the result of the checks
+     */
+    private static TargetResult check(String url, CheckGroup checks, AtomicReference<JMXClient> client, Deadline deadline, boolean hedge) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        PrintStream out = newPrintStream(buf);
+        int status;
+        try {
+            client.set(JMXClient.connect(url, deadline, hedge));
+            List<List<Result>> res = checks.fetch(client.get());
+            status = checks.evaluate(url, res, out);
+        } catch (Exception e) {
+            return failed(url, e);
+        }
+        out.flush();
+        return new TargetResult(url, status, toString(buf));
+    }
+
+    /**
+     * Report a target that could not be checked, in the words check_java uses for a single target
+     */
+    private static TargetResult failed(String url, Exception e) {
+        return new TargetResult(url, 3, "Could not retrieve data: " + e.getClass().getName() + ": " + e.getMessage() + "\n");
+    }
+
+    private static void closeQuietly(JMXClient client) {
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+    private static PrintStream newPrintStream(ByteArrayOutputStream buf) {
+        try {
+            return new PrintStream(buf, false, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toString(ByteArrayOutputStream buf) {
+        try {
+            return buf.toString("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Worker threads must not keep the JVM alive when they are stuck in a hung connection
+     */
+    private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "check_java-poller");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+}
@@ -29,7 +29,17 @@
 package de.l8systems.check_java;
 
 
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * Transports and parses command line argument information
@@ -45,9 +55,26 @@ public class Options {
         GCMarkSweepCount,
         GCMarkSweepTime,
         ClassLoading,
-        ThreadCount
+        ThreadCount,
+        GCMarkSweepCountRate,
+        GCMarkSweepTimeRate,
+        ClassLoadingRate,
+        GCMaxPause,
+        GCPauseP99,
+        Attribute,
+        HeapMemAvg,
+        OldGenTrend,
+        OldGenExhaustion,
+        HotThreads
     }
 
+    /**
+     * The types "all" selects: those that read current values and work in every mode. Rates, GC
+     * notifications, histories, Attribute and HotThreads need state, a daemon, further options or
+     * take seconds, so they have to be asked for by name.
+     */
+    private static final EnumSet<CheckType> ALL_TYPES = EnumSet.range(CheckType.HeapMem, CheckType.ThreadCount);
+
     public Options(String[] args) throws IllegalArgumentException {
         this.url = "service:jmx:rmi:///jndi/rmi://:9000/jmxrmi";
 
@@ -59,68 +86,138 @@ public class Options {
             switch(arg) {
                 case "-t":  if(it.hasNext()) {
                                 String arg2 = it.next();
-                                switch (arg2) {
-                                    case "HeapMem":
-                                        setCheckType(CheckType.HeapMem);
-                                        break;
-                                    case "NonHeapMem":
-                                        setCheckType(CheckType.NonHeapMem);
-                                        break;
-                                    case "MemPoolEden":
-                                        setCheckType(CheckType.MemPoolEden);
-                                        break;
-                                    case "MemPoolSurvivor":
-                                        setCheckType(CheckType.MemPoolSurvivor);
-                                        break;
-                                    case "MemPoolOldGen":
-                                        setCheckType(CheckType.MemPoolOldGen);
-                                        break;
-                                    case "MemPoolCodeCache":
-                                        setCheckType(CheckType.MemPoolCodeCache);
-                                        break;
-                                    case "GCMarkSweepCount":
-                                        setCheckType(CheckType.GCMarkSweepCount);
-                                        break;
-                                    case "GCMarkSweepTime":
-                                        setCheckType(CheckType.GCMarkSweepTime);
-                                        break;
-                                    case "ClassLoading":
-                                        setCheckType(CheckType.ClassLoading);
-                                        break;
-                                    case "ThreadCount":
-                                        setCheckType(CheckType.ThreadCount);
-                                        break;
-                                    default:
-                                        throw new IllegalArgumentException("Unknown type " + arg2);
+                                for (String type : arg2.split(",")) {
+                                    if ("all".equals(type)) {
+                                        for (CheckType t : ALL_TYPES) {
+                                            addCheckType(t);
+                                        }
+                                        continue;
+                                    }
+                                    switch (type) {
+                                        case "HeapMem":
+                                            addCheckType(CheckType.HeapMem);
+                                            break;
+                                        case "NonHeapMem":
+                                            addCheckType(CheckType.NonHeapMem);
+                                            break;
+                                        case "MemPoolEden":
+                                            addCheckType(CheckType.MemPoolEden);
+                                            break;
+                                        case "MemPoolSurvivor":
+                                            addCheckType(CheckType.MemPoolSurvivor);
+                                            break;
+                                        case "MemPoolOldGen":
+                                            addCheckType(CheckType.MemPoolOldGen);
+                                            break;
+                                        case "MemPoolCodeCache":
+                                            addCheckType(CheckType.MemPoolCodeCache);
+                                            break;
+                                        case "GCMarkSweepCount":
+                                            addCheckType(CheckType.GCMarkSweepCount);
+                                            break;
+                                        case "GCMarkSweepTime":
+                                            addCheckType(CheckType.GCMarkSweepTime);
+                                            break;
+                                        case "ClassLoading":
+                                            addCheckType(CheckType.ClassLoading);
+                                            break;
+                                        case "ThreadCount":
+                                            addCheckType(CheckType.ThreadCount);
+                                            break;
+                                        case "GCMarkSweepCountRate":
+                                            addCheckType(CheckType.GCMarkSweepCountRate);
+                                            break;
+                                        case "GCMarkSweepTimeRate":
+                                            addCheckType(CheckType.GCMarkSweepTimeRate);
+                                            break;
+                                        case "ClassLoadingRate":
+                                            addCheckType(CheckType.ClassLoadingRate);
+                                            break;
+                                        case "GCMaxPause":
+                                            addCheckType(CheckType.GCMaxPause);
+                                            break;
+                                        case "GCPauseP99":
+                                            addCheckType(CheckType.GCPauseP99);
+                                            break;
+                                        case "Attribute":
+                                            addCheckType(CheckType.Attribute);
+                                            break;
+                                        case "HeapMemAvg":
+                                            addCheckType(CheckType.HeapMemAvg);
+                                            break;
+                                        case "OldGenTrend":
+                                            addCheckType(CheckType.OldGenTrend);
+                                            break;
+                                        case "OldGenExhaustion":
+                                            addCheckType(CheckType.OldGenExhaustion);
+                                            break;
+                                        case "HotThreads":
+                                            addCheckType(CheckType.HotThreads);
+                                            break;
+                                        default:
+                                            addDefinedType(type);
+                                    }
                                 }
                             } else {
                                 throw new IllegalArgumentException("-t needs to be followed a type");
-                }
+                            }
                             break;
 
                 case "-w":  if(it.hasNext()) {
                                 String arg2 = it.next();
-                                setWarnThreshold(Integer.parseInt(arg2));
+                                warnThresholds = parseThresholds(arg2);
                             } else {
-                                throw new IllegalArgumentException("-w needs to be followed by a number");
+                                throw new IllegalArgumentException("-w needs to be followed by a number or a comma separated list of numbers");
                             }
                             break;
 
                 case "-c":  if(it.hasNext()) {
                                 String arg2 = it.next();
-                                setCritThreshold(Integer.parseInt(arg2));
+                                critThresholds = parseThresholds(arg2);
                             } else {
-                                throw new IllegalArgumentException("-c needs to be followed by a number");
+                                throw new IllegalArgumentException("-c needs to be followed by a number or a comma separated list of numbers");
                             }
                             break;
 
                 case "-u":  if(it.hasNext()) {
                                 String arg2 = it.next();
-                                setUrl(arg2);
+                                addUrl(arg2);
                             } else {
                                 throw new IllegalArgumentException("-u needs to be followed by a URL string");
                             }
                             break;
+                case "-T":  if(it.hasNext()) {
+                                String arg2 = it.next();
+                                addUrls(arg2);
+                            } else {
+                                throw new IllegalArgumentException("-T needs to be followed by a file name");
+                            }
+                            break;
+                case "-l":  if(it.hasNext()) {
+                                String arg2 = it.next();
+                                setTimeLimit(Integer.parseInt(arg2));
+                            } else {
+                                throw new IllegalArgumentException("-l needs to be followed by a number of seconds");
+                            }
+                            break;
+                case "-R":  setHedged(true);
+                            break;
+                case "-I":  setInstrumented(true);
+                            break;
+                case "-L":  if(it.hasNext()) {
+                                String arg2 = it.next();
+                                setDiscoveryFormat(MBeanDiscovery.Format.forName(arg2));
+                            } else {
+                                throw new IllegalArgumentException("-L needs to be followed by checks or metrics");
+                            }
+                            break;
+                case "-f":  if(it.hasNext()) {
+                                String arg2 = it.next();
+                                setConfigFile(new File(arg2));
+                            } else {
+                                throw new IllegalArgumentException("-f needs to be followed by a file name");
+                            }
+                            break;
                 case "-U":  if(it.hasNext()) {
                                 String arg2 = it.next();
                                 setUnit(arg2);
@@ -128,20 +225,157 @@ public class Options {
                                 throw new IllegalArgumentException("-U needs to be followed by a Unit string (B/MB/KB/GB)");
                             }
                             break;
-                default:    System.out.println("Unrecognized option: " + arg);
-                case "-h":  printUsage();
-                            System.exit(3);
+                case "-m":  if(it.hasNext()) {
+                                String arg2 = it.next();
+                                setWindow(Integer.parseInt(arg2));
+                            } else {
+                                throw new IllegalArgumentException("-m needs to be followed by a number of minutes");
+                            }
+                            break;
+                case "-o":  if(it.hasNext()) {
+                                String arg2 = it.next();
+                                setObjectPattern(arg2);
+                            } else {
+                                throw new IllegalArgumentException("-o needs to be followed by an ObjectName pattern");
+                            }
+                            break;
+                case "-a":  if(it.hasNext()) {
+                                String arg2 = it.next();
+                                setAttribute(arg2);
+                            } else {
+                                throw new IllegalArgumentException("-a needs to be followed by an attribute name");
+                            }
+                            break;
+                case "-g":  if(it.hasNext()) {
+                                String arg2 = it.next();
+                                setAggregation(PatternQuery.Aggregation.forName(arg2));
+                            } else {
+                                throw new IllegalArgumentException("-g needs to be followed by sum, max, min, avg or count");
+                            }
+                            break;
+                case "-n":  if(it.hasNext()) {
+                                String arg2 = it.next();
+                                setTopN(Integer.parseInt(arg2));
+                            } else {
+                                throw new IllegalArgumentException("-n needs to be followed by a number");
+                            }
+                            break;
+                case "-P":  if(it.hasNext()) {
+                                String arg2 = it.next();
+                                int colon = arg2.lastIndexOf(':');
+                                if (colon >= 0) {
+                                    // an IPv6 address is given in brackets, as in a URL
+                                    setExporterAddress(arg2.substring(0, colon).replaceAll("^\\[(.*)\\]$", "$1"));
+                                    arg2 = arg2.substring(colon + 1);
+                                }
+                                setExporterPort(Integer.parseInt(arg2));
+                            } else {
+                                throw new IllegalArgumentException("-P needs to be followed by a port number");
+                            }
+                            break;
+                case "-i":  if(it.hasNext()) {
+                                String arg2 = it.next();
+                                setCacheInterval(Integer.parseInt(arg2));
+                            } else {
+                                throw new IllegalArgumentException("-i needs to be followed by a number of seconds");
+                            }
+                            break;
+                case "-C":  if(it.hasNext()) {
+                                String arg2 = it.next();
+                                setCacheTtl(Integer.parseInt(arg2));
+                            } else {
+                                throw new IllegalArgumentException("-C needs to be followed by a number of seconds");
+                            }
+                            break;
+                case "-D":  if(it.hasNext()) {
+                                String arg2 = it.next();
+                                setDaemonPort(Integer.parseInt(arg2));
+                            } else {
+                                throw new IllegalArgumentException("-D needs to be followed by a port number");
+                            }
+                            break;
+                case "-p":  if(it.hasNext()) {
+                                String arg2 = it.next();
+                                setPercentile(parsePercentile(arg2));
+                            } else {
+                                throw new IllegalArgumentException("-p needs to be followed by p50, p95, p99, max or another percentile");
+                            }
+                            break;
+                case "-M":  if(it.hasNext()) {
+                                String arg2 = it.next();
+                                setMaxConnections(Integer.parseInt(arg2));
+                            } else {
+                                throw new IllegalArgumentException("-M needs to be followed by a number of checks");
+                            }
+                            break;
+                case "-H":  setArchived(true);
+                            break;
+                case "-X":  if(it.hasNext()) {
+                                String arg2 = it.next();
+                                int at = arg2.lastIndexOf('@');
+                                if (at >= 0) {
+                                    setArchiveStep(Integer.parseInt(arg2.substring(at + 1)));
+                                    arg2 = arg2.substring(0, at);
+                                }
+                                setArchiveSeries(arg2);
+                            } else {
+                                throw new IllegalArgumentException("-X needs to be followed by the name of a series, e.g. HeapMem.used");
+                            }
+                            break;
+                case "-A":  if(it.hasNext()) {
+                                String arg2 = it.next();
+                                List<Integer> bounds = parseThresholds(arg2);
+                                if (bounds.size() != 2) {
+                                    throw new IllegalArgumentException("-A needs to be followed by the shortest and longest interval in seconds, e.g. 5,300");
+                                }
+                                setPollBounds(new int[] { bounds.get(0), bounds.get(1) });
+                            } else {
+                                throw new IllegalArgumentException("-A needs to be followed by the shortest and longest interval in seconds, e.g. 5,300");
+                            }
+                            break;
+                default:    unrecognizedOption = arg;
+                case "-h":  usageRequested = true;
                             break;
 
             }
         }
+
+        if(!definedTypes.isEmpty() && configFile == null) {
+            throw new IllegalArgumentException("Unknown type " + definedTypes.get(0));
+        }
     }
 
-    private CheckType checkType;
-    private Integer warnThreshold;
-    private Integer critThreshold;
+    private List<CheckType> checkTypes = new ArrayList<CheckType>();
+    private List<String> definedTypes = new ArrayList<String>();
+    private List<String> checkNames = new ArrayList<String>();
+    private File configFile;
+    private List<Integer> warnThresholds;
+    private List<Integer> critThresholds;
     private String url;
+    private List<String> urls = new ArrayList<String>();
+    private int timeLimit = 10;
+    private boolean hedged;
+    private boolean instrumented;
+    private MBeanDiscovery.Format discoveryFormat;
+    private int window = 5;
+    private String objectPattern;
+    private String attribute;
+    private PatternQuery.Aggregation aggregation;
+    private int topN = 5;
     private String unit;
+    private Integer daemonPort;
+    private Integer exporterPort;
+    private String exporterAddress;
+    private int cacheInterval = 15;
+    private int cacheTtl;
+    private int[] pollBounds;
+    private Integer maxConnections;
+    private Integer percentile;
+    private boolean archived;
+    private String archiveSeries;
+    private int archiveStep;
+    private boolean usageRequested;
+    private String unrecognizedOption;
 
     public String getUnit(){
         return this.unit;
@@ -151,40 +385,363 @@ public class Options {
         this.unit = unit;
     }
 
+    /**
+     * Return the port check_java shall listen on in daemon mode
+     * @return the port, or null if check_java shall not run as a daemon
+     */
+    public Integer getDaemonPort() {
+        return daemonPort;
+    }
+
+    public void setDaemonPort(Integer daemonPort) {
+        this.daemonPort = daemonPort;
+    }
+
+    /**
+     * Return the shortest and longest time the daemon serves a fetched value before fetching it again
+     * @return the bounds in seconds, or null if the daemon fetches every value a check asks for
+     */
+    public int[] getPollBounds() {
+        return pollBounds;
+    }
+
+    public void setPollBounds(int[] pollBounds) {
+        this.pollBounds = pollBounds;
+    }
+
+    /**
+     * Return the percentile over the window of -m the checks report instead of the current value
+     * @return the percentile, 100 for the largest value, or null if -p was not given
+     */
+    public Integer getPercentile() {
+        return percentile;
+    }
+
+    public void setPercentile(Integer percentile) {
+        this.percentile = percentile;
+    }
+
+    /**
+     * Return whether the values of this run are appended to the archive of the target
+     * @return true if -H was given
+     */
+    public boolean isArchived() {
+        return archived;
+    }
+
+    public void setArchived(boolean archived) {
+        this.archived = archived;
+    }
+
+    /**
+     * Return the series of the archive to print instead of checking
+     * @return the name of the series, or null if -X was not given
+     */
+    public String getArchiveSeries() {
+        return archiveSeries;
+    }
+
+    public void setArchiveSeries(String archiveSeries) {
+        this.archiveSeries = archiveSeries;
+    }
+
+    /**
+     * Return the length of the steps the archived samples are combined into
+     * @return the step in seconds, or 0 to print every sample
+     */
+    public int getArchiveStep() {
+        return archiveStep;
+    }
+
+    public void setArchiveStep(int archiveStep) {
+        this.archiveStep = archiveStep;
+    }
+
+    /**
+     * Return how many checks may be connected to the same target at the same time
+     * @return the number of checks, or null if -M was not given
+     */
+    public Integer getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(Integer maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Return the number of minutes checks on GC notifications look back
+     * @return the window in minutes
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    public void setWindow(int window) {
+        this.window = window;
+    }
+
+    /**
+     * Return whether the options of the Attribute check are given
+     * @return true if -o and -a were given
+     */
+    public boolean hasPatternQuery() {
+        return objectPattern != null && attribute != null;
+    }
+
+    /**
+     * Return the query of the Attribute check
+     * @return the query built from the -o, -a, -g and -n options
+     */
+    public PatternQuery getPatternQuery() {
+        if(objectPattern == null) {
+            throw new IllegalArgumentException("Option -o was not specified on the command line");
+        }
+        if(attribute == null) {
+            throw new IllegalArgumentException("Option -a was not specified on the command line");
+        }
+        return new PatternQuery(objectPattern, attribute, aggregation != null ? aggregation : PatternQuery.Aggregation.SUM, topN, unit);
+    }
+
+    public void setObjectPattern(String objectPattern) {
+        this.objectPattern = objectPattern;
+    }
+
+    public void setAttribute(String attribute) {
+        this.attribute = attribute;
+    }
+
+    /**
+     * Return how values are combined as given with -g
+     * @return the aggregation, or null if -g was not given
+     */
+    public PatternQuery.Aggregation getAggregation() {
+        return aggregation;
+    }
+
+    public void setAggregation(PatternQuery.Aggregation aggregation) {
+        this.aggregation = aggregation;
+    }
+
+    /**
+     * Return the number of MBeans or threads with the largest values that are reported individually
+     * @return the number of MBeans or threads
+     */
+    public int getTopN() {
+        return topN;
+    }
+
+    public void setTopN(int topN) {
+        this.topN = topN;
+    }
+
+    /**
+     * Return the port check_java shall serve Prometheus metrics on
+     * @return the port, or null if check_java shall not run as an exporter
+     */
+    public Integer getExporterPort() {
+        return exporterPort;
+    }
+
+    public void setExporterPort(Integer exporterPort) {
+        this.exporterPort = exporterPort;
+    }
+
+    /**
+     * Return the address the exporter listens on
+     * @return the address, or null for the loopback interface
+     */
+    public String getExporterAddress() {
+        return exporterAddress;
+    }
+
+    public void setExporterAddress(String exporterAddress) {
+        this.exporterAddress = exporterAddress;
+    }
+
+    /**
+     * Return how long fetched values are served to scrapes before they are fetched again
+     * @return the interval in seconds
+     */
+    public int getCacheInterval() {
+        return cacheInterval;
+    }
+
+    public void setCacheInterval(int cacheInterval) {
+        this.cacheInterval = cacheInterval;
+    }
+
+    /**
+     * Return how long fetched values may be shared with other check_java processes through the result cache
+     * @return the time to live in seconds, 0 if the cache is not used
+     */
+    public int getCacheTtl() {
+        return cacheTtl;
+    }
+
+    public void setCacheTtl(int cacheTtl) {
+        this.cacheTtl = cacheTtl;
+    }
+
+    /**
+     * Return whether the usage message shall be shown instead of running a check, either because it
+     * was asked for with -h or because an option was not recognized.
+     * @return true if the usage message shall be shown
+     */
+    public boolean isUsageRequested() {
+        return usageRequested;
+    }
+
     public CheckType getCheckType() {
-        if(checkType != null) {
-            return checkType;
+        return getCheckTypes().get(0);
+    }
+
+    /**
+     * Return all check types given with -t, in the order they were given
+     * @return the check types
+     */
+    public List<CheckType> getCheckTypes() {
+        if(!checkTypes.isEmpty()) {
+            return checkTypes;
         } else {
             throw new IllegalArgumentException("Option -t was not specified on the command line");
         }
     }
 
     public void setCheckType(CheckType checkType) {
-        this.checkType = checkType;
+        this.checkTypes = new ArrayList<CheckType>(Collections.singletonList(checkType));
+    }
+
+    private void addCheckType(CheckType checkType) {
+        if(!checkTypes.contains(checkType)) {
+            checkTypes.add(checkType);
+            checkNames.add(checkType.name());
+        }
+    }
+
+    private void addDefinedType(String name) {
+        if(!definedTypes.contains(name)) {
+            definedTypes.add(name);
+            checkNames.add(name);
+        }
+    }
+
+    /**
+     * Return the names of all check types given with -t, those defined in code as well as those
+     * defined in the configuration file given with -f, in the order they were given
+     * @return the names of the check types
+     */
+    public List<String> getCheckNames() {
+        if(!checkNames.isEmpty()) {
+            return checkNames;
+        } else {
+            throw new IllegalArgumentException("Option -t was not specified on the command line");
+        }
+    }
+
+    /**
+     * Return whether a check type is defined in code rather than in a configuration file
+     * @param name the name of the check type
+     * @return true if it is one of the CheckType constants
+     */
+    public static boolean isBuiltInType(String name) {
+        for (CheckType t : CheckType.values()) {
+            if (t.name().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the configuration file further check types are defined in
+     * @return the file, or null if -f was not given
+     */
+    public File getConfigFile() {
+        return configFile;
+    }
+
+    public void setConfigFile(File configFile) {
+        this.configFile = configFile;
     }
 
     public int getWarnThreshold() {
-        if(warnThreshold != null) {
-            return warnThreshold;
+        return getWarnThreshold(0);
+    }
+
+    /**
+     * Return whether warning thresholds are given
+     * @return true if -w was given
+     */
+    public boolean hasWarnThresholds() {
+        return warnThresholds != null;
+    }
+
+    /**
+     * Return the warning threshold of the i-th check type. If fewer thresholds than check types were
+     * given, the last threshold applies to all remaining check types.
+     * @param i the index of the check type
+     * @return the warning threshold
+     */
+    public int getWarnThreshold(int i) {
+        if(warnThresholds != null) {
+            return warnThresholds.get(Math.min(i, warnThresholds.size() - 1));
         } else {
             throw new IllegalArgumentException("Option -w was not specified on the command line");
         }
     }
 
     public void setWarnThreshold(int warnThreshold) {
-        this.warnThreshold = warnThreshold;
+        this.warnThresholds = Collections.singletonList(warnThreshold);
     }
 
     public int getCritThreshold() {
-        if(critThreshold != null) {
-            return critThreshold;
+        return getCritThreshold(0);
+    }
+
+    /**
+     * Return whether critical thresholds are given
+     * @return true if -c was given
+     */
+    public boolean hasCritThresholds() {
+        return critThresholds != null;
+    }
+
+    /**
+     * Return the critical threshold of the i-th check type. If fewer thresholds than check types were
+     * given, the last threshold applies to all remaining check types.
+     * @param i the index of the check type
+     * @return the critical threshold
+     */
+    public int getCritThreshold(int i) {
+        if(critThresholds != null) {
+            return critThresholds.get(Math.min(i, critThresholds.size() - 1));
         } else {
             throw new IllegalArgumentException("Option -c was not specified on the command line");
         }
     }
 
     public void setCritThreshold(int critThreshold) {
-        this.critThreshold = critThreshold;
+        this.critThresholds = Collections.singletonList(critThreshold);
+    }
+
+    private static int parsePercentile(String arg) {
+        if ("max".equalsIgnoreCase(arg)) {
+            return 100;
+        }
+        int p = Integer.parseInt(arg.startsWith("p") || arg.startsWith("P") ? arg.substring(1) : arg);
+        if (p < 1 || p > 100) {
+            throw new IllegalArgumentException("-p needs a percentile between 1 and 100");
+        }
+        return p;
+    }
+
+    private static List<Integer> parseThresholds(String arg) {
+        List<Integer> thresholds = new ArrayList<Integer>();
+        for (String t : arg.split(",")) {
+            thresholds.add(Integer.parseInt(t));
+        }
+        return thresholds;
     }
 
     private class ArrayIterator<E> implements Iterator<E> {
@@ -227,52 +784,212 @@ public class Options {
 
     public void setUrl(String url) {
         this.url = url;
+        this.urls = new ArrayList<String>(Collections.singletonList(url));
     }
 
-    private void printUsage() {
-        System.out.println("check_java");
-        System.out.println("----------\n");
-        System.out.println("Copyright (C) 2015 Sebastian Schäfer <sarek@uliweb.de>\n");
-
-        System.out.println("Redistribution and use in source and binary forms, with or without ");
-        System.out.println("modification, are permitted provided that the following conditions are met:");
-        System.out.println("");
-        System.out.println("Redistributions of source code must retain the above copyright");
-        System.out.println("notice, this list of conditions and the following disclaimer.");
-        System.out.println("Redistributions in binary form must reproduce the above copyright");
-        System.out.println("notice, this list of conditions and the following disclaimer in the");
-        System.out.println("documentation and/or other materials provided with the distribution.");
-        System.out.println("Neither the name of check_java nor the");
-        System.out.println("names of its contributors may be used to endorse or promote products");
-        System.out.println("derived from this software without specific prior written permission.");
-        System.out.println("");
-        System.out.println("THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS \"AS IS\" AND");
-        System.out.println("ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED");
-        System.out.println("WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE");
-        System.out.println("DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY");
-        System.out.println("DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES");
-        System.out.println("(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;");
-        System.out.println("LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND");
-        System.out.println("ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT");
-        System.out.println("(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS");
-        System.out.println("SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.\n\n");
-
-        System.out.println("Usage:");
-        System.out.println("------\n");
-
-        System.out.println("check_java [-u <URL>] -t <Check Type> -w <Warn Level> -c <Critical Level>\n");
-
-        System.out.println("-u <URL>\tConnect to the JMX service at this URL. The default URL is");
-        System.out.println("\t\t\"service:jmx:rmi:///jndi/rmi://:9000/jmxrmi\"");
-        System.out.println("-t <Type>\tCheck the Java VM property of type <Type>. Type can be one of:");
-        System.out.println("\t\tHeapMem, NonHeapMem, MemPoolEden, MemPoolSurvivor, MemPoolCodeCache,");
-        System.out.println("\t\tGCMarkSweepCount, GCMarkSweepTime, ClassLoading, ThreadCount");
-        System.out.println("\t\tFor more information on the check types, please read the documentation");
-        System.out.println("-w <Level>\tA number that will result in check_java returning a WARNING state");
-        System.out.println("\t\tto Nagios.");
-        System.out.println("-c <Level>\tA number that will result in check_java returning a CRITICAL state");
-        System.out.println("\t\tto Nagios. Should be higher than -w");
-        System.out.println("-U\tUnit : GB, MB, B, KB");
-        System.out.println("-h\tDisplay this message");
+    /**
+     * Return all targets to check. If no -u or -T option was given, this is the default URL.
+     * @return the URLs of the JMX servers
+     */
+    public List<String> getUrls() {
+        if(!urls.isEmpty()) {
+            return urls;
+        } else {
+            return Collections.singletonList(getUrl());
+        }
+    }
+
+    private void addUrl(String url) {
+        if(urls.isEmpty()) {
+            this.url = url;
+        }
+        urls.add(url);
+    }
+
+    /**
+     * Add the targets listed in a file, one URL per line. Empty lines and lines starting with # are skipped.
+     * @param fileName the name of the file
+     */
+    private void addUrls(String fileName) {
+        try {
+            for (String line : Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if(!line.isEmpty() && !line.startsWith("#")) {
+                    addUrl(line);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not read targets from " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Return the time a single target may take before it is reported as UNKNOWN
+     * @return the time limit in seconds
+     */
+    public int getTimeLimit() {
+        return timeLimit;
+    }
+
+    public void setTimeLimit(int timeLimit) {
+        this.timeLimit = timeLimit;
+    }
+
+    /**
+     * Return whether a second connection attempt is started when the first one is slower than usual
+     * @return true to hedge connection attempts
+     */
+    public boolean isHedged() {
+        return hedged;
+    }
+
+    public void setHedged(boolean hedged) {
+        this.hedged = hedged;
+    }
+
+    /**
+     * Return whether the cost of the check itself shall be appended to the performance data
+     * @return true to report the cost of the check
+     */
+    public boolean isInstrumented() {
+        return instrumented;
+    }
+
+    public void setInstrumented(boolean instrumented) {
+        this.instrumented = instrumented;
+    }
+
+    /**
+     * Return how the numeric attributes of all MBeans shall be listed
+     * @return the format, or null if no MBeans shall be listed
+     */
+    public MBeanDiscovery.Format getDiscoveryFormat() {
+        return discoveryFormat;
+    }
+
+    public void setDiscoveryFormat(MBeanDiscovery.Format discoveryFormat) {
+        this.discoveryFormat = discoveryFormat;
+    }
+
+    /**
+     * Print the usage message
+     * @param out the stream to print it to
+     */
+    public void printUsage(PrintStream out) {
+        if(unrecognizedOption != null) {
+            out.println("Unrecognized option: " + unrecognizedOption);
+        }
+        out.println("check_java");
+        out.println("----------\n");
+        out.println("Copyright (C) 2015 Sebastian Schäfer <sarek@uliweb.de>\n");
+
+        out.println("Redistribution and use in source and binary forms, with or without ");
+        out.println("modification, are permitted provided that the following conditions are met:");
+        out.println("");
+        out.println("Redistributions of source code must retain the above copyright");
+        out.println("notice, this list of conditions and the following disclaimer.");
+        out.println("Redistributions in binary form must reproduce the above copyright");
+        out.println("notice, this list of conditions and the following disclaimer in the");
+        out.println("documentation and/or other materials provided with the distribution.");
+        out.println("Neither the name of check_java nor the");
+        out.println("names of its contributors may be used to endorse or promote products");
+        out.println("derived from this software without specific prior written permission.");
+        out.println("");
+        out.println("THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS \"AS IS\" AND");
+        out.println("ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED");
+        out.println("WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE");
+        out.println("DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY");
+        out.println("DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES");
+        out.println("(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;");
+        out.println("LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND");
+        out.println("ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT");
+        out.println("(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS");
+        out.println("SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.\n\n");
+
+        out.println("Usage:");
+        out.println("------\n");
+
+        out.println("check_java [-u <URL>] [-l <Seconds>] [-R] [-I] [-M <Number>] [-f <File>] [-p <Stat>] -t <Check Type> -w <Warn Level> -c <Critical Level>");
+        out.println("check_java -u <URL> -u <URL> ... | -T <File> [-l <Seconds>] -t <Check Type> -w <Warn Level> -c <Critical Level>");
+        out.println("check_java [-u <URL>] -L checks|metrics");
+        out.println("check_java -D <Port> [-A <Seconds>,<Seconds>] [-M <Number>]");
+        out.println("check_java [-u <URL> ...] -P [<Address>:]<Port> [-i <Seconds>] [-o <Pattern> -a <Attribute> [-g <Function>]]\n");
+
+        out.println("-u <URL>\tConnect to the JMX service at this URL. The default URL is");
+        out.println("\t\t\"service:jmx:rmi:///jndi/rmi://:9000/jmxrmi\"");
+        out.println("\t\tIf -u is given several times, all targets are polled concurrently.");
+        out.println("\t\tA JVM on the same host can be given as local:<PID> or as");
+        out.println("\t\tlocal:<part of its main class>, it is then connected to through the");
+        out.println("\t\tAttach API and needs no JMX port.");
+        out.println("-T <File>\tPoll all targets listed in this file, one URL per line.");
+        out.println("-l <Seconds>\tTime a target may take to answer, including connecting, before it");
+        out.println("\t\tis reported as UNKNOWN. The default is 10 seconds.");
+        out.println("-R\t\tStart a second connection attempt when the first one takes longer");
+        out.println("\t\tthan connecting to the target usually does, and use whichever");
+        out.println("\t\tsucceeds first.");
+        out.println("-M <Number>\tLet at most this many checks on this host be connected to the");
+        out.println("\t\ttarget at the same time, the others wait for their turn within");
+        out.println("\t\tthe time limit. The daemon lets 4 checks per target through unless");
+        out.println("\t\tit is started with -M.");
+        out.println("-I\t\tAppend the cost of the check itself to the performance data: the time");
+        out.println("\t\tspent in each phase, the JMX calls made, the bytes exchanged and the");
+        out.println("\t\tmemory allocated.");
+        out.println("-t <Type>\tCheck the Java VM property of type <Type>. Type can be one of:");
+        out.println("\t\tHeapMem, NonHeapMem, MemPoolEden, MemPoolSurvivor, MemPoolCodeCache,");
+        out.println("\t\tGCMarkSweepCount, GCMarkSweepTime, ClassLoading, ThreadCount,");
+        out.println("\t\tGCMarkSweepCountRate, GCMarkSweepTimeRate, ClassLoadingRate,");
+        out.println("\t\tGCMaxPause, GCPauseP99 (daemon mode only), Attribute,");
+        out.println("\t\tHeapMemAvg, OldGenTrend, OldGenExhaustion, HotThreads");
+        out.println("\t\tSeveral types can be given as a comma separated list, \"all\" selects");
+        out.println("\t\tthe types from HeapMem to ThreadCount. They are checked over a single");
+        out.println("\t\tconnection.");
+        out.println("\t\tFor more information on the check types, please read the documentation");
+        out.println("-f <File>\tRead further check types from this file. -t selects them by the");
+        out.println("\t\tname they are defined with, -w and -c default to the thresholds");
+        out.println("\t\tthe file gives.");
+        out.println("-w <Level>\tA number that will result in check_java returning a WARNING state");
+        out.println("\t\tto Nagios.");
+        out.println("-c <Level>\tA number that will result in check_java returning a CRITICAL state");
+        out.println("\t\tto Nagios. Should be higher than -w");
+        out.println("\t\t-w and -c take a comma separated list if several types are checked,");
+        out.println("\t\tthe last number applies to all remaining types.");
+        out.println("-U\tUnit : GB, MB, B, KB");
+        out.println("-o <Pattern>\tThe ObjectName pattern of the MBeans the Attribute check reads,");
+        out.println("\t\te.g. \"Catalina:type=ThreadPool,*\"");
+        out.println("-a <Attribute>\tThe attribute the Attribute check reads, use attribute.sub for a");
+        out.println("\t\tsub-attribute of a complex attribute");
+        out.println("-g <Function>\tHow the Attribute check combines the values of all matching MBeans:");
+        out.println("\t\tsum (default), max, min, avg or count");
+        out.println("-n <Number>\tThe number of MBeans with the largest values the Attribute check");
+        out.println("\t\treports individually, and the number of threads HotThreads reports,");
+        out.println("\t\tdefault 5");
+        out.println("-C <Seconds>\tShare fetched values with other check_java runs on this host for");
+        out.println("\t\tthis long. A check whose values are all shared needs no connection.");
+        out.println("-m <Minutes>\tThe window GCMaxPause and GCPauseP99 look back, HeapMemAvg");
+        out.println("\t\taverages over and -p reports a percentile over, default 5 minutes.");
+        out.println("-p <Stat>\tCompare a percentile of the values sampled within the window of -m");
+        out.println("\t\tagainst the thresholds instead of the current value: p50, p95, p99,");
+        out.println("\t\tany other pNN, or max. Every run adds one sample, so pNN needs a window");
+        out.println("\t\tof at least 100/(100-NN) check intervals, e.g. -m 20 for p95 at 1/min.");
+        out.println("-L <Format>\tList every numeric attribute of every MBean instead of checking:");
+        out.println("\t\t\"checks\" prints a check_java command line per attribute,");
+        out.println("\t\t\"metrics\" prints MBean, attribute and value separated by tabs.");
+        out.println("-D <Port>\tRun as a daemon that keeps its JMX connections open and answers");
+        out.println("\t\tchecks sent to this port on the loopback interface. See the");
+        out.println("\t\tcheck_java_client script for the client side.");
+        out.println("-A <Min>,<Max>\tLet the daemon serve a fetched value for between Min and Max");
+        out.println("\t\tseconds, longer the less it changes and the farther it is from");
+        out.println("\t\tthe thresholds.");
+        out.println("-H\t\tAppend the values of the checks to a compressed archive of the");
+        out.println("\t\ttarget, under the labels of the performance data.");
+        out.println("-X <Series>[@<Seconds>]\tPrint the archived samples of a series, e.g.");
+        out.println("\t\tHeapMem.used, instead of checking. With @<Seconds> the samples are");
+        out.println("\t\tcombined into one per step as -g says, default avg.");
+        out.println("-P [<Address>:]<Port>\tServe the values of all check types of the targets as");
+        out.println("\t\tPrometheus metrics on http://<Address>:<Port>/metrics. Only the");
+        out.println("\t\tloopback interface unless an address is given, 0.0.0.0 for all.");
+        out.println("-i <Seconds>\tHow long the exporter serves fetched values before it fetches them");
+        out.println("\t\tagain, default 15 seconds.");
+        out.println("-h\tDisplay this message");
     }
 }
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads one attribute of all MBeans matching an ObjectName pattern and aggregates the values, e.g.
+ * the sum of ActiveCount over all Catalina:type=ThreadPool,* MBeans.
+ *
+ * JMX has no call that reads attributes of several MBeans at once, so the matching MBeans are split
+ * into batches that are read in parallel over the same connection.
+ */
+public class PatternQuery {
+    /**
+     * How the values of the matching MBeans are combined
+     */
+    public enum Aggregation {
+        SUM("sum"), MAX("max"), MIN("min"), AVG("avg"), COUNT("count");
+
+        private final String name;
+
+        Aggregation(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Return the name of the aggregation as given with -g and reported as the name of the result
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Look up an aggregation by the name given with -g
+         * @param name the name
+         * @return the aggregation
+         * @throws IllegalArgumentException if there is no aggregation of that name
+         */
+        public static Aggregation forName(String name) {
+            for (Aggregation a : values()) {
+                if (a.name.equals(name)) {
+                    return a;
+                }
+            }
+            throw new IllegalArgumentException("Unknown aggregation " + name);
+        }
+    }
+
+    private static final int BATCH_SIZE = 32;
+    private static final int THREADS = 8;
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "check_java-pattern-query");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * The value of the attribute of one matching MBean
+     */
+    private static class Contribution {
+        private final ObjectName name;
+        private final long value;
+
+        private Contribution(ObjectName name, long value) {
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    private final String pattern;
+    private final String attribute;
+    private final String subAttribute;
+    private final Aggregation aggregation;
+    private final int topN;
+    private final String unit;
+
+    /**
+     * Create a new query
+     * @param pattern the ObjectName pattern, e.g. "Catalina:type=ThreadPool,*"
+     * @param attribute the attribute to read, a sub-attribute of a complex attribute is given as
+     *                  "attribute.subAttribute" or a deeper path such as
+     *                  "LastGcInfo.memoryUsageAfterGc[G1 Old Gen].used"
+     * @param aggregation how the values are combined
+     * @param topN the number of MBeans with the largest values to report individually
+     * @param unit the unit the values shall be reported in, may be null
+     */
+    public PatternQuery(String pattern, String attribute, Aggregation aggregation, int topN, String unit) {
+        this.pattern = pattern;
+        String[] split = AttributePath.split(attribute);
+        this.attribute = split[0];
+        this.subAttribute = split[1];
+        this.aggregation = aggregation;
+        this.topN = topN;
+        this.unit = unit != null ? unit : "";
+    }
+
+    /**
+     * Return a human readable description of the query
+     * @return the description
+     */
+    public String getDescription() {
+        return aggregation.getName() + " of " + attribute + (subAttribute == null ? "" : subAttribute.startsWith("[") ? subAttribute : "." + subAttribute) + " over " + pattern;
+    }
+
+    /**
+     * Read the attribute of all matching MBeans and aggregate it.
+     *
+     * @param client the JMX server to query
+     * @return the aggregate, the number of matching MBeans with a numeric value, and the top N
+     *         contributors, largest first
+     */
+    public List<Result> fetch(final JMXClient client) throws IOException, MalformedObjectNameException, InterruptedException {
+        List<ObjectName> names = new ArrayList<ObjectName>(client.queryNames(pattern));
+
+        List<Future<List<Contribution>>> futures = new ArrayList<Future<List<Contribution>>>();
+        for (int i = 0; i < names.size(); i += BATCH_SIZE) {
+            final List<ObjectName> batch = names.subList(i, Math.min(names.size(), i + BATCH_SIZE));
+            futures.add(executor.submit(new Callable<List<Contribution>>() {
+                @Override
+                public List<Contribution> call() throws Exception {
+                    return read(client, batch);
+                }
+            }));
+        }
+
+        List<Contribution> contributions = new ArrayList<Contribution>(names.size());
+        for (Future<List<Contribution>> future : futures) {
+            try {
+                contributions.addAll(future.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Could not read " + attribute + " of " + pattern, e.getCause());
+            }
+        }
+
+        return aggregate(contributions);
+    }
+
+    /**
+     * Read the attribute of a batch of MBeans. MBeans that vanished in between or whose attribute is
+     * not numeric are skipped.
+     */
+    private List<Contribution> read(JMXClient client, List<ObjectName> batch) throws IOException {
+        List<Contribution> res = new ArrayList<Contribution>(batch.size());
+        for (ObjectName name : batch) {
+            Object val;
+            try {
+                val = client.getAttribute(name.getCanonicalName(), attribute, subAttribute);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                continue;
+            }
+            if (val instanceof Number) {
+                res.add(new Contribution(name, ((Number) val).longValue()));
+            }
+        }
+        return res;
+    }
+
+    private List<Result> aggregate(List<Contribution> contributions) {
+        long value = 0;
+        switch (aggregation) {
+            case SUM:
+            case AVG:
+                for (Contribution c : contributions) {
+                    value += c.value;
+                }
+                if (aggregation == Aggregation.AVG && !contributions.isEmpty()) {
+                    value /= contributions.size();
+                }
+                break;
+            case MAX:
+                value = Long.MIN_VALUE;
+                for (Contribution c : contributions) {
+                    value = Math.max(value, c.value);
+                }
+                break;
+            case MIN:
+                value = Long.MAX_VALUE;
+                for (Contribution c : contributions) {
+                    value = Math.min(value, c.value);
+                }
+                break;
+            case COUNT:
+                value = contributions.size();
+                break;
+        }
+        if (contributions.isEmpty()) {
+            value = 0;
+        }
+
+        String valueUnit = aggregation == Aggregation.COUNT ? "" : unit;
+        List<Result> res = new ArrayList<Result>(2 + topN);
+        res.add(new Result(value, valueUnit, aggregation.getName()));
+        res.add(new Result((long) contributions.size(), "", "beans"));
+
+        Collections.sort(contributions, new Comparator<Contribution>() {
+            @Override
+            public int compare(Contribution a, Contribution b) {
+                return Long.compare(b.value, a.value);
+            }
+        });
+        for (Contribution c : contributions.subList(0, Math.min(topN, contributions.size()))) {
+            res.add(new Result(c.value, unit, label(c.name)));
+        }
+        return res;
+    }
+
+    /**
+     * Return a performance data label for an MBean: its name property if it has one, otherwise all
+     * its properties. Characters Nagios could trip over are replaced.
+     */
+    private static String label(ObjectName name) {
+        String label = name.getKeyProperty("name");
+        if (label == null) {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, String> prop : name.getKeyPropertyList().entrySet()) {
+                if (sb.length() > 0) {
+                    sb.append('_');
+                }
+                sb.append(prop.getValue());
+            }
+            label = sb.toString();
+        }
+        return label.replaceAll("[^A-Za-z0-9_.-]", "_");
+    }
+}
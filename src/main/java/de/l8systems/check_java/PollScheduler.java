@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides for the daemon how long a fetched value may be served before it is fetched again.
+ *
+ * Every attribute of every target has its own interval, between a lower and an upper bound. It is
+ * the time the value would need, at the rate it changed by recently, to move by a tenth of itself, or
+ * by half of its distance to the nearest threshold if it is the value a check compares against its
+ * thresholds. Values that rarely change, like the number of loaded classes, are thus fetched rarely,
+ * while values that change quickly or are close to a threshold are fetched whenever a check asks for
+ * them. An interval grows by at most a factor of two at a time, so a value that starts to move after
+ * a quiet period is caught up with quickly.
+ *
+ * Several checks may compare the same attribute against different thresholds. The scheduler remembers
+ * the thresholds of every check that asked for the attribute recently and serves the value for the
+ * shortest interval any of them needs.
+ */
+public class PollScheduler {
+    /**
+     * The weight of a new sample in the average rate of change
+     */
+    private static final double RATE_WEIGHT = 0.25;
+
+    /**
+     * The share of its own size a value that is not compared against thresholds may change by before
+     * it is fetched again
+     */
+    private static final double RELATIVE_TOLERANCE = 0.1;
+
+    /**
+     * How long the thresholds of a check are taken into account after it last asked for a value
+     */
+    private static final long THRESHOLD_EXPIRY = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * The last fetched value of one attribute and the interval it is served for
+     */
+    private static class Entry {
+        private Result result;
+        private long fetchedAt;
+        private long interval;
+        private double rate = -1;
+        private final Map<List<Integer>, Long> thresholds = new HashMap<>();
+    }
+
+    private final long minMillis;
+    private final long maxMillis;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Create a scheduler
+     * @param minMillis the shortest time a fetched value is served
+     * @param maxMillis the longest time a fetched value is served
+     */
+    public PollScheduler(long minMillis, long maxMillis) {
+        this.minMillis = minMillis;
+        this.maxMillis = Math.max(minMillis, maxMillis);
+    }
+
+    /**
+     * Return the attributes whose values must be fetched, because they were never fetched or their
+     * interval has passed
+     *
+     * @param url the URL of the target
+     * @param ids the attributes a check needs, the first one being the value it compares against its thresholds
+     * @param warn the warning threshold of the check, null if it has none
+     * @param crit the critical threshold of the check, null if it has none
+     * @return the attributes to fetch, in the order they were given
+     */
+    public List<AttributeIdentifier> due(String url, List<AttributeIdentifier> ids, Integer warn, Integer crit) {
+        long now = System.currentTimeMillis();
+        List<AttributeIdentifier> due = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            AttributeIdentifier id = ids.get(i);
+            Entry e = entry(key(url, id));
+            synchronized (e) {
+                if (i == 0 && warn != null && crit != null) {
+                    e.thresholds.put(Arrays.asList(warn, crit), now);
+                }
+                if (e.result == null || now - e.fetchedAt >= e.interval) {
+                    due.add(id);
+                }
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Record a fetched value and work out how long it is served
+     *
+     * @param url the URL of the target
+     * @param id the attribute
+     * @param result the fetched value
+     */
+    public void update(String url, AttributeIdentifier id, Result result) {
+        Entry e = entry(key(url, id));
+        long now = System.currentTimeMillis();
+        synchronized (e) {
+            Long value = result.getValue();
+            Long last = e.result != null ? e.result.getValue() : null;
+            if (value != null && last != null && now > e.fetchedAt) {
+                double sample = Math.abs(value - last) / (double) (now - e.fetchedAt);
+                e.rate = e.rate < 0 ? sample : e.rate + (sample - e.rate) * RATE_WEIGHT;
+            }
+
+            long interval;
+            if (value == null) {
+                interval = maxMillis;
+            } else if (e.rate < 0) {
+                interval = minMillis;
+            } else {
+                double tolerance = Math.max(1, Math.abs(value) * RELATIVE_TOLERANCE);
+                for (Iterator<Map.Entry<List<Integer>, Long>> it = e.thresholds.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<List<Integer>, Long> t = it.next();
+                    if (now - t.getValue() > THRESHOLD_EXPIRY) {
+                        it.remove();
+                        continue;
+                    }
+                    long warn = t.getKey().get(0);
+                    long crit = t.getKey().get(1);
+                    tolerance = Math.min(tolerance, Math.min(Math.abs(value - warn), Math.abs(value - crit)) / 2.0);
+                }
+                interval = e.rate > 0 ? (long) Math.min(maxMillis, tolerance / e.rate) : maxMillis;
+            }
+            if (e.result != null) {
+                interval = Math.min(interval, 2 * e.interval);
+            }
+
+            e.result = result;
+            e.fetchedAt = now;
+            e.interval = Math.max(minMillis, Math.min(maxMillis, interval));
+        }
+    }
+
+    /**
+     * Return the last fetched values of attributes
+     *
+     * @param url the URL of the target
+     * @param ids the attributes
+     * @return the values, in the order of the attributes
+     * @throws IllegalStateException if one of the values was never fetched
+     */
+    public List<Result> values(String url, List<AttributeIdentifier> ids) {
+        List<Result> res = new ArrayList<>(ids.size());
+        for (AttributeIdentifier id : ids) {
+            Entry e = entries.get(key(url, id));
+            Result result = null;
+            if (e != null) {
+                synchronized (e) {
+                    result = e.result;
+                }
+            }
+            if (result == null) {
+                throw new IllegalStateException("No value of " + id.getAttribute() + " was fetched");
+            }
+            res.add(result);
+        }
+        return res;
+    }
+
+    private Entry entry(String key) {
+        Entry e = entries.get(key);
+        if (e == null) {
+            Entry newEntry = new Entry();
+            e = entries.putIfAbsent(key, newEntry);
+            if (e == null) {
+                e = newEntry;
+            }
+        }
+        return e;
+    }
+
+    private static String key(String url, AttributeIdentifier id) {
+        return url + "|" + (id.getRole() != null ? id.getRole() : id.getObjectName()) + "|" + id.getAttribute()
+                + "|" + id.getSubAttribute() + "|" + id.getUnit();
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How to fetch a list of attributes with as few round trips as possible.
+ *
+ * Identical attributes are fetched once, and all attributes of an MBean are read with a single
+ * getAttributes call. Each requested value is extracted once from the fetched attribute value, and
+ * paths into the same value share their intermediate values. A plan only depends on the attributes, not
+ * on the target, so it can be compiled once and kept between runs in binary form.
+ */
+public class QueryPlan {
+    private final ObjectName[] objects;
+    private final String[][] attributes;
+
+    /**
+     * The distinct values: the MBean and attribute they are read from and the path into the attribute
+     */
+    private final int[] valueObject;
+    private final String[] valueAttribute;
+    private final String[] valuePath;
+
+    /**
+     * For each requested attribute, the distinct value it is answered with
+     */
+    private final int[] slots;
+
+    /**
+     * The requested attributes, to check whether the plan still fits them
+     */
+    private final String[] keys;
+
+    private QueryPlan(ObjectName[] objects, String[][] attributes, int[] valueObject, String[] valueAttribute, String[] valuePath, int[] slots, String[] keys) {
+        this.objects = objects;
+        this.attributes = attributes;
+        this.valueObject = valueObject;
+        this.valueAttribute = valueAttribute;
+        this.valuePath = valuePath;
+        this.slots = slots;
+        this.keys = keys;
+    }
+
+    /**
+     * Compile the plan for a list of attributes. All of them must be identified by object name, roles
+     * have to be resolved first.
+     *
+     * @param ids the attributes to fetch
+     * @return the plan
+     * @throws MalformedObjectNameException if an object name is invalid
+     */
+    public static QueryPlan compile(List<AttributeIdentifier> ids) throws MalformedObjectNameException {
+        Map<String, Integer> objectIndex = new LinkedHashMap<>();
+        List<List<String>> attrs = new ArrayList<>();
+        Map<String, Integer> valueIndex = new HashMap<>();
+        List<Integer> valueObject = new ArrayList<>();
+        List<String> valueAttribute = new ArrayList<>();
+        List<String> valuePath = new ArrayList<>();
+        int[] slots = new int[ids.size()];
+        String[] keys = new String[ids.size()];
+
+        for (int i = 0; i < ids.size(); i++) {
+            AttributeIdentifier id = ids.get(i);
+            keys[i] = key(id);
+            Integer value = valueIndex.get(keys[i]);
+            if (value == null) {
+                Integer obj = objectIndex.get(id.getObjectName());
+                if (obj == null) {
+                    obj = objectIndex.size();
+                    objectIndex.put(id.getObjectName(), obj);
+                    attrs.add(new ArrayList<String>());
+                }
+                if (!attrs.get(obj).contains(id.getAttribute())) {
+                    attrs.get(obj).add(id.getAttribute());
+                }
+                value = valueObject.size();
+                valueIndex.put(keys[i], value);
+                valueObject.add(obj);
+                valueAttribute.add(id.getAttribute());
+                valuePath.add(id.getSubAttribute());
+            }
+            slots[i] = value;
+        }
+
+        ObjectName[] objects = new ObjectName[objectIndex.size()];
+        for (Map.Entry<String, Integer> e : objectIndex.entrySet()) {
+            objects[e.getValue()] = new ObjectName(e.getKey());
+        }
+        String[][] attributes = new String[attrs.size()][];
+        for (int i = 0; i < attributes.length; i++) {
+            attributes[i] = attrs.get(i).toArray(new String[attrs.get(i).size()]);
+        }
+        int[] objs = new int[valueObject.size()];
+        for (int i = 0; i < objs.length; i++) {
+            objs[i] = valueObject.get(i);
+        }
+        return new QueryPlan(objects, attributes, objs, valueAttribute.toArray(new String[0]), valuePath.toArray(new String[0]), slots, keys);
+    }
+
+    private static String key(AttributeIdentifier id) {
+        return id.getObjectName() + "|" + id.getAttribute() + "|" + id.getSubAttribute();
+    }
+
+    /**
+     * Return a key that is the same for all plans that fetch the same attributes in the same order
+     * @return the key
+     */
+    public String getKey() {
+        StringBuilder sb = new StringBuilder();
+        for (String key : keys) {
+            sb.append(key).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Return whether this plan fetches exactly the given attributes, in the given order
+     * @param ids the attributes
+     * @return true if the plan can be used for them
+     */
+    public boolean matches(List<AttributeIdentifier> ids) {
+        if (ids.size() != keys.length) {
+            return false;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (ids.get(i).getRole() != null || !keys[i].equals(key(ids.get(i)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fetch the attributes
+     *
+     * @param client the JMX server to fetch them from
+     * @return the values, in the order of the attributes the plan was compiled for
+     * @throws AttributeNotFoundException if an attribute cannot be read
+     */
+    public List<Object> execute(JMXClient client) throws AttributeNotFoundException, InstanceNotFoundException, ReflectionException, IOException {
+        return execute(client, false);
+    }
+
+    /**
+     * Fetch the attributes, optionally leaving out those the target does not have
+     *
+     * @param client the JMX server to fetch them from
+     * @param skipMissing whether a missing MBean or attribute yields null instead of an exception
+     * @return the values, in the order of the attributes the plan was compiled for
+     * @throws AttributeNotFoundException if an attribute cannot be read and missing ones are not skipped
+     */
+    public List<Object> execute(JMXClient client, boolean skipMissing) throws AttributeNotFoundException, InstanceNotFoundException, ReflectionException, IOException {
+        List<Map<String, Object>> fetched = new ArrayList<>(objects.length);
+        for (int i = 0; i < objects.length; i++) {
+            AttributeList list;
+            try {
+                list = client.getAttributes(objects[i], attributes[i]);
+            } catch (InstanceNotFoundException e) {
+                if (!skipMissing) {
+                    throw e;
+                }
+                list = new AttributeList();
+            }
+            Map<String, Object> values = new HashMap<>();
+            for (Attribute attr : list.asList()) {
+                values.put(attr.getName(), attr.getValue());
+            }
+            fetched.add(values);
+        }
+
+        Object[] values = new Object[valueObject.length];
+        Map<String, Map<String, Object>> shared = new HashMap<>();
+        for (int v = 0; v < values.length; v++) {
+            Map<String, Object> attrs = fetched.get(valueObject[v]);
+            // getAttributes silently drops attributes it could not read
+            if (!attrs.containsKey(valueAttribute[v])) {
+                if (skipMissing) {
+                    continue;
+                }
+                throw new AttributeNotFoundException("No such attribute: " + valueAttribute[v]);
+            }
+            Object val = attrs.get(valueAttribute[v]);
+            if (valuePath[v] != null) {
+                String key = valueObject[v] + "|" + valueAttribute[v];
+                Map<String, Object> intermediate = shared.get(key);
+                if (intermediate == null) {
+                    intermediate = new HashMap<>();
+                    shared.put(key, intermediate);
+                }
+                val = AttributePath.of(valuePath[v]).extract(val, intermediate);
+            }
+            values[v] = val;
+        }
+
+        List<Object> res = new ArrayList<>(slots.length);
+        for (int slot : slots) {
+            res.add(values[slot]);
+        }
+        return res;
+    }
+
+    /**
+     * Write the plan in binary form
+     * @param out the stream to write to
+     * @throws IOException if writing fails
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(objects.length);
+        for (int i = 0; i < objects.length; i++) {
+            out.writeUTF(objects[i].getCanonicalName());
+            out.writeInt(attributes[i].length);
+            for (String attr : attributes[i]) {
+                out.writeUTF(attr);
+            }
+        }
+        out.writeInt(valueObject.length);
+        for (int v = 0; v < valueObject.length; v++) {
+            out.writeInt(valueObject[v]);
+            out.writeUTF(valueAttribute[v]);
+            writeNullable(out, valuePath[v]);
+        }
+        out.writeInt(slots.length);
+        for (int i = 0; i < slots.length; i++) {
+            out.writeInt(slots[i]);
+            out.writeUTF(keys[i]);
+        }
+    }
+
+    /**
+     * Read a plan written by write()
+     * @param in the stream to read from
+     * @return the plan
+     * @throws IOException if reading fails or the data is not a plan
+     */
+    public static QueryPlan read(DataInputStream in) throws IOException {
+        try {
+            ObjectName[] objects = new ObjectName[in.readInt()];
+            String[][] attributes = new String[objects.length][];
+            for (int i = 0; i < objects.length; i++) {
+                objects[i] = new ObjectName(in.readUTF());
+                attributes[i] = new String[in.readInt()];
+                for (int j = 0; j < attributes[i].length; j++) {
+                    attributes[i][j] = in.readUTF();
+                }
+            }
+            int values = in.readInt();
+            int[] valueObject = new int[values];
+            String[] valueAttribute = new String[values];
+            String[] valuePath = new String[values];
+            for (int v = 0; v < values; v++) {
+                valueObject[v] = in.readInt();
+                valueAttribute[v] = in.readUTF();
+                valuePath[v] = readNullable(in);
+            }
+            int[] slots = new int[in.readInt()];
+            String[] keys = new String[slots.length];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = in.readInt();
+                keys[i] = in.readUTF();
+            }
+            return new QueryPlan(objects, attributes, valueObject, valueAttribute, valuePath, slots, keys);
+        } catch (MalformedObjectNameException | NegativeArraySizeException e) {
+            throw new IOException("Corrupt query plan", e);
+        }
+    }
+
+    static void writeNullable(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
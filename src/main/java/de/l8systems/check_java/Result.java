@@ -35,6 +35,7 @@ public class Result {
     private Long value;
     private String unit;
     private String name;
+    private String details;
 
     public Result(Long value, String unit, String name) {
 
@@ -81,4 +82,17 @@ public class Result {
     public void setName(String name) {
         this.name = name;
     }
+
+    /**
+     * Return the lines printed after the values of the check this result belongs to, e.g. the stack
+     * traces of hot threads
+     * @return the lines, or null if there are none
+     */
+    public String getDetails() {
+        return details;
+    }
+
+    public void setDetails(String details) {
+        this.details = details;
+    }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shares fetched attribute values between runs of check_java, so checks against the same MBeans
+ * within a few seconds need not connect to the target at all.
+ *
+ * The values are kept in a memory-mapped file in /dev/shm, private to the user, a SlotTable keyed by
+ * a 64 bit hash of target URL, MBean and attribute. Every entry carries its own expiry time. When the
+ * neighbourhood of a key is full, the entry that expires first is evicted. The file is locked while
+ * it is read or written, so all check_java processes of a user on a host can share it.
+ */
+public class ResultCache {
+    private static final long MAGIC = 0x636a636163686531L;
+    private static final int SLOTS = 16384;
+
+    private static ResultCache defaultCache;
+
+    private final SlotTable table;
+
+    /**
+     * Return the cache shared by all check_java processes of this user on this host. It lives in a
+     * StateDirectory in /dev/shm, or below the temporary directory if there is no /dev/shm.
+     *
+     * @return the cache
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public static synchronized ResultCache getDefault() throws IOException {
+        if (defaultCache == null) {
+            File shm = new File("/dev/shm");
+            File dir = shm.isDirectory() ? StateDirectory.below(shm) : StateDirectory.get();
+            defaultCache = new ResultCache(new File(dir, "cache"));
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Open or create a cache
+     * @param file the file to keep the values in
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public ResultCache(File file) throws IOException {
+        table = new SlotTable(file, MAGIC, SLOTS);
+    }
+
+    /**
+     * Look up the values of several attributes
+     *
+     * @param url the URL of the target
+     * @param ids the attributes
+     * @return the values in the order of the identifiers, or null unless all of them are cached and fresh
+     * @throws IOException if the file cannot be locked
+     */
+    public synchronized List<Object> lookup(String url, List<AttributeIdentifier> ids) throws IOException {
+        long now = System.currentTimeMillis();
+        List<Object> res = new ArrayList<Object>(ids.size());
+        try (FileLock lock = table.lock(true)) {
+            for (AttributeIdentifier id : ids) {
+                int off = table.find(StateStore.hash(key(url, id)));
+                if (off < 0 || table.getFirst(off) < now) {
+                    return null;
+                }
+                res.add(table.getSecond(off));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Store the values of several attributes. Values that are not numeric are not cached.
+     *
+     * @param url the URL of the target
+     * @param ids the attributes
+     * @param values the values, in the order of the identifiers
+     * @param ttlMillis how long the values may be served from the cache
+     * @throws IOException if the file cannot be locked
+     */
+    public synchronized void store(String url, List<AttributeIdentifier> ids, List<Object> values, long ttlMillis) throws IOException {
+        long expires = System.currentTimeMillis() + ttlMillis;
+        try (FileLock lock = table.lock(false)) {
+            for (int i = 0; i < ids.size(); i++) {
+                if (!(values.get(i) instanceof Number)) {
+                    continue;
+                }
+                long hash = StateStore.hash(key(url, ids.get(i)));
+                // a full neighbourhood gives up the entry that expires first
+                table.put(table.slotFor(hash, true), hash, expires, ((Number) values.get(i)).longValue());
+            }
+        }
+    }
+
+    private static String key(String url, AttributeIdentifier id) {
+        String obj = id.getRole() != null ? "role:" + id.getRole() : id.getObjectName();
+        return url + "|" + obj + "|" + id.getAttribute() + "|" + id.getSubAttribute();
+    }
+}
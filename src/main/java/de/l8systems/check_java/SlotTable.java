@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+/**
+ * A memory-mapped open addressing hash table of fixed-size records, shared by StateStore and
+ * ResultCache.
+ *
+ * Every record holds a 64 bit key hash and two longs. A key lives in its home slot or one of the
+ * MAX_PROBES slots after it, wrapping around at the end of the table; 0 marks an empty slot. The
+ * file is locked around every access, so the table can be shared between processes. Callers lock it
+ * with lock() and only access records while they hold the lock.
+ */
+class SlotTable {
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 24;
+    private static final int MAX_PROBES = 16;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buf;
+    private final int slots;
+
+    /**
+     * Open or create a table
+     * @param file the file to keep the records in
+     * @param magic the number the file starts with, a file starting with another one is cleared
+     * @param slots the number of records
+     * @throws IOException if the file cannot be created or mapped
+     */
+    SlotTable(File file, long magic, int slots) throws IOException {
+        this.slots = slots;
+        long size = HEADER_SIZE + (long) slots * RECORD_SIZE;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        try (FileLock lock = channel.lock()) {
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (buf.getLong(0) != magic) {
+                // new or foreign file, start over
+                for (int i = HEADER_SIZE; i < size; i += 8) {
+                    buf.putLong(i, 0L);
+                }
+                buf.putLong(0, magic);
+            }
+        }
+    }
+
+    /**
+     * Lock the file
+     * @param shared true to only read records, false to write them
+     * @return the lock, to be released when done
+     * @throws IOException if the file cannot be locked
+     */
+    FileLock lock(boolean shared) throws IOException {
+        return channel.lock(0, Long.MAX_VALUE, shared);
+    }
+
+    /**
+     * Return the offset of the record of a key
+     * @param hash the hash of the key
+     * @return the offset, or -1 if the key is not in the table
+     */
+    int find(long hash) {
+        int home = home(hash);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int off = offset((home + i) % slots);
+            long k = buf.getLong(off);
+            if (k == hash) {
+                return off;
+            } else if (k == 0L) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the offset of the record to store a key in: its own record or an empty one. If the
+     * neighbourhood of the key is full, a record is evicted.
+     *
+     * @param hash the hash of the key
+     * @param evictSmallestFirst true to evict the record with the smallest first value, e.g. the one
+     *                           expiring first, false to evict the record at the home slot
+     * @return the offset
+     */
+    int slotFor(long hash, boolean evictSmallestFirst) {
+        int home = home(hash);
+        int victim = offset(home);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int off = offset((home + i) % slots);
+            long k = buf.getLong(off);
+            if (k == hash || k == 0L) {
+                return off;
+            }
+            if (evictSmallestFirst && buf.getLong(off + 8) < buf.getLong(victim + 8)) {
+                victim = off;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * @return the key hash of the record at an offset, 0 if the record is empty
+     */
+    long getHash(int off) {
+        return buf.getLong(off);
+    }
+
+    long getFirst(int off) {
+        return buf.getLong(off + 8);
+    }
+
+    long getSecond(int off) {
+        return buf.getLong(off + 16);
+    }
+
+    /**
+     * Write a record. The hash is written last, so a new record that was not completed stays empty.
+     */
+    void put(int off, long hash, long first, long second) {
+        buf.putLong(off + 8, first);
+        buf.putLong(off + 16, second);
+        buf.putLong(off, hash);
+    }
+
+    private int home(long hash) {
+        return (int) ((hash >>> 1) % slots);
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+}
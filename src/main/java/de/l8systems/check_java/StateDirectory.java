@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The directory check_java keeps its state in between runs: caches, histories, archives and locks.
+ *
+ * Every user has a directory of their own, check_java-&lt;user&gt; below the temporary directory, created
+ * with mode 0700. Whoever can write to it can feed check_java forged values, e.g. the address of their
+ * own JMX server in place of a local JVM's, so a directory of that name that belongs to another user,
+ * is accessible by other users or is a symbolic link is refused instead of used.
+ */
+public class StateDirectory {
+    private static final Set<PosixFilePermission> PRIVATE = PosixFilePermissions.fromString("rwx------");
+
+    private static final Set<File> verified = new HashSet<>();
+
+    private StateDirectory() {
+    }
+
+    /**
+     * Return the state directory of the current user below the temporary directory, creating it if needed
+     * @return the directory
+     * @throws IOException if the directory cannot be created or is not private to the current user
+     */
+    public static File get() throws IOException {
+        return below(new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    /**
+     * Return a subdirectory of the state directory of the current user, creating both if needed
+     * @param name the name of the subdirectory, e.g. "series"
+     * @return the directory
+     * @throws IOException if a directory cannot be created or is not private to the current user
+     */
+    public static File get(String name) throws IOException {
+        return verify(new File(get(), name));
+    }
+
+    /**
+     * Return the state directory of the current user below another directory than the temporary
+     * directory, e.g. /dev/shm, creating it if needed
+     * @param parent the directory to create the state directory in
+     * @return the directory
+     * @throws IOException if the directory cannot be created or is not private to the current user
+     */
+    public static File below(File parent) throws IOException {
+        return verify(new File(parent, "check_java-" + fileName(System.getProperty("user.name", ""))));
+    }
+
+    /**
+     * Replace the characters of a user name that are not safe in a file name. Done by hand, since
+     * compiling a regular expression costs a fresh JVM several milliseconds.
+     */
+    private static String fileName(String user) {
+        StringBuilder sb = new StringBuilder(user.length());
+        for (int i = 0; i < user.length(); i++) {
+            char c = user.charAt(i);
+            boolean safe = c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '.' || c == '_' || c == '-';
+            sb.append(safe ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    private static synchronized File verify(File dir) throws IOException {
+        if (verified.contains(dir)) {
+            return dir;
+        }
+
+        Path path = dir.toPath();
+        boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        try {
+            if (posix) {
+                Files.createDirectory(path, PosixFilePermissions.asFileAttribute(PRIVATE));
+            } else {
+                Files.createDirectory(path);
+            }
+        } catch (FileAlreadyExistsException e) {
+            // created by an earlier run, or by someone else, which is checked below
+        }
+
+        if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IOException(dir + " is a symbolic link or not a directory, refusing to use it");
+        }
+        if (posix) {
+            PosixFileAttributes attrs = Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            UserPrincipal user = path.getFileSystem().getUserPrincipalLookupService()
+                    .lookupPrincipalByName(System.getProperty("user.name"));
+            if (!attrs.owner().equals(user)) {
+                throw new IOException(dir + " belongs to " + attrs.owner().getName() + ", not to " + user.getName() + ", refusing to use it");
+            }
+            if (!PRIVATE.containsAll(attrs.permissions())) {
+                throw new IOException(dir + " is accessible by other users, refusing to use it until its mode is 0700");
+            }
+        }
+        verified.add(dir);
+        return dir;
+    }
+}
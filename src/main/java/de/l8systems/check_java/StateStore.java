@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Keeps the last sample of monotonic counters between runs of check_java, so rates can be derived.
+ *
+ * The samples are stored in a small memory-mapped file with a fixed number of fixed-size records, a
+ * SlotTable keyed by a 64 bit hash of the counter's name. Reading and updating a sample touches a
+ * single record and needs no parsing. The file is locked while a record is updated, so standalone
+ * runs and the daemon can share it. When the neighbourhood of a key is full, the sample at its home
+ * slot is evicted.
+ */
+public class StateStore {
+    /**
+     * A previously stored sample
+     */
+    public static class Sample {
+        private final long time;
+        private final long value;
+
+        public Sample(long time, long value) {
+            this.time = time;
+            this.value = value;
+        }
+
+        /**
+         * @return the time the sample was taken, in milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return the value of the counter
+         */
+        public long getValue() {
+            return value;
+        }
+    }
+
+    private static final long MAGIC = 0x636a73746174650aL;
+    private static final int SLOTS = 4096;
+
+    private static StateStore defaultStore;
+
+    private final SlotTable table;
+
+    /**
+     * Return the state store shared by all checks of this process. It lives in the StateDirectory.
+     *
+     * @return the state store
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public static synchronized StateStore getDefault() throws IOException {
+        if (defaultStore == null) {
+            defaultStore = new StateStore(new File(StateDirectory.get(), "state.db"));
+        }
+        return defaultStore;
+    }
+
+    /**
+     * Open or create a state store
+     * @param file the file to keep the samples in
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public StateStore(File file) throws IOException {
+        table = new SlotTable(file, MAGIC, SLOTS);
+    }
+
+    /**
+     * Store a new sample of a counter and return the one stored before.
+     *
+     * @param key the name of the counter, e.g. its target URL and attribute
+     * @param time the time the sample was taken, in milliseconds
+     * @param value the value of the counter
+     * @return the previous sample, or null if there is none
+     * @throws IOException if the file cannot be locked
+     */
+    public synchronized Sample swap(String key, long time, long value) throws IOException {
+        long hash = hash(key);
+        try (FileLock lock = table.lock(false)) {
+            int off = table.slotFor(hash, false);
+            Sample prev = null;
+            if (table.getHash(off) == hash) {
+                prev = new Sample(table.getFirst(off), table.getSecond(off));
+            }
+            table.put(off, hash, time, value);
+            return prev;
+        }
+    }
+
+    /**
+     * Return the stored sample of a counter without replacing it.
+     *
+     * @param key the name of the counter
+     * @return the stored sample, or null if there is none
+     * @throws IOException if the file cannot be locked
+     */
+    public synchronized Sample get(String key) throws IOException {
+        long hash = hash(key);
+        try (FileLock lock = table.lock(true)) {
+            int off = table.find(hash);
+            return off >= 0 ? new Sample(table.getFirst(off), table.getSecond(off)) : null;
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the key. 0 marks an empty slot, so it is never returned.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        return h == 0L ? 1L : h;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Limits how many check_java processes on this host are connected to the same target at the same
+ * time, so a burst of checks, e.g. when Nagios reschedules all of them after an outage, does not flood
+ * a target that is already struggling.
+ *
+ * Each target has a lock file in the StateDirectory, and each of its first bytes is one of the
+ * slots a process has to lock before it connects. The operating system releases the lock if the
+ * process dies, so a crashed check never keeps a slot.
+ */
+public class TargetLock implements Closeable {
+    private static final long RETRY_MILLIS = 50;
+
+    private final FileChannel channel;
+
+    private TargetLock(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Take one of the slots of a target, waiting until one is free
+     *
+     * @param url the URL of the target
+     * @param slots how many processes may be connected to the target at the same time
+     * @param deadline the time to wait at most
+     * @return the lock, to be closed once the connection is closed
+     * @throws TimeoutException if no slot became free before the deadline
+     * @throws IOException if the lock file cannot be opened
+     */
+    public static TargetLock acquire(String url, int slots, Deadline deadline) throws IOException, TimeoutException, InterruptedException {
+        File file = new File(StateDirectory.get(), "target-" + Long.toHexString(StateStore.hash(url)) + ".lock");
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            while (true) {
+                for (int i = 0; i < slots; i++) {
+                    FileLock lock = channel.tryLock(i, 1, false);
+                    if (lock != null) {
+                        TargetLock res = new TargetLock(channel);
+                        channel = null;
+                        return res;
+                    }
+                }
+                long remaining = deadline.remainingMillis();
+                if (remaining <= 0) {
+                    throw deadline.timeout();
+                }
+                Thread.sleep(Math.min(RETRY_MILLIS, remaining));
+            }
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Free the slot
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
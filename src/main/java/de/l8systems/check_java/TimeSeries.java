@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The recent history of one attribute of one target, kept between runs of check_java.
+ *
+ * The samples are stored in a memory-mapped file as a ring of fixed-size (time, value) records, so the
+ * file never grows and the oldest samples are overwritten. Next to the ring, the file holds running
+ * aggregates that are updated with every sample, so no statistic ever needs a pass over the history:
+ * <ul>
+ *     <li>the sum of the samples within a time window, from which the moving average follows; samples
+ *     leave the window one by one as it slides, so each sample is added and removed exactly once</li>
+ *     <li>the sums of an exponentially weighted least squares fit through the post-GC baseline, i.e.
+ *     the samples that are lower than their predecessor because a collection happened in between.
+ *     Ignoring everything else removes the sawtooth of allocation and collection from the trend.</li>
+ * </ul>
+ */
+public class TimeSeries {
+    /**
+     * The statistics of a series after a sample was added
+     */
+    public static class Stats {
+        private final long movingAverage;
+        private final Double slope;
+        private final long baseline;
+
+        private Stats(long movingAverage, Double slope, long baseline) {
+            this.movingAverage = movingAverage;
+            this.slope = slope;
+            this.baseline = baseline;
+        }
+
+        /**
+         * @return the average of the samples within the window
+         */
+        public long getMovingAverage() {
+            return movingAverage;
+        }
+
+        /**
+         * @return the change of the post-GC baseline per hour, or null as long as fewer than two
+         *         collections have been seen
+         */
+        public Double getSlope() {
+            return slope;
+        }
+
+        /**
+         * @return the post-GC baseline at the time of the last sample according to the trend, or the
+         *         last baseline sample as long as there is no trend
+         */
+        public long getBaseline() {
+            return baseline;
+        }
+    }
+
+    private static final long MAGIC = 0x636a736572696573L;
+    private static final int CAPACITY = 2048;
+    private static final int RECORD_SIZE = 16;
+    private static final int HEADER_SIZE = 128;
+
+    /**
+     * Weight of the previous baseline samples when a new one is added; the fit effectively spans the
+     * last 20 or so collections
+     */
+    private static final double DECAY = 0.95;
+    private static final double MILLIS_PER_HOUR = 3600000.0;
+
+    // header fields
+    private static final int SEQ = 8;
+    private static final int WINDOW_START = 16;
+    private static final int WINDOW_SUM = 24;
+    private static final int WINDOW_MILLIS = 32;
+    private static final int ORIGIN = 40;
+    private static final int LAST_VALUE = 48;
+    private static final int BASELINES = 56;
+    private static final int SUM_W = 64;
+    private static final int SUM_X = 72;
+    private static final int SUM_Y = 80;
+    private static final int SUM_XX = 88;
+    private static final int SUM_XY = 96;
+
+    private static final Map<String, TimeSeries> open = new HashMap<>();
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buf;
+
+    /**
+     * Return the series of an attribute. Series live in the subdirectory series of the
+     * StateDirectory, one file per series.
+     *
+     * @param key the name of the series, e.g. the target URL and attribute
+     * @return the series
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public static synchronized TimeSeries get(String key) throws IOException {
+        TimeSeries series = open.get(key);
+        if (series == null) {
+            File dir = StateDirectory.get("series");
+            series = new TimeSeries(new File(dir, Long.toHexString(StateStore.hash(key)) + ".ts"));
+            open.put(key, series);
+        }
+        return series;
+    }
+
+    /**
+     * Open or create a series
+     * @param file the file to keep the samples in
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public TimeSeries(File file) throws IOException {
+        long size = HEADER_SIZE + (long) CAPACITY * RECORD_SIZE;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        try (FileLock lock = channel.lock()) {
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (buf.getLong(0) != MAGIC) {
+                // new or foreign file, start over
+                for (int i = 8; i < HEADER_SIZE; i += 8) {
+                    buf.putLong(i, 0L);
+                }
+                buf.putLong(0, MAGIC);
+            }
+        }
+    }
+
+    /**
+     * Add a sample and return the statistics including it.
+     *
+     * @param time the time the sample was taken, in milliseconds
+     * @param value the sampled value
+     * @param windowMillis the window of the moving average, in milliseconds
+     * @return the statistics
+     * @throws IOException if the file cannot be locked
+     */
+    public synchronized Stats append(long time, long value, long windowMillis) throws IOException {
+        try (FileLock lock = channel.lock()) {
+            long seq = buf.getLong(SEQ);
+            if (buf.getLong(WINDOW_MILLIS) != windowMillis) {
+                resetWindow(seq, time, windowMillis);
+            }
+
+            long start = buf.getLong(WINDOW_START);
+            long sum = buf.getLong(WINDOW_SUM);
+            if (seq - start >= CAPACITY) {
+                // the oldest sample of the window is about to be overwritten
+                sum -= valueAt(start);
+                start++;
+            }
+            int off = offset(seq);
+            buf.putLong(off, time);
+            buf.putLong(off + 8, value);
+            sum += value;
+            seq++;
+            while (start < seq - 1 && timeAt(start) < time - windowMillis) {
+                sum -= valueAt(start);
+                start++;
+            }
+            buf.putLong(SEQ, seq);
+            buf.putLong(WINDOW_START, start);
+            buf.putLong(WINDOW_SUM, sum);
+
+            if (seq == 1) {
+                buf.putLong(ORIGIN, time);
+            } else if (value < buf.getLong(LAST_VALUE)) {
+                addBaseline((time - buf.getLong(ORIGIN)) / MILLIS_PER_HOUR, value);
+            }
+            buf.putLong(LAST_VALUE, value);
+
+            return stats(seq - start, sum, (time - buf.getLong(ORIGIN)) / MILLIS_PER_HOUR, value);
+        }
+    }
+
+    /**
+     * Rebuild the window sum after the window was changed. This is the only operation that walks the
+     * ring, and it only happens when a check is reconfigured.
+     */
+    private void resetWindow(long seq, long time, long windowMillis) {
+        long start = seq;
+        long sum = 0;
+        while (start > 0 && start > seq - CAPACITY + 1 && timeAt(start - 1) >= time - windowMillis) {
+            start--;
+            sum += valueAt(start);
+        }
+        buf.putLong(WINDOW_START, start);
+        buf.putLong(WINDOW_SUM, sum);
+        buf.putLong(WINDOW_MILLIS, windowMillis);
+    }
+
+    private void addBaseline(double x, long y) {
+        buf.putLong(BASELINES, buf.getLong(BASELINES) + 1);
+        putDouble(SUM_W, getDouble(SUM_W) * DECAY + 1);
+        putDouble(SUM_X, getDouble(SUM_X) * DECAY + x);
+        putDouble(SUM_Y, getDouble(SUM_Y) * DECAY + y);
+        putDouble(SUM_XX, getDouble(SUM_XX) * DECAY + x * x);
+        putDouble(SUM_XY, getDouble(SUM_XY) * DECAY + x * y);
+    }
+
+    private Stats stats(long count, long sum, double x, long value) {
+        long average = count > 0 ? sum / count : value;
+
+        double w = getDouble(SUM_W);
+        double sx = getDouble(SUM_X);
+        double sy = getDouble(SUM_Y);
+        double det = w * getDouble(SUM_XX) - sx * sx;
+        if (buf.getLong(BASELINES) < 2 || det <= 1e-12) {
+            long baseline = w > 0 ? (long) (sy / w) : value;
+            return new Stats(average, null, baseline);
+        }
+        double slope = (w * getDouble(SUM_XY) - sx * sy) / det;
+        double intercept = (sy - slope * sx) / w;
+        return new Stats(average, slope, Math.round(intercept + slope * x));
+    }
+
+    private long timeAt(long seq) {
+        return buf.getLong(offset(seq));
+    }
+
+    private long valueAt(long seq) {
+        return buf.getLong(offset(seq) + 8);
+    }
+
+    private static int offset(long seq) {
+        return HEADER_SIZE + (int) (seq % CAPACITY) * RECORD_SIZE;
+    }
+
+    private double getDouble(int off) {
+        return Double.longBitsToDouble(buf.getLong(off));
+    }
+
+    private void putDouble(int off, double value) {
+        buf.putLong(off, Double.doubleToLongBits(value));
+    }
+}
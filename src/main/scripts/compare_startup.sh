@@ -0,0 +1,55 @@
+#!/bin/bash
+#
+# Compare wall time and peak memory of the check_java jar and the native
+# executable built with "mvn -Pnative package".
+#
+# All arguments are passed to check_java, e.g.:
+#
+#   src/main/scripts/compare_startup.sh -t HeapMem -w 800 -c 900 -U MB
+#
+# The number of runs per variant defaults to 20 and can be changed with RUNS.
+
+RUNS=${RUNS:-20}
+TARGET=$(dirname "$0")/../../../target
+JAR=$(ls "$TARGET"/check_java-*.jar 2>/dev/null | head -n 1)
+NATIVE=$TARGET/check_java
+TMP=$(mktemp)
+trap 'rm -f "$TMP"' EXIT
+
+measure() {
+    local name=$1
+    shift
+    local total=0 maxrss=0 start end rss
+    for ((i = 0; i < RUNS; i++)); do
+        start=$(date +%s%N)
+        if [ -x /usr/bin/time ]; then
+            # time writes to the file, as the output of check_java is discarded
+            /usr/bin/time -o "$TMP" -f %M "$@" > /dev/null 2>&1
+            rss=$(tail -n 1 "$TMP")
+        else
+            "$@" > /dev/null 2>&1
+            rss=0
+        fi
+        end=$(date +%s%N)
+        total=$((total + (end - start) / 1000))
+        [ "$rss" -gt "$maxrss" ] 2>/dev/null && maxrss=$rss
+    done
+    if [ -x /usr/bin/time ]; then
+        maxrss="$maxrss KB"
+    else
+        maxrss="n/a (needs /usr/bin/time)"
+    fi
+    printf '%-8s %6d ms mean wall time, max RSS %s, %d runs\n' "$name" $((total / RUNS / 1000)) "$maxrss" "$RUNS"
+}
+
+if [ -n "$JAR" ]; then
+    measure jar java -jar "$JAR" "$@"
+else
+    echo "No jar found, run mvn package first"
+fi
+
+if [ -x "$NATIVE" ]; then
+    measure native "$NATIVE" "$@"
+else
+    echo "No native executable found, run mvn -Pnative package with a GraalVM JDK first"
+fi
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import org.junit.Test;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class AttributePathTest {
+    @Test
+    public void splitAttributeAndPath() {
+        assertArrayEquals(new String[] {"HeapMemoryUsage", null}, AttributePath.split("HeapMemoryUsage"));
+        assertArrayEquals(new String[] {"HeapMemoryUsage", "used"}, AttributePath.split("HeapMemoryUsage.used"));
+        assertArrayEquals(new String[] {"LastGcInfo", "memoryUsageAfterGc[G1 Old Gen].used"},
+                AttributePath.split("LastGcInfo.memoryUsageAfterGc[G1 Old Gen].used"));
+        assertArrayEquals(new String[] {"Values", "[3]"}, AttributePath.split("Values[3]"));
+        assertArrayEquals(new String[] {"", "used"}, AttributePath.split(".used"));
+    }
+
+    @Test
+    public void extractFromCompositeData() throws OpenDataException {
+        CompositeData usage = usage(123L);
+        assertEquals(123L, AttributePath.of("used").extract(usage));
+        assertNull(AttributePath.of("missing").extract(usage));
+        assertNull(AttributePath.of("used.deeper").extract(usage));
+    }
+
+    @Test
+    public void extractFromTabularData() throws OpenDataException {
+        CompositeType row = new CompositeType("row", "row", new String[] {"key", "value"}, new String[] {"key", "value"},
+                new OpenType<?>[] {SimpleType.STRING, usage(0L).getCompositeType()});
+        TabularDataSupport table = new TabularDataSupport(new TabularType("table", "table", row, new String[] {"key"}));
+        table.put(new CompositeDataSupport(row, new String[] {"key", "value"}, new Object[] {"G1 Old Gen", usage(42L)}));
+        table.put(new CompositeDataSupport(row, new String[] {"key", "value"}, new Object[] {"G1 Eden Space", usage(7L)}));
+        CompositeData gcInfo = gcInfo(table);
+
+        assertEquals(42L, AttributePath.of("memoryUsageAfterGc[G1 Old Gen].used").extract(gcInfo));
+        assertEquals(7L, AttributePath.of("memoryUsageAfterGc[G1 Eden Space].used").extract(gcInfo));
+        assertNull(AttributePath.of("memoryUsageAfterGc[Metaspace].used").extract(gcInfo));
+        // a table is only indexed with brackets
+        assertNull(AttributePath.of("memoryUsageAfterGc.used").extract(gcInfo));
+    }
+
+    @Test
+    public void extractFromListsArraysAndMaps() {
+        assertEquals(30, AttributePath.of("[2]").extract(Arrays.asList(10, 20, 30)));
+        assertEquals(20L, AttributePath.of("[1]").extract(new long[] {10L, 20L}));
+        assertNull(AttributePath.of("[2]").extract(new long[] {10L, 20L}));
+        assertNull(AttributePath.of("[-1]").extract(Arrays.asList(10, 20, 30)));
+        assertNull(AttributePath.of("[x]").extract(Arrays.asList(10, 20, 30)));
+
+        Map<String, Object> map = new HashMap<>();
+        map.put("a.b", Collections.singletonList(5));
+        assertEquals(5, AttributePath.of("[a.b][0]").extract(map));
+    }
+
+    @Test
+    public void sharedPrefixesAreLookedUpOnce() throws OpenDataException {
+        CompositeData gcInfo = gcInfo(null);
+        Map<String, Object> shared = new HashMap<>();
+        shared.put("memoryUsageAfterGc[G1 Old Gen]", usage(99L));
+
+        assertEquals(99L, AttributePath.of("memoryUsageAfterGc[G1 Old Gen].used").extract(gcInfo, shared));
+        assertEquals(99L, shared.get("memoryUsageAfterGc[G1 Old Gen].used"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unclosedBracket() {
+        AttributePath.of("memoryUsageAfterGc[G1 Old Gen.used");
+    }
+
+    private static CompositeData usage(long used) throws OpenDataException {
+        CompositeType type = new CompositeType("usage", "usage", new String[] {"used", "max"}, new String[] {"used", "max"},
+                new OpenType<?>[] {SimpleType.LONG, SimpleType.LONG});
+        return new CompositeDataSupport(type, new String[] {"used", "max"}, new Object[] {used, 1000L});
+    }
+
+    private static CompositeData gcInfo(TabularDataSupport afterGc) throws OpenDataException {
+        CompositeType type = new CompositeType("gcInfo", "gcInfo", new String[] {"duration"}, new String[] {"duration"},
+                new OpenType<?>[] {SimpleType.LONG});
+        if (afterGc == null) {
+            return new CompositeDataSupport(type, new String[] {"duration"}, new Object[] {5L});
+        }
+        type = new CompositeType("gcInfo", "gcInfo", new String[] {"duration", "memoryUsageAfterGc"}, new String[] {"duration", "memoryUsageAfterGc"},
+                new OpenType<?>[] {SimpleType.LONG, afterGc.getTabularType()});
+        return new CompositeDataSupport(type, new String[] {"duration", "memoryUsageAfterGc"}, new Object[] {5L, afterGc});
+    }
+}
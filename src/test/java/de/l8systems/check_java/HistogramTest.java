@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+    private static final long WINDOW = TimeUnit.MINUTES.toMillis(5);
+    private static final int LAST_BUCKET = 487;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void bucketsAtTheBoundaries() {
+        assertEquals(0, Histogram.bucketOf(0));
+        assertEquals(7, Histogram.bucketOf(7));
+        assertEquals(8, Histogram.bucketOf(8));
+        assertEquals(15, Histogram.bucketOf(15));
+        assertEquals(16, Histogram.bucketOf(16));
+        assertEquals(16, Histogram.bucketOf(17));
+        assertEquals(LAST_BUCKET, Histogram.bucketOf(Long.MAX_VALUE));
+
+        assertEquals(0, Histogram.upperBound(0));
+        assertEquals(7, Histogram.upperBound(7));
+        assertEquals(8, Histogram.upperBound(8));
+        assertEquals(17, Histogram.upperBound(16));
+        assertEquals(Long.MAX_VALUE, Histogram.upperBound(LAST_BUCKET));
+        assertEquals(15L << 59, Histogram.lowerBound(LAST_BUCKET));
+    }
+
+    @Test
+    public void bucketsAreContiguousAndAtMostAnEighthWide() {
+        for (int b = 0; b <= LAST_BUCKET; b++) {
+            long lower = Histogram.lowerBound(b);
+            long upper = Histogram.upperBound(b);
+            assertEquals("lower bound of bucket " + b, b, Histogram.bucketOf(lower));
+            assertEquals("upper bound of bucket " + b, b, Histogram.bucketOf(upper));
+            assertTrue("width of bucket " + b, upper - lower <= lower / 8);
+            if (b < LAST_BUCKET) {
+                assertEquals("bucket after " + b, upper + 1, Histogram.lowerBound(b + 1));
+            }
+        }
+    }
+
+    @Test
+    public void powersOfTwoFallIntoTheirBucket() {
+        for (int shift = 0; shift < 63; shift++) {
+            for (long v : new long[] {(1L << shift) - 1, 1L << shift, (1L << shift) + 1}) {
+                int b = Histogram.bucketOf(v);
+                assertTrue(v + " above its bucket", v <= Histogram.upperBound(b));
+                assertTrue(v + " below its bucket", v >= Histogram.lowerBound(b));
+            }
+        }
+    }
+
+    @Test
+    public void percentilesFromBothTails() throws IOException {
+        Histogram histogram = new Histogram(folder.newFile());
+        long now = System.currentTimeMillis();
+        Histogram.Stats stats = null;
+        for (int v = 1; v <= 100; v++) {
+            stats = histogram.record(now, v, WINDOW, 100, false);
+        }
+        assertEquals(100, stats.getCount());
+        assertEquals(100, stats.getValue());
+
+        long p50 = histogram.record(now, 50, WINDOW, 50, false).getValue();
+        assertTrue("p50 " + p50, p50 >= 50 && p50 <= 50 + 50 / 8);
+
+        // 102 samples with this one, the 6th smallest is 6, which has a bucket of its own
+        assertEquals(6, histogram.record(now, 1000, WINDOW, 95, true).getValue());
+        assertEquals(1, histogram.record(now, 1000, WINDOW, 100, true).getValue());
+    }
+
+    @Test
+    public void samplesLeaveTheWindow() throws IOException {
+        Histogram histogram = new Histogram(folder.newFile());
+        long now = System.currentTimeMillis();
+        histogram.record(now, 1000, WINDOW, 100, false);
+        Histogram.Stats stats = histogram.record(now + 2 * WINDOW, 10, WINDOW, 100, false);
+        assertEquals(1, stats.getCount());
+        assertEquals(10, stats.getMax());
+    }
+
+    @Test
+    public void closedHistogramKeepsRecording() throws IOException {
+        File file = folder.newFile();
+        Histogram histogram = new Histogram(file);
+        long now = System.currentTimeMillis();
+        histogram.record(now, 5, WINDOW, 100, false);
+        histogram.close();
+        assertEquals(2, histogram.record(now, 7, WINDOW, 100, false).getCount());
+        assertEquals(3, new Histogram(file).record(now, 9, WINDOW, 100, false).getCount());
+    }
+}
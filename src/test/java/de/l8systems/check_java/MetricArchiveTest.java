@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class MetricArchiveTest {
+    private static final String SERIES = "HeapMem.used";
+    private static final long START = 1500000000L;
+    private static final long INTERVAL = 10000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void bitsRoundTrip() {
+        long[] values = {0L, 1L, 0b1010101L, 0x1ffL, 0xabcL, 0xdeadbeefL, -1L, Long.MIN_VALUE, 0x8000000000000001L, 0x5555555555555555L};
+        int[] counts = {1, 1, 7, 9, 12, 32, 64, 64, 64, 63};
+        ByteBuffer block = ByteBuffer.allocate(4096);
+
+        MetricArchive.BitWriter out = new MetricArchive.BitWriter(block, 0);
+        int bits = 0;
+        for (int i = 0; i < values.length; i++) {
+            out.write(values[i], counts[i]);
+            bits += counts[i];
+        }
+        assertEquals(bits, out.position());
+
+        MetricArchive.BitReader in = new MetricArchive.BitReader(block);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals("value " + i, masked(values[i], counts[i]), in.read(counts[i]));
+        }
+    }
+
+    @Test
+    public void bitWriterClearsStaleBits() {
+        ByteBuffer block = ByteBuffer.allocate(256);
+        for (int i = 0; i < block.capacity(); i++) {
+            block.put(i, (byte) 0xff);
+        }
+
+        MetricArchive.BitWriter out = new MetricArchive.BitWriter(block, 3);
+        out.write(0L, 64);
+        out.write(0b0110L, 4);
+
+        MetricArchive.BitReader in = new MetricArchive.BitReader(block);
+        assertEquals(0b111L, in.read(3));
+        assertEquals(0L, in.read(64));
+        assertEquals(0b0110L, in.read(4));
+        assertEquals(1L, in.read(1));
+    }
+
+    @Test
+    public void timestampsAtTheEdgesOfEachRange() throws IOException {
+        long[] dods = {0, 1, -1, -63, 64, -64, 65, -255, 256, -256, 257, -2047, 2048, -2048, 2049, 100000, -9999, 1 << 30};
+        for (long dod : dods) {
+            MetricArchive archive = new MetricArchive(folder.newFile());
+            List<MetricArchive.Sample> expected = new ArrayList<>();
+            long[] seconds = {START, START + INTERVAL, START + 2 * INTERVAL + dod, START + 3 * INTERVAL + dod, START + 4 * INTERVAL + dod};
+            for (int i = 0; i < seconds.length; i++) {
+                append(archive, seconds[i], i, expected);
+            }
+            assertSamples("dod " + dod, expected, archive.scan(SERIES, 0, Long.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void valuesWhoseXorSpansAllBits() throws IOException {
+        MetricArchive archive = new MetricArchive(folder.newFile());
+        long[] values = {0L, 0x8000000000000001L, 1L, Long.MIN_VALUE, -1L, Long.MAX_VALUE, 0L, 0L, 0x00ff000000000000L, 0x00fe000000000000L};
+        List<MetricArchive.Sample> expected = new ArrayList<>();
+        for (int i = 0; i < values.length; i++) {
+            append(archive, START + i * INTERVAL, values[i], expected);
+        }
+        assertSamples("xor", expected, archive.scan(SERIES, 0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void randomSamplesAcrossBlocksAndReopening() throws IOException {
+        File file = folder.newFile();
+        MetricArchive archive = new MetricArchive(file);
+        Random random = new Random(42);
+        List<MetricArchive.Sample> expected = new ArrayList<>();
+        long seconds = START;
+        long value = 0;
+        for (int i = 0; i < 5000; i++) {
+            seconds += random.nextInt(10) == 0 ? random.nextInt(5000) : 60;
+            value = random.nextInt(4) == 0 ? random.nextLong() : value + random.nextInt(1000) - 500;
+            append(archive, seconds, value, expected);
+        }
+
+        assertSamples("written", expected, archive.scan(SERIES, 0, Long.MAX_VALUE));
+        assertSamples("reopened", expected, new MetricArchive(file).scan(SERIES, 0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void manySeriesGrowTheDirectory() throws IOException {
+        File file = folder.newFile();
+        MetricArchive archive = new MetricArchive(file);
+        for (int s = 0; s < 1000; s++) {
+            archive.append(START * 1000, Collections.singletonMap("series" + s, (long) s));
+            archive.append((START + INTERVAL) * 1000, Collections.singletonMap("series" + s, (long) -s));
+        }
+
+        MetricArchive reopened = new MetricArchive(file);
+        for (int s = 0; s < 1000; s += 111) {
+            List<MetricArchive.Sample> samples = reopened.scan("series" + s, 0, Long.MAX_VALUE);
+            assertEquals(2, samples.size());
+            assertEquals(s, samples.get(0).getValue());
+            assertEquals(-s, samples.get(1).getValue());
+        }
+    }
+
+    @Test
+    public void scanIncludesTheStartAndExcludesTheEnd() throws IOException {
+        MetricArchive archive = new MetricArchive(folder.newFile());
+        List<MetricArchive.Sample> all = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            append(archive, START + i * INTERVAL, i, all);
+        }
+
+        List<MetricArchive.Sample> samples = archive.scan(SERIES, (START + INTERVAL) * 1000, (START + 3 * INTERVAL) * 1000);
+        assertSamples("range", all.subList(1, 3), samples);
+    }
+
+    @Test(timeout = 5000)
+    public void blockWithoutHeaderEndsTheScan() throws IOException {
+        File file = folder.newFile();
+        List<MetricArchive.Sample> expected = new ArrayList<>();
+        append(new MetricArchive(file), START, 1L, expected);
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            // the file was grown for a new block, but the process died before its header was written
+            out.write(new byte[512]);
+        }
+
+        MetricArchive reopened = new MetricArchive(file);
+        assertSamples("zero-filled block", expected, reopened.scan(SERIES, 0, Long.MAX_VALUE));
+        for (int i = 1; i < 100; i++) {
+            append(reopened, START + i * INTERVAL, i, expected);
+            archiveSeries(reopened, "other", START + i * INTERVAL);
+        }
+        assertSamples("appended after", expected, reopened.scan(SERIES, 0, Long.MAX_VALUE));
+    }
+
+    @Test(timeout = 5000)
+    public void blockRunningPastTheEndEndsTheScan() throws IOException {
+        File file = folder.newFile();
+        List<MetricArchive.Sample> expected = new ArrayList<>();
+        MetricArchive archive = new MetricArchive(file);
+        append(archive, START, 1L, expected);
+        long length = file.length();
+        archiveSeries(archive, "other", START);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // the block of the other series is cut short, as if the file system lost its end
+            raf.setLength(length + 100);
+        }
+
+        MetricArchive reopened = new MetricArchive(file);
+        assertSamples("truncated block", expected, reopened.scan(SERIES, 0, Long.MAX_VALUE));
+        assertEquals(0, reopened.scan("other", 0, Long.MAX_VALUE).size());
+        archiveSeries(reopened, "other", START + INTERVAL);
+        assertEquals(1, reopened.scan("other", 0, Long.MAX_VALUE).size());
+    }
+
+    private static void archiveSeries(MetricArchive archive, String series, long seconds) throws IOException {
+        archive.append(seconds * 1000, Collections.singletonMap(series, seconds));
+    }
+
+    private static void append(MetricArchive archive, long seconds, long value, List<MetricArchive.Sample> expected) throws IOException {
+        archive.append(seconds * 1000, Collections.singletonMap(SERIES, value));
+        expected.add(new MetricArchive.Sample(seconds * 1000, value));
+    }
+
+    private static void assertSamples(String message, List<MetricArchive.Sample> expected, List<MetricArchive.Sample> actual) {
+        assertEquals(message + ": number of samples", expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(message + ": time of sample " + i, expected.get(i).getTime(), actual.get(i).getTime());
+            assertEquals(message + ": value of sample " + i, expected.get(i).getValue(), actual.get(i).getValue());
+        }
+    }
+
+    private static long masked(long value, int count) {
+        return count == 64 ? value : value & ((1L << count) - 1);
+    }
+}
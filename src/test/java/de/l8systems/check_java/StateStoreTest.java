@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2015, Sebastian Schäfer <me@sebastianschaefer.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of check_java nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SEBASTIAN SCHÄFER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.l8systems.check_java;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class StateStoreTest {
+    private static final int SLOTS = 4096;
+    private static final int MAX_PROBES = 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private StateStore store;
+
+    @Before
+    public void open() throws IOException {
+        file = folder.newFile();
+        store = new StateStore(file);
+    }
+
+    @Test
+    public void swapReturnsThePreviousSample() throws IOException {
+        assertNull(store.swap("a", 1000L, 5L));
+        StateStore.Sample prev = store.swap("a", 2000L, 7L);
+        assertEquals(1000L, prev.getTime());
+        assertEquals(5L, prev.getValue());
+        assertEquals(7L, store.get("a").getValue());
+        assertNull(store.get("b"));
+    }
+
+    @Test
+    public void samplesSurviveReopening() throws IOException {
+        store.swap("a", 1000L, 5L);
+        StateStore reopened = new StateStore(file);
+        assertEquals(5L, reopened.get("a").getValue());
+    }
+
+    @Test
+    public void collidingKeysProbeToTheirOwnSlots() throws IOException {
+        List<String> keys = collidingKeys(1, 4);
+        for (int i = 0; i < keys.size(); i++) {
+            store.swap(keys.get(i), i, i * 10L);
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            assertEquals(keys.get(i), i * 10L, store.get(keys.get(i)).getValue());
+        }
+        assertEquals(30L, store.swap(keys.get(3), 4L, 40L).getValue());
+    }
+
+    @Test
+    public void probingWrapsAroundTheEndOfTheTable() throws IOException {
+        List<String> keys = collidingKeys(SLOTS - 1, 3);
+        for (int i = 0; i < keys.size(); i++) {
+            store.swap(keys.get(i), i, i * 10L);
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            assertEquals(keys.get(i), i * 10L, store.get(keys.get(i)).getValue());
+        }
+    }
+
+    @Test
+    public void aFullNeighbourhoodEvictsTheHomeSlot() throws IOException {
+        List<String> keys = collidingKeys(7, MAX_PROBES + 1);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            store.swap(keys.get(i), i, i);
+        }
+
+        String last = keys.get(MAX_PROBES);
+        assertNull(store.swap(last, 100L, 100L));
+        assertEquals(100L, store.get(last).getValue());
+        // the first key lived in the home slot and was replaced, the others are still there
+        assertNull(store.get(keys.get(0)));
+        for (int i = 1; i < MAX_PROBES; i++) {
+            assertNotNull(keys.get(i), store.get(keys.get(i)));
+        }
+    }
+
+    @Test
+    public void hashIsNeverZero() {
+        assertEquals(0xcbf29ce484222325L, StateStore.hash(""));
+        for (int i = 0; i < 10000; i++) {
+            assertNotEquals(0L, StateStore.hash("key" + i));
+        }
+    }
+
+    /**
+     * Find keys whose home is the same slot of the table
+     */
+    private static List<String> collidingKeys(int home, int count) {
+        List<String> keys = new ArrayList<>(count);
+        for (int i = 0; keys.size() < count; i++) {
+            String key = "counter" + i;
+            if ((int) ((StateStore.hash(key) >>> 1) % SLOTS) == home) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+}